@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "uk.co.palmr"
@@ -25,8 +26,13 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testAnnotationProcessor(project(":processor"))
 }
 
 tasks.test {
     useJUnitPlatform()
 }
+
+jmh {
+    jmhVersion = "1.37"
+}
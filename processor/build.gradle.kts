@@ -0,0 +1,16 @@
+plugins {
+    id("java")
+}
+
+group = "uk.co.palmr"
+version = "1.0-SNAPSHOT"
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+repositories {
+    mavenCentral()
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a {@code <Name>RowCodec} for every type annotated with {@code uk.co.palmr.joke.KdbRow}, reading rows from a
+ * {@code FlipView} through typed column accessors and writing rows to a {@code Flip} of primitive column arrays.
+ * <p>
+ * The annotation is matched by name, so the processor has no dependency on joke itself.
+ */
+@SupportedAnnotationTypes(KdbRowProcessor.KDB_ROW)
+public class KdbRowProcessor extends AbstractProcessor {
+    static final String KDB_ROW = "uk.co.palmr.joke.KdbRow";
+
+    /**
+     * Java types a column can have, written as a vector of the matching kdb+ type.
+     */
+    private enum ColumnType {
+        BOOLEAN("boolean", "%s.getBoolean(row)"),
+        BYTE("byte", "%s.getByte(row)"),
+        SHORT("short", "%s.getShort(row)"),
+        INT("int", "%s.getInt(row)"),
+        LONG("long", "%s.getLong(row)"),
+        FLOAT("float", "%s.getFloat(row)"),
+        DOUBLE("double", "%s.getDouble(row)"),
+        CHAR("char", "(char) (%s.getByte(row) & 0xff)"),
+        SYMBOL("java.lang.String", "%s.getString(row)");
+
+        private final String javaType;
+        /**
+         * Expression reading the current row from a column view, given the view's name.
+         */
+        private final String read;
+
+        ColumnType(final String javaType, final String read) {
+            this.javaType = javaType;
+            this.read = read;
+        }
+
+        static ColumnType of(final TypeMirror type) {
+            for (final ColumnType columnType : values()) {
+                if (columnType.javaType.equals(type.toString())) {
+                    return columnType;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param name     column name, the same as the component or field
+     * @param type     column type
+     * @param accessor expression reading the column's value from {@code value}
+     */
+    private record Column(String name, ColumnType type, String accessor) {
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        for (final TypeElement annotation : annotations) {
+            for (final Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.RECORD && element.getKind() != ElementKind.CLASS) {
+                    error(element, "@KdbRow must annotate a record or class");
+                    continue;
+                }
+                final TypeElement type = (TypeElement) element;
+                final List<Column> columns = columns(type);
+                if (columns != null) {
+                    write(type, columns);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the columns of a row type, or null if it can't be mapped, having reported why
+     */
+    private List<Column> columns(final TypeElement type) {
+        if (type.getModifiers().contains(Modifier.PRIVATE) || type.getModifiers().contains(Modifier.ABSTRACT)
+                || (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC))) {
+            error(type, "@KdbRow types must be non-private, concrete and not inner classes");
+            return null;
+        }
+
+        final boolean isRecord = type.getKind() == ElementKind.RECORD;
+        if (!isRecord && ElementFilter.constructorsIn(type.getEnclosedElements()).stream()
+                .noneMatch(constructor -> constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))) {
+            error(type, "@KdbRow classes must have a non-private no-arg constructor");
+            return null;
+        }
+
+        final List<? extends Element> members = isRecord
+                ? type.getRecordComponents()
+                : ElementFilter.fieldsIn(type.getEnclosedElements()).stream()
+                .filter(field -> !field.getModifiers().contains(Modifier.STATIC) && !field.getModifiers().contains(Modifier.TRANSIENT))
+                .toList();
+
+        final List<Column> columns = new ArrayList<>();
+        boolean valid = true;
+        for (final Element member : members) {
+            final String name = member.getSimpleName().toString();
+            final ColumnType columnType = ColumnType.of(member.asType());
+            if (columnType == null) {
+                error(member, "Unsupported @KdbRow column type: " + member.asType());
+                valid = false;
+            } else if (!isRecord && (member.getModifiers().contains(Modifier.PRIVATE) || member.getModifiers().contains(Modifier.FINAL))) {
+                error(member, "@KdbRow fields must be non-private and non-final");
+                valid = false;
+            } else {
+                columns.add(new Column(name, columnType, isRecord ? name + "()" : name));
+            }
+        }
+        if (valid && columns.isEmpty()) {
+            error(type, "@KdbRow types must have at least one column");
+            valid = false;
+        }
+        return valid ? columns : null;
+    }
+
+    private void write(final TypeElement type, final List<Column> columns) {
+        final String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        final String rowType = type.getQualifiedName().toString();
+        final String codecName = codecName(type);
+        final String visibility = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+
+        final StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" * Reads and writes {@link ").append(rowType).append("} rows as kdb+ tables.\n")
+                .append(" */\n")
+                .append("@javax.annotation.processing.Generated(\"").append(KdbRowProcessor.class.getName()).append("\")\n")
+                .append(visibility).append("final class ").append(codecName).append(" {\n");
+
+        source.append("    /**\n")
+                .append("     * Column names, in declaration order.\n")
+                .append("     */\n")
+                .append("    public static final java.util.List<String> COLUMN_NAMES = java.util.List.of(");
+        for (int idx = 0; idx < columns.size(); idx++) {
+            source.append(idx == 0 ? "" : ", ").append('"').append(columns.get(idx).name()).append('"');
+        }
+        source.append(");\n\n")
+                .append("    private ").append(codecName).append("() {\n")
+                .append("    }\n\n");
+
+        source.append("    /**\n")
+                .append("     * Reads every row of a table, straight from the message buffer it is a view over.\n")
+                .append("     *\n")
+                .append("     * @throws IllegalArgumentException if the table is missing a column\n")
+                .append("     * @throws IllegalStateException    if a column has the wrong type\n")
+                .append("     */\n")
+                .append("    public static java.util.List<").append(rowType).append("> read(final uk.co.palmr.joke.messages.FlipView flip) {\n");
+        for (final Column column : columns) {
+            source.append("        final uk.co.palmr.joke.messages.ColumnView ").append(local(column)).append(" = flip.column(\"").append(column.name()).append("\");\n");
+        }
+        source.append("        final int rowCount = flip.rowCount();\n")
+                .append("        final java.util.List<").append(rowType).append("> rows = new java.util.ArrayList<>(rowCount);\n")
+                .append("        for (int row = 0; row < rowCount; row++) {\n");
+        if (type.getKind() == ElementKind.RECORD) {
+            source.append("            rows.add(new ").append(rowType).append("(");
+            for (int idx = 0; idx < columns.size(); idx++) {
+                source.append(idx == 0 ? "\n                    " : ",\n                    ").append(read(columns.get(idx)));
+            }
+            source.append("));\n");
+        } else {
+            source.append("            final ").append(rowType).append(" value = new ").append(rowType).append("();\n");
+            for (final Column column : columns) {
+                source.append("            value.").append(column.accessor()).append(" = ").append(read(column)).append(";\n");
+            }
+            source.append("            rows.add(value);\n");
+        }
+        source.append("        }\n")
+                .append("        return rows;\n")
+                .append("    }\n\n");
+
+        source.append("    /**\n")
+                .append("     * Writes rows out as a table with a primitive array, or symbol array, per column.\n")
+                .append("     */\n")
+                .append("    public static uk.co.palmr.joke.types.Flip write(final java.util.Collection<? extends ").append(rowType).append("> rows) {\n")
+                .append("        final int rowCount = rows.size();\n");
+        for (final Column column : columns) {
+            source.append("        final ").append(column.type().javaType).append("[] ").append(local(column))
+                    .append(" = new ").append(column.type().javaType).append("[rowCount];\n");
+        }
+        source.append("        int row = 0;\n")
+                .append("        for (final ").append(rowType).append(" value : rows) {\n");
+        for (final Column column : columns) {
+            source.append("            ").append(local(column)).append("[row] = value.").append(column.accessor()).append(";\n");
+        }
+        source.append("            row++;\n")
+                .append("        }\n")
+                .append("        return new uk.co.palmr.joke.types.Flip(COLUMN_NAMES.toArray(new String[0]), new Object[]{");
+        for (int idx = 0; idx < columns.size(); idx++) {
+            source.append(idx == 0 ? "" : ", ").append(local(columns.get(idx)));
+        }
+        source.append("});\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? codecName : packageName + "." + codecName, type).openWriter()) {
+            writer.write(source.toString());
+        } catch (IOException e) {
+            error(type, "Could not write " + codecName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return name of the generated codec, with the names of any enclosing types as a prefix, e.g.
+     * {@code Outer_TradeRowCodec} for {@code Outer.Trade}
+     */
+    private static String codecName(final TypeElement type) {
+        String name = type.getSimpleName() + "RowCodec";
+        for (Element enclosing = type.getEnclosingElement(); enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            name = enclosing.getSimpleName() + "_" + name;
+        }
+        return name;
+    }
+
+    /**
+     * Locals are suffixed so a column can't shadow the method's own variables.
+     */
+    private static String local(final Column column) {
+        return column.name() + "Column";
+    }
+
+    private static String read(final Column column) {
+        return String.format(column.type().read, local(column));
+    }
+
+    private void error(final Element element, final String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
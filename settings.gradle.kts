@@ -1 +1,3 @@
 rootProject.name = "joke"
+
+include("processor")
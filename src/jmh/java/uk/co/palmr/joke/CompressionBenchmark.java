@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of encoding and decoding a trade table with and without IPC compression. The {@code wireBytes}
+ * counter shows how many bytes each variant puts on the network, to weigh the extra CPU against the link's bandwidth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+    private static final String[] SYMBOLS = {"VOD.L", "BARC.L", "HSBA.L", "LLOY.L", "BP.L"};
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private KdbProtocol kdbProtocol;
+    private Flip trades;
+    private ByteBuffer messageBuffer;
+    private ByteBuffer compressedBuffer;
+    private ByteBuffer uncompressedBuffer;
+    private KdbMessageHeader messageHeader;
+    private KdbMessageHeader compressedHeader;
+    private KdbMessageHeader uncompressedHeader;
+    private int length;
+    private int compressedLength;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireBytes {
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException, KdbException {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", true);
+
+        final String[] sym = new String[rows];
+        final long[] size = new long[rows];
+        final double[] price = new double[rows];
+        for (int idx = 0; idx < rows; idx++) {
+            sym[idx] = SYMBOLS[idx % SYMBOLS.length];
+            size[idx] = 100L * (1 + idx % 10);
+            price[idx] = 100.0 + (idx % 250) * 0.25;
+        }
+        trades = new Flip(new String[]{"sym", "size", "price"}, new Object[]{sym, size, price});
+
+        messageBuffer = ByteBuffer.allocate(64 * rows + 1024);
+        messageHeader = new KdbMessageHeader(messageBuffer);
+        length = kdbProtocol.serialiseMessage(MessageType.response, trades, messageHeader, messageBuffer);
+
+        compressedBuffer = ByteBuffer.allocate(length / 2);
+        uncompressedBuffer = ByteBuffer.allocate(length);
+        compressedHeader = new KdbMessageHeader(compressedBuffer);
+        uncompressedHeader = new KdbMessageHeader(uncompressedBuffer);
+        compressedLength = kdbProtocol.compress(messageBuffer, length, compressedBuffer);
+        if (compressedLength < 0) {
+            throw new IllegalStateException("Benchmark table did not compress");
+        }
+    }
+
+    @Benchmark
+    public int encodeUncompressed(final WireBytes wire) throws IOException, KdbException {
+        final int wireLength = kdbProtocol.serialiseMessage(MessageType.response, trades, messageHeader, messageBuffer);
+        wire.wireBytes += wireLength;
+        return wireLength;
+    }
+
+    @Benchmark
+    public int encodeCompressed(final WireBytes wire) throws IOException, KdbException {
+        kdbProtocol.serialiseMessage(MessageType.response, trades, messageHeader, messageBuffer);
+        final int wireLength = kdbProtocol.compress(messageBuffer, length, compressedBuffer);
+        wire.wireBytes += wireLength;
+        return wireLength;
+    }
+
+    @Benchmark
+    public Object decodeUncompressed() throws IOException, KdbException {
+        return kdbProtocol.deserialize(messageHeader, messageBuffer);
+    }
+
+    @Benchmark
+    public Object decodeCompressed() throws IOException, KdbException {
+        kdbProtocol.uncompress(compressedHeader, compressedBuffer, uncompressedBuffer);
+        return kdbProtocol.deserialize(uncompressedHeader, uncompressedBuffer);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.DataType;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures type dispatch over nested general lists of mixed atoms and vectors, the shape of most gateway responses.
+ * Scores are per element, so they show the dispatch cost of a single element.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DataTypeBenchmark {
+    private static final int ROWS = 1000;
+    private static final int ELEMENTS = ROWS * 6;
+
+    private KdbProtocol kdbProtocol;
+    private Object[] nestedList;
+    private Object[] elements;
+    private byte[] typeCodes;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws IOException, KdbException {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+
+        nestedList = new Object[ROWS];
+        elements = new Object[ELEMENTS];
+        for (int idx = 0; idx < ROWS; idx++) {
+            final Object[] row = {"SYM" + (idx % 50), (long) idx, idx * 0.5, LocalDate.of(2024, 1, 1).plusDays(idx % 30),
+                    new long[]{idx, idx + 1}, new Object[]{idx % 2 == 0, (int) idx}};
+            nestedList[idx] = row;
+            System.arraycopy(row, 0, elements, idx * row.length, row.length);
+        }
+
+        typeCodes = new byte[ELEMENTS];
+        for (int idx = 0; idx < ELEMENTS; idx++) {
+            typeCodes[idx] = DataType.getKdbType(elements[idx]).getTypeCode();
+        }
+
+        buffer = ByteBuffer.allocate(1 << 20);
+        encode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public void typeOfObject(final Blackhole blackhole) {
+        for (final Object element : elements) {
+            blackhole.consume(DataType.getKdbType(element));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public void typeOfCode(final Blackhole blackhole) {
+        for (final byte typeCode : typeCodes) {
+            blackhole.consume(DataType.getKdbType(typeCode));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public int encodeNestedList() throws IOException, KdbException {
+        return encode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public Object decodeNestedList() throws IOException, KdbException {
+        return kdbProtocol.deserialize(new KdbMessageHeader(buffer), buffer);
+    }
+
+    private int encode() throws IOException, KdbException {
+        return kdbProtocol.serialiseMessage(MessageType.response, nestedList, new KdbMessageHeader(buffer), buffer);
+    }
+}
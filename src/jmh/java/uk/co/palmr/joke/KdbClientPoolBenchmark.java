@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs 10k concurrent queries, a thread each, through a {@link KdbClientPool} against an embedded server which echoes
+ * every sync message back as its response. Each query blocks on the socket while it waits for its response, which on
+ * virtual threads unmounts the thread rather than tying up a carrier, so thousands can wait on a handful of pooled
+ * connections. The platform variant runs the same queries on a fixed pool of platform threads for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KdbClientPoolBenchmark {
+    private static final int QUERIES = 10_000;
+    private static final int PLATFORM_THREADS = 256;
+    private static final Duration BORROW_TIMEOUT = Duration.ofSeconds(30);
+
+    @Param({"virtual", "platform"})
+    public String threads;
+
+    @Param({"8", "64"})
+    public int connections;
+
+    private ServerSocketChannel server;
+    private KdbClientPool pool;
+
+    @Setup
+    public void setUp() throws IOException, KdbException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread.ofPlatform().daemon().start(this::acceptConnections);
+
+        final int port = server.socket().getLocalPort();
+        pool = new KdbClientPool(() -> new KdbClient("localhost", port, "user", "password"), connections, connections, KdbClientPool.DEFAULT_VALIDATION_INTERVAL);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int queries() throws InterruptedException, ExecutionException {
+        try (ExecutorService executor = "virtual".equals(threads)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(PLATFORM_THREADS)) {
+            final List<Future<Object>> responses = new ArrayList<>(QUERIES);
+            for (int idx = 0; idx < QUERIES; idx++) {
+                final String expr = Integer.toString(idx);
+                responses.add(executor.submit(() -> pool.execute(BORROW_TIMEOUT, kdbClient -> kdbClient.send(expr))));
+            }
+
+            int chars = 0;
+            for (final Future<Object> response : responses) {
+                chars += ((char[]) response.get()).length;
+            }
+            return chars;
+        }
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final SocketChannel connection = server.accept();
+                Thread.ofVirtual().start(() -> echo(connection));
+            }
+        } catch (IOException ignored) {
+            // server closed
+        }
+    }
+
+    /**
+     * Accepts the handshake, then answers every sync message with its own body.
+     */
+    private static void echo(final SocketChannel connection) {
+        try (connection) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE);
+            do {
+                buffer.clear().limit(1);
+                readFully(connection, buffer);
+            } while (buffer.get(0) != 0);
+            connection.write(buffer.clear().put((byte) IpcVersion.KDB_IPC_VERSION).flip());
+
+            while (true) {
+                buffer.clear().limit(KdbMessageHeader.SIZE);
+                readFully(connection, buffer);
+                buffer.order(buffer.get(0) == KdbMessageHeader.TRUE ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                buffer.limit(buffer.getInt(4));
+                readFully(connection, buffer);
+                buffer.put(1, MessageType.response.getTypeCode()).flip();
+                while (buffer.hasRemaining()) {
+                    connection.write(buffer);
+                }
+            }
+        } catch (IOException ignored) {
+            // client disconnected
+        }
+    }
+
+    private static void readFully(final SocketChannel connection, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) == -1) {
+                throw new IOException("end of stream");
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a {@link KdbServer} with thousands of open handles, each a {@link KdbClient} on its own virtual thread sending
+ * sync queries one after another, and measures the queries answered per second by a small pool of event loops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KdbServerBenchmark {
+    private static final int QUERIES = 20_000;
+
+    @Param({"1", "4"})
+    public int eventLoops;
+
+    @Param({"100", "2000"})
+    public int connections;
+
+    private KdbServer server;
+    private List<KdbClient> clients;
+
+    @Setup
+    public void setUp() throws IOException, KdbException {
+        server = new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), (username, message) -> message,
+                eventLoops, false, KdbClient.DEFAULT_STRING_ENCODING, KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT);
+        clients = new ArrayList<>(connections);
+        for (int idx = 0; idx < connections; idx++) {
+            clients.add(new KdbClient("localhost", server.getPort(), "user", "password"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (final KdbClient client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int queries() throws InterruptedException, ExecutionException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final List<Future<Integer>> sent = new ArrayList<>(connections);
+            for (int idx = 0; idx < connections; idx++) {
+                final KdbClient client = clients.get(idx);
+                final int queries = QUERIES / connections + (idx < QUERIES % connections ? 1 : 0);
+                sent.add(executor.submit(() -> query(client, queries)));
+            }
+
+            int chars = 0;
+            for (final Future<Integer> future : sent) {
+                chars += future.get();
+            }
+            return chars;
+        }
+    }
+
+    private static int query(final KdbClient client, final int queries) throws KdbException {
+        int chars = 0;
+        try {
+            for (int idx = 0; idx < queries; idx++) {
+                chars += ((char[]) client.send("til 10")).length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of large numeric vectors, which should run close to the speed of a memory copy. The
+ * {@code order} parameter covers both a buffer matching the platform's byte order and one which needs byte swapping.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class VectorBenchmark {
+    @Param({"1000000"})
+    public int elements;
+
+    @Param({"LITTLE_ENDIAN", "BIG_ENDIAN"})
+    public String order;
+
+    private KdbProtocol kdbProtocol;
+    private long[] longs;
+    private double[] doubles;
+    private ByteBuffer longBuffer;
+    private ByteBuffer doubleBuffer;
+
+    @Setup
+    public void setUp() throws IOException, KdbException {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        final ByteOrder byteOrder = "BIG_ENDIAN".equals(order) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        longs = new long[elements];
+        doubles = new double[elements];
+        for (int idx = 0; idx < elements; idx++) {
+            longs[idx] = idx * 31L;
+            doubles[idx] = idx * 0.25;
+        }
+
+        longBuffer = ByteBuffer.allocate(KdbMessageHeader.SIZE + 6 + elements * Long.BYTES).order(byteOrder);
+        doubleBuffer = ByteBuffer.allocate(KdbMessageHeader.SIZE + 6 + elements * Double.BYTES).order(byteOrder);
+        encode(longs, longBuffer);
+        encode(doubles, doubleBuffer);
+    }
+
+    @Benchmark
+    public int encodeLongs() throws IOException, KdbException {
+        return encode(longs, longBuffer);
+    }
+
+    @Benchmark
+    public int encodeDoubles() throws IOException, KdbException {
+        return encode(doubles, doubleBuffer);
+    }
+
+    @Benchmark
+    public Object decodeLongs() throws IOException, KdbException {
+        return kdbProtocol.deserialize(new KdbMessageHeader(longBuffer), longBuffer);
+    }
+
+    @Benchmark
+    public Object decodeDoubles() throws IOException, KdbException {
+        return kdbProtocol.deserialize(new KdbMessageHeader(doubleBuffer), doubleBuffer);
+    }
+
+    private int encode(final Object vector, final ByteBuffer buffer) throws IOException, KdbException {
+        buffer.clear().position(KdbMessageHeader.SIZE);
+        kdbProtocol.serialise(vector, buffer);
+        new KdbMessageHeader(buffer)
+                .setByteOrder(buffer.order())
+                .setMessageType(MessageType.response)
+                .setCompressed(false)
+                .setMessageSize(buffer.position());
+        return buffer.position();
+    }
+}
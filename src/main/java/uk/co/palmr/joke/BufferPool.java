@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A size-classed pool of message buffers, shared between any number of clients.
+ * <p>
+ * Buffers are handed out in power-of-two size classes from {@link #MIN_BUFFER_SIZE} up to {@link #MAX_POOLED_BUFFER_SIZE}.
+ * Requests larger than the biggest size class get an exact sized buffer which is never pooled. Buffers which sit in the
+ * pool for longer than the idle release period are dropped so the memory can be reclaimed.
+ * <p>
+ * The pool has no thread of its own, so idle buffers are only dropped when it is next used, on acquire or release, at
+ * most twice per idle release period so the common path doesn't walk every size class. A pool which falls quiet
+ * altogether keeps its buffers until {@link #trim()} is called, for example from a scheduled task.
+ */
+public class BufferPool {
+    public static final int MIN_BUFFER_SIZE = 4096;
+    public static final int MAX_POOLED_BUFFER_SIZE = 1 << 30;
+    /**
+     * Largest buffer which can be allocated, allowing for the array header on some VMs.
+     */
+    public static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+    public static final Duration DEFAULT_IDLE_RELEASE = Duration.ofSeconds(30);
+    public static final int DEFAULT_MAX_POOLED_PER_SIZE_CLASS = 4;
+
+    private static final int MIN_SIZE_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_BUFFER_SIZE) - MIN_SIZE_CLASS_SHIFT + 1;
+
+    /**
+     * Shared heap backed pool used by clients which are not given a pool of their own.
+     */
+    public static final BufferPool DEFAULT = new BufferPool();
+    /**
+     * Shared off-heap pool, for clients which want socket reads and writes to go straight to and from native memory.
+     */
+    public static final BufferPool DIRECT = new BufferPool(true, DEFAULT_IDLE_RELEASE, DEFAULT_MAX_POOLED_PER_SIZE_CLASS);
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASS_COUNT];
+    private final boolean direct;
+    private final long idleReleaseNanos;
+    private final int maxPooledPerSizeClass;
+    private volatile long lastTrimNanos = System.nanoTime();
+
+    /**
+     * Initializes a new heap backed {@link BufferPool} with the default idle release period.
+     */
+    public BufferPool() {
+        this(DEFAULT_IDLE_RELEASE, DEFAULT_MAX_POOLED_PER_SIZE_CLASS);
+    }
+
+    /**
+     * Initializes a new heap backed {@link BufferPool}.
+     *
+     * @param idleRelease           how long an oversized buffer may go unused before a client hands it back to the pool,
+     *                              and how long a pooled buffer may go unused before the pool drops it
+     * @param maxPooledPerSizeClass maximum number of free buffers retained for each size class
+     */
+    public BufferPool(final Duration idleRelease, final int maxPooledPerSizeClass) {
+        this(false, idleRelease, maxPooledPerSizeClass);
+    }
+
+    /**
+     * Initializes a new {@link BufferPool}.
+     * <p>
+     * Direct buffers let {@link java.nio.channels.SocketChannel} read and write without copying through the JDK's
+     * temporary direct buffer cache, at the cost of slower allocation. Since buffers are pooled, the allocation cost is
+     * only paid when a client first needs a buffer of a given size class.
+     *
+     * @param direct                allocate buffers off-heap with {@link ByteBuffer#allocateDirect(int)}
+     * @param idleRelease           how long an oversized buffer may go unused before a client hands it back to the pool,
+     *                              and how long a pooled buffer may go unused before the pool drops it
+     * @param maxPooledPerSizeClass maximum number of free buffers retained for each size class
+     */
+    public BufferPool(final boolean direct, final Duration idleRelease, final int maxPooledPerSizeClass) {
+        if (idleRelease.isNegative()) {
+            throw new IllegalArgumentException("Idle release period must not be negative: " + idleRelease);
+        }
+        this.direct = direct;
+        this.idleReleaseNanos = idleRelease.toNanos();
+        this.maxPooledPerSizeClass = maxPooledPerSizeClass;
+        for (int idx = 0; idx < SIZE_CLASS_COUNT; idx++) {
+            sizeClasses[idx] = new SizeClass();
+        }
+    }
+
+    /**
+     * Takes a cleared buffer with at least the requested capacity from the pool, allocating one if the pool is empty.
+     *
+     * @param minCapacity minimum number of bytes the buffer must hold
+     * @return a cleared buffer, in big endian order
+     */
+    public ByteBuffer acquire(final int minCapacity) {
+        if (minCapacity > MAX_POOLED_BUFFER_SIZE) {
+            return allocate(minCapacity);
+        }
+
+        final long now = System.nanoTime();
+        trimIfDue(now);
+        final int sizeClassIdx = sizeClassIndex(minCapacity);
+        final SizeClass sizeClass = sizeClasses[sizeClassIdx];
+        PooledBuffer pooled;
+        while ((pooled = sizeClass.free.poll()) != null) {
+            sizeClass.count.decrementAndGet();
+            if (!isExpired(pooled, now)) {
+                return pooled.buffer.clear().order(ByteOrder.BIG_ENDIAN);
+            }
+        }
+        return allocate(MIN_BUFFER_SIZE << sizeClassIdx);
+    }
+
+    /**
+     * Takes a cleared buffer from the size class above the given capacity, for when a message has outgrown its buffer.
+     *
+     * @param capacity capacity of the buffer which is too small
+     * @return a cleared buffer, in big endian order
+     * @throws BufferOverflowException if the buffer is already as large as a buffer can be
+     */
+    public ByteBuffer acquireLarger(final int capacity) {
+        if (capacity >= MAX_BUFFER_SIZE) {
+            throw new BufferOverflowException();
+        }
+        return acquire(capacity < MAX_POOLED_BUFFER_SIZE
+                ? capacity + 1
+                : MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Hands a buffer back to the pool. Buffers which don't match a size class or the pool's heap/off-heap mode, or which would take the size class over
+     * its retention limit, are left for the garbage collector.
+     *
+     * @param buffer buffer previously taken from {@link #acquire(int)}
+     */
+    public void release(final ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || capacity < MIN_BUFFER_SIZE || capacity > MAX_POOLED_BUFFER_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final SizeClass sizeClass = sizeClasses[sizeClassIndex(capacity)];
+        if (sizeClass.count.incrementAndGet() <= maxPooledPerSizeClass) {
+            sizeClass.free.offer(new PooledBuffer(buffer, now));
+        } else {
+            sizeClass.count.decrementAndGet();
+        }
+        trimIfDue(now);
+    }
+
+    /**
+     * @return true if this pool allocates off-heap buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return how long a buffer may go unused before it is handed back, in nanoseconds
+     */
+    public long getIdleReleaseNanos() {
+        return idleReleaseNanos;
+    }
+
+    /**
+     * @param capacity buffer capacity
+     * @return the number of free buffers currently retained in the size class for {@code capacity}
+     */
+    public int pooledCount(final int capacity) {
+        return capacity > MAX_POOLED_BUFFER_SIZE ? 0 : sizeClasses[sizeClassIndex(capacity)].count.get();
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct
+                ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Drops every buffer which has sat in the pool for longer than the idle release period. This happens anyway on
+     * acquire and release every half period, so only a pool which may go unused for a while needs it called.
+     */
+    public void trim() {
+        trim(System.nanoTime());
+    }
+
+    /**
+     * Trims the pool if it hasn't been trimmed for half the idle release period, so buffers are dropped no later than
+     * half a period after expiring without every acquire and release walking all the size classes.
+     */
+    private void trimIfDue(final long now) {
+        if (now - lastTrimNanos >= idleReleaseNanos / 2) {
+            trim(now);
+        }
+    }
+
+    private void trim(final long now) {
+        lastTrimNanos = now;
+        for (final SizeClass sizeClass : sizeClasses) {
+            PooledBuffer oldest;
+            while ((oldest = sizeClass.free.peek()) != null && isExpired(oldest, now)) {
+                if (sizeClass.free.remove(oldest)) {
+                    sizeClass.count.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(final PooledBuffer pooled, final long now) {
+        return now - pooled.releasedAtNanos >= idleReleaseNanos;
+    }
+
+    private static int sizeClassIndex(final int capacity) {
+        final int roundedShift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, MIN_BUFFER_SIZE) - 1);
+        return roundedShift - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    private record PooledBuffer(ByteBuffer buffer, long releasedAtNanos) {
+    }
+
+    private static class SizeClass {
+        private final Queue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 1998-2017 Kx Systems Inc.
+ * Modifications copyright (C) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * kdb+ IPC message compression.
+ * <p>
+ * A compressed message keeps the usual 8 byte header, with the compressed flag set and the size being the compressed
+ * size, followed by the uncompressed size of the whole message as an int. The body is a sequence of blocks, each led by
+ * a flag byte describing the next 8 items: a clear bit is a literal byte, a set bit is a back reference made of a hash
+ * byte, looked up in a table of the last position each pair of bytes was seen at, and a count of extra bytes to copy.
+ * <p>
+ * The hash table is reused between messages, so one instance must only be used by one thread at a time.
+ *
+ * @see <a href="https://code.kx.com/q/basics/ipc/#compression">IPC compression</a>
+ */
+final class IpcCompression {
+    /**
+     * Messages no larger than this are never worth compressing.
+     */
+    static final int MIN_COMPRESSIBLE_SIZE = 2000;
+
+    private static final int OFFSET_IS_COMPRESSED = 2;
+    private static final int OFFSET_MESSAGE_SIZE = 4;
+    private static final int OFFSET_UNCOMPRESSED_SIZE = KdbMessageHeader.SIZE;
+    private static final int COMPRESSED_BODY_START = OFFSET_UNCOMPRESSED_SIZE + Integer.BYTES;
+    private static final int MAX_MATCH_LENGTH = 255;
+
+    private final int[] positionByHash = new int[256];
+
+    /**
+     * Compresses a whole message, header included. Compression is abandoned if the result would be more than half the
+     * size of the original.
+     *
+     * @param src    buffer holding the uncompressed message from index 0, in the byte order of its header
+     * @param length length of the uncompressed message
+     * @param dst    buffer to write the compressed message to from index 0, with a capacity of at least
+     *               {@code length / 2}
+     * @return length of the compressed message, or -1 if the message didn't compress well enough
+     */
+    int compress(final ByteBuffer src, final int length, final ByteBuffer dst) {
+        Arrays.fill(positionByHash, 0);
+        dst.order(src.order());
+
+        final int dstLimit = length / 2;
+        for (int idx = 0; idx < OFFSET_MESSAGE_SIZE; idx++) {
+            dst.put(idx, src.get(idx));
+        }
+        dst.put(OFFSET_IS_COMPRESSED, KdbMessageHeader.TRUE);
+        dst.putInt(OFFSET_UNCOMPRESSED_SIZE, length);
+
+        int flagPos = COMPRESSED_BODY_START;
+        int d = flagPos;
+        int flags = 0;
+        int flagBit = 0;
+        int s = KdbMessageHeader.SIZE;
+        int pendingHash = 0;
+        int pendingPos = 0;
+        int hash = 0;
+
+        while (s < length) {
+            if (flagBit == 0) {
+                if (d > dstLimit - 17) {
+                    return -1;
+                }
+                flagBit = 1;
+                dst.put(flagPos, (byte) flags);
+                flagPos = d++;
+                flags = 0;
+            }
+
+            boolean literal = s > length - 3;
+            int p = 0;
+            if (!literal) {
+                hash = 0xff & (src.get(s) ^ src.get(s + 1));
+                p = positionByHash[hash];
+                literal = p == 0 || src.get(s) != src.get(p);
+            }
+
+            if (pendingPos > 0) {
+                positionByHash[pendingHash] = pendingPos;
+                pendingPos = 0;
+            }
+
+            if (literal) {
+                pendingHash = hash;
+                pendingPos = s;
+                dst.put(d++, src.get(s++));
+            } else {
+                positionByHash[hash] = s;
+                flags |= flagBit;
+                p += 2;
+                s += 2;
+                final int matchStart = s;
+                final int matchLimit = Math.min(s + MAX_MATCH_LENGTH, length);
+                while (src.get(p) == src.get(s) && ++s < matchLimit) {
+                    ++p;
+                }
+                dst.put(d++, (byte) hash);
+                dst.put(d++, (byte) (s - matchStart));
+            }
+            flagBit = (flagBit << 1) & 0xff;
+        }
+        dst.put(flagPos, (byte) flags);
+        dst.putInt(OFFSET_MESSAGE_SIZE, d);
+        return d;
+    }
+
+    /**
+     * @param src buffer holding a compressed message from index 0, in the byte order of its header
+     * @return length of the message once uncompressed, header included
+     */
+    static int uncompressedLength(final ByteBuffer src) {
+        return src.getInt(OFFSET_UNCOMPRESSED_SIZE);
+    }
+
+    /**
+     * Uncompresses a whole message, header included. The uncompressed header has the compressed flag cleared and the
+     * size set to the uncompressed size.
+     *
+     * @param src buffer holding the compressed message from index 0, in the byte order of its header
+     * @param dst buffer to write the uncompressed message to from index 0, with a capacity of at least
+     *            {@link #uncompressedLength(ByteBuffer)}
+     */
+    void uncompress(final ByteBuffer src, final ByteBuffer dst) {
+        Arrays.fill(positionByHash, 0);
+        dst.order(src.order());
+
+        final int length = uncompressedLength(src);
+        for (int idx = 0; idx < OFFSET_MESSAGE_SIZE; idx++) {
+            dst.put(idx, src.get(idx));
+        }
+        dst.put(OFFSET_IS_COMPRESSED, KdbMessageHeader.FALSE);
+        dst.putInt(OFFSET_MESSAGE_SIZE, length);
+
+        int s = KdbMessageHeader.SIZE;
+        int p = s;
+        int d = COMPRESSED_BODY_START;
+        int flags = 0;
+        int flagBit = 0;
+
+        while (s < length) {
+            if (flagBit == 0) {
+                flags = 0xff & src.get(d++);
+                flagBit = 1;
+            }
+
+            int extra = 0;
+            final boolean match = (flags & flagBit) != 0;
+            if (match) {
+                int r = positionByHash[0xff & src.get(d++)];
+                dst.put(s++, dst.get(r++));
+                dst.put(s++, dst.get(r++));
+                extra = 0xff & src.get(d++);
+                for (int m = 0; m < extra; m++) {
+                    dst.put(s + m, dst.get(r + m));
+                }
+            } else {
+                dst.put(s++, src.get(d++));
+            }
+
+            while (p < s - 1) {
+                positionByHash[(0xff & dst.get(p)) ^ (0xff & dst.get(p + 1))] = p++;
+            }
+            if (match) {
+                p = s += extra;
+            }
+            flagBit = (flagBit << 1) & 0xff;
+        }
+    }
+}
@@ -13,32 +13,45 @@
  */
 package uk.co.palmr.joke;
 
-import uk.co.palmr.joke.messages.AuthenticateResponse;
 import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.ColumnChunkHandler;
+import uk.co.palmr.joke.messages.ResultView;
+import uk.co.palmr.joke.messages.TableStreamDecoder;
+import uk.co.palmr.joke.types.DataType;
+import uk.co.palmr.joke.types.KdbCodec;
 import uk.co.palmr.joke.types.MessageType;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
-
-import static uk.co.palmr.joke.IpcVersion.KDB_IPC_VERSION;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class KdbClient implements AutoCloseable {
-    private static final String DEFAULT_STRING_ENCODING = "ISO-8859-1";
+    static final String DEFAULT_STRING_ENCODING = "ISO-8859-1";
     public static final int DEFAULT_BUFFER_SIZE = 4096;
+    /**
+     * Maximum number of sync requests {@link #sendBatch(List)} will have outstanding at once.
+     */
+    public static final int MAX_PIPELINED_REQUESTS = 64;
 
     private final SocketChannel socketChannel;
     private final KdbProtocol kdbProtocol;
-    private final ByteBuffer messageBuffer;
-    private final AuthenticateResponse authenticateResponse;
+    private final BufferPool bufferPool;
+    private final int initialCapacity;
     private final KdbMessageHeader kdbMessageHeader;
+    private final RequestOwner requestOwner = new RequestOwner();
+    private ResultView resultView;
+    private TableStreamDecoder tableStreamDecoder;
+    private ByteBuffer messageBuffer;
+    private long oversizedBufferLastUsedNanos;
 
     /**
      * Initializes a new {@link KdbClient} instance and connects to KDB+ over TCP.
@@ -64,25 +77,52 @@ public class KdbClient implements AutoCloseable {
      * @param allowCompression consider compression on outgoing messages (given uncompressed serialized data also has a
      *                         length greater than 2000 bytes and connection is not localhost)
      * @param stringEncoding   character encoding to use when [de]-serializing strings
-     * @param bufferSize       size of the data buffer
+     * @param bufferSize       initial size of the data buffer
      * @throws KdbException if access denied
      * @throws IOException  if an I/O error occurs.
      * @see <a href="https://code.kx.com/q/ref/ipc/#compression">IPC compression</a>
      */
     public KdbClient(final String hostname, final int port, final String username, final String password, final boolean allowCompression, final String stringEncoding, final int bufferSize) throws IOException, KdbException {
-        this.messageBuffer = ByteBuffer.allocate(bufferSize);
-        this.authenticateResponse = new AuthenticateResponse(messageBuffer);
+        this(hostname, port, username, password, allowCompression, stringEncoding, bufferSize, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Initializes a new {@link KdbClient} instance and connects to KDB+ over TCP, taking message buffers from the given
+     * pool. The message buffer grows on demand to fit larger messages, and is handed back to the pool in exchange for
+     * one of {@code bufferSize} once it has gone unused for the pool's idle release period. Pass
+     * {@link BufferPool#DIRECT}, or another off-heap pool, to have messages read and written straight to native memory.
+     *
+     * @param hostname         Host of remote q process
+     * @param port             Port of remote q process
+     * @param username         Username for remote authorization
+     * @param password         Password for remote authorization
+     * @param allowCompression consider compression on outgoing messages (given uncompressed serialized data also has a
+     *                         length greater than 2000 bytes and connection is not localhost)
+     * @param stringEncoding   character encoding to use when [de]-serializing strings
+     * @param bufferSize       initial size of the data buffer
+     * @param bufferPool       pool to take message buffers from
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbClient(final String hostname, final int port, final String username, final String password, final boolean allowCompression, final String stringEncoding, final int bufferSize, final BufferPool bufferPool) throws IOException, KdbException {
+        this.bufferPool = bufferPool;
+        this.messageBuffer = bufferPool.acquire(bufferSize);
+        this.initialCapacity = messageBuffer.capacity();
         this.kdbMessageHeader = new KdbMessageHeader(messageBuffer);
 
-        final var inetSocketAddress = new InetSocketAddress(hostname, port);
-        socketChannel = SocketChannel.open(inetSocketAddress);
-        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-        socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        try {
+            final var inetSocketAddress = new InetSocketAddress(hostname, port);
+            socketChannel = KdbConnector.open(inetSocketAddress);
 
-        final var compressionAllowed = allowCompression && !isLoopback(inetSocketAddress.getAddress());
-        kdbProtocol = new KdbProtocol(stringEncoding, compressionAllowed);
+            final var compressionAllowed = allowCompression && !KdbConnector.isLoopback(inetSocketAddress.getAddress());
+            kdbProtocol = new KdbProtocol(stringEncoding, compressionAllowed);
 
-        handshake(username, password, kdbProtocol);
+            KdbConnector.handshake(socketChannel, username, password, kdbProtocol, messageBuffer);
+        } catch (IOException | KdbException | RuntimeException e) {
+            bufferPool.release(messageBuffer);
+            messageBuffer = null;
+            throw e;
+        }
     }
 
     /**
@@ -95,9 +135,289 @@ public class KdbClient implements AutoCloseable {
      * @throws IOException  if an I/O error occurs.
      */
     public Object send(final String expr) throws KdbException, IOException {
-        assert KdbClientThreadAssertion.isSameThread(this) : KdbClientThreadAssertion.buildMessage(this);
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            return sendSync(expr.toCharArray());
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Sends an async message to the remote kdb+ process. This blocks only until the message has been written to the
+     * socket; no response is read, and any error evaluating the expression on the remote side is not reported back.
+     *
+     * @param expr The expression to send
+     * @throws KdbException if the expression cannot be serialised
+     * @throws IOException  if an I/O error occurs.
+     */
+    public void sendAsync(final String expr) throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            sendAsyncMessage(expr.toCharArray());
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Sends an async message holding an arbitrary object to the remote kdb+ process, for example a function call such as
+     * {@code new Object[]{".u.upd".toCharArray(), "trade", columns}}. This blocks only until the message has been written
+     * to the socket; no response is read.
+     *
+     * @param msg The object to send
+     * @throws KdbException if the object cannot be serialised
+     * @throws IOException  if an I/O error occurs.
+     */
+    public void sendAsync(final Object msg) throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            sendAsyncMessage(msg);
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Sends a batch of sync messages to the remote kdb+ process without waiting for each response before writing the
+     * next request, and blocks until every response has been read. kdb+ answers sync messages on a connection in the
+     * order they were sent, so responses are matched to requests by position; for a burst of small queries this costs
+     * roughly one network round trip instead of one per query.
+     * <p>
+     * At most {@link #MAX_PIPELINED_REQUESTS} requests are outstanding at once, so that a slow reader can't leave both
+     * sides blocked writing to each other. Every returned future is already complete, exceptionally with a
+     * {@link KdbException} if its request evaluated to an error, so one failed query doesn't hide the results of the
+     * others.
+     * <p>
+     * If a request can't be serialised, the responses to those already sent are still read, so the connection stays in
+     * step for the next request. If the connection fails, the client is closed.
+     *
+     * @param exprs The expressions to send
+     * @return a completed future for each expression's response, in the same order as {@code exprs}
+     * @throws KdbException if a request could not be serialised, in which case the futures of it and the requests after
+     *                      it are completed exceptionally
+     * @throws IOException  if an I/O error occurs, in which case any outstanding futures are completed exceptionally
+     */
+    public List<CompletableFuture<Object>> sendBatch(final List<String> exprs) throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            final List<CompletableFuture<Object>> responses = new ArrayList<>(exprs.size());
+            for (int idx = 0; idx < exprs.size(); idx++) {
+                responses.add(new CompletableFuture<>());
+            }
+
+            int sent = 0;
+            int received = 0;
+            try {
+                while (received < exprs.size()) {
+                    while (sent < exprs.size() && sent - received < MAX_PIPELINED_REQUESTS) {
+                        sendSyncMessage(exprs.get(sent).toCharArray());
+                        sent++;
+                    }
+                    readBatchResponse(responses.get(received++));
+                }
+            } catch (KdbException | RuntimeException e) {
+                try {
+                    while (received < sent) {
+                        readBatchResponse(responses.get(received++));
+                    }
+                } catch (IOException ioException) {
+                    e.addSuppressed(ioException);
+                    close();
+                }
+                failBatch(responses, received, e);
+                throw e;
+            } catch (IOException e) {
+                close();
+                failBatch(responses, received, e);
+                throw e;
+            }
+            return responses;
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Reads the next response into its future. A response which is an error, or can't be deserialised, has been read in
+     * full, so only fails its own future.
+     */
+    private void readBatchResponse(final CompletableFuture<Object> response) throws IOException {
+        try {
+            response.complete(readResponse());
+        } catch (KdbException | RuntimeException e) {
+            response.completeExceptionally(e);
+        }
+    }
+
+    private static void failBatch(final List<CompletableFuture<Object>> responses, final int from, final Exception cause) {
+        for (int idx = from; idx < responses.size(); idx++) {
+            responses.get(idx).completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Sends a sync message to the remote kdb+ process and returns a view over the response, read in place from the
+     * message buffer rather than deserialised. Only the parts of the response which are read are decoded, so picking a
+     * few columns out of a wide table avoids the cost and garbage of materialising the rest.
+     * <p>
+     * The view, and any {@link uk.co.palmr.joke.messages.FlipView} or {@link uk.co.palmr.joke.messages.ColumnView}
+     * taken from it, is reused by this client and only valid until its next request.
+     *
+     * @param expr The expression to send
+     * @return view over the response to {@code expr}
+     * @throws KdbException if request evaluation resulted in an error
+     * @throws IOException  if an I/O error occurs.
+     */
+    public ResultView sendForView(final String expr) throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            if (resultView == null) {
+                resultView = new ResultView(kdbProtocol.getCharset());
+            }
+            sendSyncMessage(expr.toCharArray());
+            receiveResponse();
+            return kdbProtocol.view(kdbMessageHeader, messageBuffer, resultView);
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Sends a sync message whose response is a table, and decodes the table as it arrives, handing each run of complete
+     * values of a column to {@code handler} in place. Only as much of the response as the message buffer holds is kept
+     * at once, so a response far larger than the buffer, such as a long historical query, is processed with bounded
+     * memory while it is still being transferred.
+     * <p>
+     * kdb+ compression works over the whole message, so a compressed response is read in full and uncompressed before
+     * it is decoded.
+     *
+     * @param expr    The expression to send
+     * @param handler handler for the table's column chunks
+     * @throws KdbException             if request evaluation resulted in an error
+     * @throws IllegalArgumentException if the response isn't a table of vectors and lists, in which case the rest of
+     *                                  the response is skipped
+     * @throws IOException              if an I/O error occurs.
+     */
+    public void sendStreaming(final String expr, final ColumnChunkHandler handler) throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            if (tableStreamDecoder == null) {
+                tableStreamDecoder = new TableStreamDecoder(kdbProtocol.getCharset());
+            }
+            sendSyncMessage(expr.toCharArray());
+
+            resetBuffer();
+            readFromKdb(KdbMessageHeader.SIZE + 1);
+            messageBuffer.order(kdbMessageHeader.getByteOrder());
+
+            assert kdbMessageHeader.getMessageType() == MessageType.response : "Expected response type message when sync message sent";
+
+            final int messageSize = kdbMessageHeader.getMessageSize();
+            if (kdbMessageHeader.isCompressed() || messageBuffer.get(KdbMessageHeader.SIZE) == DataType.Exception.getTypeCode()) {
+                ensureCapacity(messageSize);
+                readFromKdb(messageSize);
+                if (kdbMessageHeader.isCompressed()) {
+                    uncompressMessage();
+                }
+                if (messageBuffer.get(KdbMessageHeader.SIZE) == DataType.Exception.getTypeCode()) {
+                    kdbProtocol.deserialize(kdbMessageHeader, messageBuffer);
+                }
+                try {
+                    if (!tableStreamDecoder.reset(handler).decode(messageBuffer.limit(kdbMessageHeader.getMessageSize()).position(KdbMessageHeader.SIZE))) {
+                        throw new IllegalArgumentException("Table is truncated");
+                    }
+                } finally {
+                    resetBuffer();
+                }
+                return;
+            }
+
+            streamTable(handler, messageSize - messageBuffer.position());
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Decodes a table from the message buffer as the rest of the message is read into it, compacting the buffer behind
+     * the decoder as it goes. If the handler or decoder fails, the rest of the message is skipped so the connection is
+     * left at the start of the next; if the connection fails, the client is closed as there is no next message to find.
+     *
+     * @param unread number of bytes of the message not yet read
+     */
+    private void streamTable(final ColumnChunkHandler handler, final int unread) throws IOException {
+        int remaining = unread;
+        try {
+            tableStreamDecoder.reset(handler);
+            messageBuffer.flip().position(KdbMessageHeader.SIZE);
+            while (!tableStreamDecoder.decode(messageBuffer)) {
+                if (remaining == 0) {
+                    throw new IllegalArgumentException("Table is truncated");
+                }
+                messageBuffer.compact();
+                if (!messageBuffer.hasRemaining()) {
+                    ensureCapacity(messageBuffer.capacity() + 1);
+                }
+                remaining -= readSomeFromKdb(remaining);
+                messageBuffer.flip();
+            }
+            resetBuffer();
+        } catch (RuntimeException e) {
+            try {
+                skipFromKdb(remaining);
+                resetBuffer();
+            } catch (IOException ioException) {
+                e.addSuppressed(ioException);
+                close();
+            }
+            throw e;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads whatever is available, up to {@code limit} bytes, into the message buffer, blocking until at least one byte
+     * has been read.
+     *
+     * @return number of bytes read
+     */
+    private int readSomeFromKdb(final int limit) throws IOException {
+        messageBuffer.limit(Math.min(messageBuffer.capacity(), messageBuffer.position() + limit));
+        final int read = socketChannel.read(messageBuffer);
+        if (read < 0) {
+            throw new EOFException("end of stream");
+        }
+        return read;
+    }
+
+    /**
+     * Reads and discards the rest of a message, so the connection is left at the start of the next.
+     */
+    private void skipFromKdb(final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            messageBuffer.clear();
+            remaining -= readSomeFromKdb(remaining);
+        }
+    }
 
-        return sendSync(expr.toCharArray());
+    /**
+     * Blocks until the remote kdb+ process has processed every message sent before this call. kdb+ handles messages on
+     * a connection in order, so a round trip of an empty sync message acts as a barrier behind any async messages.
+     *
+     * @throws KdbException if the barrier message resulted in an error
+     * @throws IOException  if an I/O error occurs.
+     */
+    public void flush() throws KdbException, IOException {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            sendSync(new char[0]);
+        } finally {
+            assert requestOwner.release();
+        }
     }
 
     /**
@@ -114,35 +434,85 @@ public class KdbClient implements AutoCloseable {
     private Object sendSync(Object x) throws KdbException, IOException {
         sendSyncMessage(x);
 
+        return readResponse();
+    }
+
+    private Object readResponse() throws KdbException, IOException {
+        receiveResponse();
+
+        return kdbProtocol.deserialize(kdbMessageHeader, messageBuffer);
+    }
+
+    /**
+     * Reads a whole response message into the message buffer, uncompressing it if need be.
+     */
+    private void receiveResponse() throws IOException {
+        resetBuffer();
         readFromKdb(KdbMessageHeader.SIZE);
         messageBuffer.order(kdbMessageHeader.getByteOrder());
 
         assert kdbMessageHeader.getMessageType() == MessageType.response : "Expected response type message when sync message sent";
 
-        readFromKdb(kdbMessageHeader.getMessageSize());
+        final int messageSize = kdbMessageHeader.getMessageSize();
+        ensureCapacity(messageSize);
+        readFromKdb(messageSize);
+        if (kdbMessageHeader.isCompressed()) {
+            uncompressMessage();
+        }
+    }
 
-        return kdbProtocol.deserialize(kdbMessageHeader, messageBuffer);
+    private void sendAsyncMessage(final Object x) throws IOException, KdbException {
+        sendMessage(MessageType.async, x);
     }
 
     private void sendSyncMessage(final Object x) throws IOException, KdbException {
-        resetBuffer();
-        kdbProtocol.serialiseMessage(MessageType.sync, x, kdbMessageHeader, messageBuffer);
-        sendToKdb();
+        sendMessage(MessageType.sync, x);
     }
 
-    private void handshake(final String username, final String password, final KdbProtocol kdbProtocol) throws IOException, KdbException {
-        var usernamepassword = username + ":" + password;
-        kdbProtocol.writeStringToBuffer(usernamepassword + (char) KDB_IPC_VERSION, messageBuffer);
-        sendToKdb();
+    private void sendMessage(final MessageType messageType, final Object x) throws IOException, KdbException {
+        if (messageBuffer == null) {
+            throw new ClosedChannelException();
+        }
+        releaseIdleBuffer();
+        final int length = serialiseMessage(messageType, x);
+        if (kdbProtocol.shouldCompress(length)) {
+            sendCompressedToKdb(length);
+        } else {
+            sendToKdb();
+        }
+    }
 
-        resetBuffer();
+    /**
+     * Serialises a message into the message buffer, moving to larger buffers until it fits.
+     *
+     * @return length of the message
+     */
+    private int serialiseMessage(final MessageType messageType, final Object x) throws IOException, KdbException {
+        while (true) {
+            try {
+                final int length = kdbProtocol.serialiseMessage(messageType, x, kdbMessageHeader, messageBuffer);
+                if (length > initialCapacity) {
+                    oversizedBufferLastUsedNanos = System.nanoTime();
+                }
+                return length;
+            } catch (BufferOverflowException e) {
+                swapBuffer(bufferPool.acquireLarger(messageBuffer.capacity()));
+            }
+        }
+    }
 
+    private void sendCompressedToKdb(final int length) throws IOException {
+        final ByteBuffer compressed = bufferPool.acquire(length / 2);
         try {
-            readFromKdb(AuthenticateResponse.SIZE);
-            kdbProtocol.setVersion(Math.min(authenticateResponse.getVersion(), KDB_IPC_VERSION));
-        } catch (IOException e) {
-            close();
-            throw new KdbException("Access Denied");
+            final int compressedLength = kdbProtocol.compress(messageBuffer, length, compressed);
+            if (compressedLength < 0) {
+                sendToKdb();
+                return;
+            }
+            socketChannel.write(compressed.limit(compressedLength));
+            resetBuffer();
+        } finally {
+            bufferPool.release(compressed);
         }
     }
 
@@ -152,8 +522,6 @@ public class KdbClient implements AutoCloseable {
     }
 
     private void resetBuffer() {
-        messageBuffer.limit(messageBuffer.capacity());
-        messageBuffer.compact();
         messageBuffer.clear();
     }
 
@@ -167,32 +535,130 @@ public class KdbClient implements AutoCloseable {
         }
     }
 
-    private static boolean isLoopback(InetAddress addr) {
-        return addr.isAnyLocalAddress() || addr.isLoopbackAddress();
+    /**
+     * Swaps the message buffer for a larger one from the pool if it can't hold {@code capacity} bytes. Anything already
+     * in the buffer up to its position is carried over.
+     *
+     * @param capacity number of bytes the message buffer must be able to hold
+     */
+    private void ensureCapacity(final int capacity) {
+        if (capacity > initialCapacity) {
+            oversizedBufferLastUsedNanos = System.nanoTime();
+        }
+        if (messageBuffer.capacity() >= capacity) {
+            return;
+        }
+
+        final ByteBuffer largerBuffer = bufferPool.acquire(capacity).order(messageBuffer.order());
+        largerBuffer.put(0, messageBuffer, 0, messageBuffer.position())
+                .position(messageBuffer.position());
+        swapBuffer(largerBuffer);
+    }
+
+    /**
+     * Swaps the compressed message in the message buffer for its uncompressed form.
+     */
+    private void uncompressMessage() {
+        final int uncompressedLength = kdbProtocol.uncompressedLength(kdbMessageHeader, messageBuffer);
+        if (uncompressedLength > initialCapacity) {
+            oversizedBufferLastUsedNanos = System.nanoTime();
+        }
+        final ByteBuffer uncompressed = bufferPool.acquire(uncompressedLength);
+        kdbProtocol.uncompress(kdbMessageHeader, messageBuffer, uncompressed);
+        swapBuffer(uncompressed);
+    }
+
+    /**
+     * Hands the message buffer back to the pool if it has grown past its initial size for a large message and not been
+     * needed at that size for the pool's idle release period, swapping in one of the initial size.
+     * <p>
+     * This is checked before every send, so a client which goes quiet after a large response holds on to the grown
+     * buffer until it is next used. Its owner can call this, for example on a schedule or before parking the client, to
+     * let the memory go sooner. Like any request, it must not be called while another is in progress.
+     */
+    public void trimBuffer() {
+        assert requestOwner.claim() : requestOwner.conflictMessage();
+        try {
+            if (messageBuffer != null) {
+                releaseIdleBuffer();
+            }
+        } finally {
+            assert requestOwner.release();
+        }
+    }
+
+    /**
+     * Hands an oversized message buffer back to the pool once it has been unused for the pool's idle release period.
+     */
+    private void releaseIdleBuffer() {
+        if (messageBuffer.capacity() > initialCapacity
+                && System.nanoTime() - oversizedBufferLastUsedNanos > bufferPool.getIdleReleaseNanos()) {
+            swapBuffer(bufferPool.acquire(initialCapacity));
+        }
+    }
+
+    private void swapBuffer(final ByteBuffer newBuffer) {
+        bufferPool.release(messageBuffer);
+        messageBuffer = newBuffer;
+        kdbMessageHeader.wrap(messageBuffer);
+    }
+
+    /**
+     * Opts in to receiving temporal vectors as primitive arrays: timestamp and timespan vectors as
+     * {@link uk.co.palmr.joke.types.TemporalLongVector}, and month, date, minute, second and time vectors as
+     * {@link uk.co.palmr.joke.types.TemporalIntVector}. This saves an object per element on large temporal columns;
+     * elements can still be converted to {@code java.time} objects one at a time. Datetime vectors are unaffected.
+     *
+     * @param primitiveTemporalVectors true to keep temporal vectors primitive, false for arrays of objects (the default)
+     */
+    public void setPrimitiveTemporalVectors(final boolean primitiveTemporalVectors) {
+        kdbProtocol.setPrimitiveTemporalVectors(primitiveTemporalVectors);
+    }
+
+    /**
+     * Registers a codec for one of the application's own value classes, so values of the class and arrays of them can be
+     * sent directly, e.g. a {@code Price[]} as a real vector. Codecs should be registered before the client is used.
+     *
+     * @param codec  codec for the value class
+     * @param decode also decode atoms and vectors of the codec's kdb+ type with the codec, so that e.g. every real
+     *               vector in a response comes back as a {@code Price[]}
+     * @throws IllegalArgumentException if the codec's kdb+ type isn't a fixed width atom
+     */
+    public void registerCodec(final KdbCodec<?> codec, final boolean decode) {
+        kdbProtocol.registerCodec(codec, decode);
     }
 
     @Override
     public void close() throws IOException {
         socketChannel.close();
+        if (messageBuffer != null) {
+            bufferPool.release(messageBuffer);
+            messageBuffer = null;
+        }
     }
 
 
-    private static class KdbClientThreadAssertion {
-        static final Map<KdbClient, Thread> CLIENTS = new HashMap<>();
+    /**
+     * Debug check, run with assertions enabled, that a client has only one request in progress at a time. Ownership is
+     * claimed for the length of a request rather than tied to a thread, so a client can move between threads, as when
+     * virtual threads take turns with it through a {@link KdbClientPool}. No monitor is held, so nothing pins a virtual
+     * thread to its carrier while it blocks on the socket.
+     */
+    private static final class RequestOwner {
+        private final AtomicReference<Thread> owner = new AtomicReference<>();
 
-        protected static boolean isSameThread(final KdbClient kdbClient) {
-            synchronized (CLIENTS) {
-                final Thread currentThread = Thread.currentThread();
-                if (!CLIENTS.containsKey(kdbClient)) {
-                    CLIENTS.put(kdbClient, currentThread);
-                }
-                return CLIENTS.get(kdbClient).equals(currentThread);
-            }
+        boolean claim() {
+            return owner.compareAndSet(null, Thread.currentThread());
+        }
+
+        boolean release() {
+            owner.set(null);
+            return true;
         }
 
-        public static String buildMessage(final KdbClient kdbClient) {
-            return "KdbClient is not thread safe, but accessed by two threads.\n" +
-                    "First use thread: " + CLIENTS.get(kdbClient) + "\n" +
+        String conflictMessage() {
+            return "KdbClient is not thread safe, but used by two threads at once.\n" +
+                    "Request in progress on thread: " + owner.get() + "\n" +
                     "But now thread: " + Thread.currentThread();
         }
     }
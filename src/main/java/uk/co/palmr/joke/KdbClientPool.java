@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of connected and authenticated {@link KdbClient}s.
+ * <p>
+ * Each client is checked out to one thread at a time. Clients which have been idle for longer than the validation
+ * interval are pinged with an empty sync message before being handed out, and any which fail are closed and replaced.
+ */
+public class KdbClientPool implements AutoCloseable {
+    public static final Duration DEFAULT_VALIDATION_INTERVAL = Duration.ofSeconds(30);
+
+    /**
+     * Opens a new connection for the pool.
+     */
+    @FunctionalInterface
+    public interface Connector {
+        KdbClient connect() throws IOException, KdbException;
+    }
+
+    /**
+     * Work to run with a client checked out of the pool.
+     *
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    public interface ClientCallback<T> {
+        T apply(KdbClient kdbClient) throws IOException, KdbException;
+    }
+
+    /**
+     * Point in time view of the pool's usage.
+     *
+     * @param active         number of clients currently checked out
+     * @param idle           number of connected clients waiting in the pool
+     * @param borrowed       total number of successful checkouts
+     * @param evicted        total number of clients closed after failing or being invalidated
+     * @param totalWaitNanos total time spent waiting for a client to become available
+     * @param maxWaitNanos   longest time spent waiting for a client to become available
+     */
+    public record Metrics(int active, int idle, long borrowed, long evicted, long totalWaitNanos, long maxWaitNanos) {
+    }
+
+    private final Connector connector;
+    private final Semaphore available;
+    private final BlockingDeque<IdleClient> idleClients = new LinkedBlockingDeque<>();
+    /**
+     * Clients checked out, so each is only handed back once. {@link KdbClient} has identity equality.
+     */
+    private final Set<KdbClient> borrowedClients = ConcurrentHashMap.newKeySet();
+    private final long validationIntervalNanos;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Initializes a new {@link KdbClientPool}, connecting {@code initialSize} clients up front so the first requests
+     * don't pay for the connection and handshake.
+     *
+     * @param connector          opens new connections
+     * @param initialSize        number of clients to connect straight away
+     * @param maxSize            maximum number of clients, checked out or idle
+     * @param validationInterval how long a client may sit idle before it is pinged on checkout
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbClientPool(final Connector connector, final int initialSize, final int maxSize, final Duration validationInterval) throws IOException, KdbException {
+        if (initialSize > maxSize) {
+            throw new IllegalArgumentException("Initial size " + initialSize + " exceeds max size " + maxSize);
+        }
+        this.connector = connector;
+        this.available = new Semaphore(maxSize, true);
+        this.validationIntervalNanos = validationInterval.toNanos();
+
+        try {
+            for (int idx = 0; idx < initialSize; idx++) {
+                idleClients.offer(new IdleClient(connector.connect(), System.nanoTime()));
+            }
+        } catch (IOException | KdbException e) {
+            closed = true;
+            closeIdleClients();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks a client out of the pool, waiting for one to become available if all are in use.
+     *
+     * @param timeout how long to wait for a client
+     * @return a connected client, which must be handed back with {@link #release(KdbClient)} or
+     * {@link #invalidate(KdbClient)}
+     * @throws KdbException if access denied when opening a new connection
+     * @throws IOException  if no client became available in time, or an I/O error occurs
+     */
+    public KdbClient borrow(final Duration timeout) throws IOException, KdbException {
+        final long waitStart = System.nanoTime();
+        try {
+            if (!available.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new IOException("Timed out after " + timeout + " waiting for a pooled connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a pooled connection");
+        }
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            final KdbClient kdbClient = takeIdleOrConnect();
+            borrowedClients.add(kdbClient);
+            active.incrementAndGet();
+            borrowed.incrementAndGet();
+            return kdbClient;
+        } catch (IOException | KdbException | RuntimeException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a healthy client back to the pool.
+     *
+     * @param kdbClient client previously checked out with {@link #borrow(Duration)}
+     * @throws IllegalArgumentException if the client isn't checked out of this pool, e.g. it was already handed back
+     */
+    public void release(final KdbClient kdbClient) {
+        checkIn(kdbClient);
+        if (closed) {
+            closeQuietly(kdbClient);
+        } else {
+            final IdleClient idleClient = new IdleClient(kdbClient, System.nanoTime());
+            idleClients.offerFirst(idleClient);
+            // close() may have drained the idle clients between the check and the offer
+            if (closed && idleClients.remove(idleClient)) {
+                closeQuietly(kdbClient);
+            }
+        }
+        available.release();
+    }
+
+    /**
+     * Closes a client which is broken or in an unknown state, freeing its slot in the pool for a new connection.
+     *
+     * @param kdbClient client previously checked out with {@link #borrow(Duration)}
+     * @throws IllegalArgumentException if the client isn't checked out of this pool, e.g. it was already handed back
+     */
+    public void invalidate(final KdbClient kdbClient) {
+        checkIn(kdbClient);
+        evict(kdbClient);
+        available.release();
+    }
+
+    /**
+     * Runs {@code callback} with a client checked out of the pool. The client is handed back afterwards, or closed if
+     * the callback failed with an {@link IOException}.
+     *
+     * @param timeout  how long to wait for a client
+     * @param callback work to run with the client
+     * @param <T>      result type
+     * @return result of the callback
+     * @throws KdbException if the callback failed with a {@link KdbException}
+     * @throws IOException  if no client became available in time, or an I/O error occurs
+     */
+    public <T> T execute(final Duration timeout, final ClientCallback<T> callback) throws IOException, KdbException {
+        final KdbClient kdbClient = borrow(timeout);
+        final T result;
+        try {
+            result = callback.apply(kdbClient);
+        } catch (IOException | RuntimeException e) {
+            invalidate(kdbClient);
+            throw e;
+        } catch (KdbException e) {
+            release(kdbClient);
+            throw e;
+        }
+        release(kdbClient);
+        return result;
+    }
+
+    /**
+     * @return a snapshot of the pool's usage
+     */
+    public Metrics metrics() {
+        return new Metrics(active.get(), idleClients.size(), borrowed.get(), evicted.get(), totalWaitNanos.get(), maxWaitNanos.get());
+    }
+
+    /**
+     * Closes every idle client. Clients which are checked out are closed as they are handed back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        closeIdleClients();
+    }
+
+    private void closeIdleClients() {
+        IdleClient idleClient;
+        while ((idleClient = idleClients.pollFirst()) != null) {
+            closeQuietly(idleClient.kdbClient);
+        }
+    }
+
+    private void checkIn(final KdbClient kdbClient) {
+        if (!borrowedClients.remove(kdbClient)) {
+            throw new IllegalArgumentException("Client is not checked out of this pool");
+        }
+        active.decrementAndGet();
+    }
+
+    private KdbClient takeIdleOrConnect() throws IOException, KdbException {
+        if (closed) {
+            throw new IOException("Pool is closed");
+        }
+
+        IdleClient idleClient;
+        while ((idleClient = idleClients.pollFirst()) != null) {
+            if (System.nanoTime() - idleClient.idleSinceNanos < validationIntervalNanos || isHealthy(idleClient.kdbClient)) {
+                return idleClient.kdbClient;
+            }
+            evict(idleClient.kdbClient);
+        }
+        return connector.connect();
+    }
+
+    private boolean isHealthy(final KdbClient kdbClient) {
+        try {
+            kdbClient.flush();
+            return true;
+        } catch (IOException | KdbException e) {
+            return false;
+        }
+    }
+
+    private void evict(final KdbClient kdbClient) {
+        evicted.incrementAndGet();
+        closeQuietly(kdbClient);
+    }
+
+    private void recordWait(final long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    private static void closeQuietly(final KdbClient kdbClient) {
+        try {
+            kdbClient.close();
+        } catch (IOException ignored) {
+            // connection is being discarded
+        }
+    }
+
+    private record IdleClient(KdbClient kdbClient, long idleSinceNanos) {
+    }
+}
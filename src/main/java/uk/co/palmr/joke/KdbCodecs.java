@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.types.DataType;
+import uk.co.palmr.joke.types.KdbCodec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codecs registered with a {@link KdbProtocol}, looked up by the Java class they encode and the kdb+ type code they
+ * decode.
+ * <p>
+ * Not thread safe; codecs should be registered before the protocol is used.
+ */
+final class KdbCodecs {
+    private final Map<Class<?>, KdbCodec<?>> encoders = new HashMap<>();
+    /**
+     * Decoders indexed by the unsigned type code of both the atom type and its vector type.
+     */
+    private final KdbCodec<?>[] decoders = new KdbCodec<?>[256];
+    private boolean hasDecoders;
+
+    /**
+     * @param codec  codec to register, replacing any already registered for its Java type
+     * @param decode also decode the codec's kdb+ type, and vectors of it, with the codec
+     * @throws IllegalArgumentException if the codec's kdb+ type isn't a fixed width atom
+     */
+    void register(final KdbCodec<?> codec, final boolean decode) {
+        final DataType type = codec.getKdbType();
+        if (!type.isAtom() || type.getAtomicByteSize() <= 0) {
+            throw new IllegalArgumentException("Codecs must write a fixed width atom type, not " + type);
+        }
+        encoders.put(codec.getJavaType(), codec);
+        if (decode) {
+            decoders[type.getTypeCode() & 0xff] = codec;
+            decoders[-type.getTypeCode() & 0xff] = codec;
+            hasDecoders = true;
+        }
+    }
+
+    boolean hasEncoders() {
+        return !encoders.isEmpty();
+    }
+
+    boolean hasDecoders() {
+        return hasDecoders;
+    }
+
+    /**
+     * @param type class of a value, or component type of an array
+     * @return the codec for the class, or null if there is none
+     */
+    KdbCodec<?> encoder(final Class<?> type) {
+        return encoders.get(type);
+    }
+
+    /**
+     * @param typeCode type code of an atom or vector
+     * @return the codec decoding the type, or null if there is none
+     */
+    KdbCodec<?> decoder(final byte typeCode) {
+        return decoders[typeCode & 0xff];
+    }
+}
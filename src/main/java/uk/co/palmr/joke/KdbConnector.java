@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 1998-2017 Kx Systems Inc.
+ * Modifications copyright (C) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.AuthenticateResponse;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static uk.co.palmr.joke.IpcVersion.KDB_IPC_VERSION;
+
+/**
+ * Opens TCP connections to kdb+ and performs the login handshake, for the clients sharing this package.
+ */
+final class KdbConnector {
+    private KdbConnector() {
+    }
+
+    /**
+     * Opens a blocking socket connection to a remote q process.
+     *
+     * @param address address of remote q process
+     * @return connected socket channel
+     * @throws IOException if an I/O error occurs.
+     */
+    static SocketChannel open(final InetSocketAddress address) throws IOException {
+        final SocketChannel socketChannel = SocketChannel.open(address);
+        try {
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(socketChannel, e);
+            throw e;
+        }
+        return socketChannel;
+    }
+
+    /**
+     * Sends the username, password and capability byte, then reads back the capability the remote agreed to. The socket
+     * is closed if the login fails for any reason, including the remote rejecting it.
+     *
+     * @param socketChannel blocking socket connected to the remote q process
+     * @param username      Username for remote authorization
+     * @param password      Password for remote authorization
+     * @param kdbProtocol   protocol to encode the login with, which is set to the agreed version
+     * @param buffer        scratch buffer, which is left cleared
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    static void handshake(final SocketChannel socketChannel,
+                          final String username,
+                          final String password,
+                          final KdbProtocol kdbProtocol,
+                          final ByteBuffer buffer) throws IOException, KdbException {
+        try {
+            buffer.clear();
+            kdbProtocol.writeStringToBuffer(username + ":" + password + (char) KDB_IPC_VERSION, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                socketChannel.write(buffer);
+            }
+
+            buffer.clear().limit(AuthenticateResponse.SIZE);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (-1 == socketChannel.read(buffer)) {
+                        throw new EOFException("end of stream");
+                    }
+                }
+            } catch (IOException e) {
+                throw new KdbException("Access Denied");
+            }
+            kdbProtocol.setVersion(Math.min(new AuthenticateResponse(buffer).getVersion(), KDB_IPC_VERSION));
+            buffer.clear();
+        } catch (IOException | KdbException | RuntimeException e) {
+            closeAfterFailure(socketChannel, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a connection, or anything else, which is being abandoned because of an earlier failure. A failure to close
+     * is recorded against the original failure rather than replacing it.
+     *
+     * @param closeable resource to close, or null if it was never opened
+     * @param failure   the failure which is being thrown
+     */
+    static void closeAfterFailure(final Closeable closeable, final Exception failure) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    static boolean isLoopback(final InetAddress addr) {
+        return addr.isAnyLocalAddress() || addr.isLoopbackAddress();
+    }
+}
@@ -14,11 +14,13 @@
 package uk.co.palmr.joke;
 
 import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.ResultView;
 import uk.co.palmr.joke.types.*;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
@@ -48,7 +50,7 @@ public class KdbProtocol {
     /**
      * Representation of a null for a time atom within kdb
      */
-    protected static final LocalTime NULL_LOCAL_TIME = LocalTime.ofNanoOfDay(1);
+    public static final LocalTime NULL_LOCAL_TIME = LocalTime.ofNanoOfDay(1);
 
     protected static final int DAYS_BETWEEN_1970_2000 = 10957;
     protected static final long MILLS_IN_DAY = 86400000L;
@@ -58,14 +60,22 @@ public class KdbProtocol {
     /**
      * The character encoding to use when [de]-serializing strings.
      */
-    private final String stringEncoding;
+    private final StringCodec stringCodec;
 
     private final boolean allowCompression;
 
+    private final IpcCompression ipcCompression = new IpcCompression();
+
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    private final KdbCodecs codecs = new KdbCodecs();
+
     private int version = IpcVersion.KDB_IPC_VERSION;
 
+    private boolean primitiveTemporalVectors;
+
     protected KdbProtocol(final String stringEncoding, final boolean allowCompression) {
-        this.stringEncoding = stringEncoding;
+        this.stringCodec = new StringCodec(stringEncoding);
         this.allowCompression = allowCompression;
     }
 
@@ -74,33 +84,136 @@ public class KdbProtocol {
     }
 
     /**
-     * Serialize and write the data to the registered connection
+     * @return character set strings are encoded with
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     */
+    protected Charset getCharset() throws UnsupportedEncodingException {
+        return stringCodec.charset();
+    }
+
+    /**
+     * @param primitiveTemporalVectors deserialise timestamp and timespan vectors as {@link TemporalLongVector}, and
+     *                                 month, date, minute, second and time vectors as {@link TemporalIntVector}, rather
+     *                                 than as arrays of objects
+     */
+    protected void setPrimitiveTemporalVectors(final boolean primitiveTemporalVectors) {
+        this.primitiveTemporalVectors = primitiveTemporalVectors;
+    }
+
+    /**
+     * @param codec  codec for an application's value class
+     * @param decode also decode the codec's kdb+ type, and vectors of it, with the codec
+     */
+    protected void registerCodec(final KdbCodec<?> codec, final boolean decode) {
+        codecs.register(codec, decode);
+    }
+
+    /**
+     * Serialize the data into the message buffer in a single pass, back-patching the message size into the header once
+     * the whole message has been written.
      *
      * @param msgType          type of the ipc message
      * @param msg              object to serialise
      * @param kdbMessageHeader flyweight kdb message header
      * @param messageBuffer    buffer to serialise data into
-     * @throws IOException should not throw
+     * @return length of the message, which is left between index 0 and the buffer's position
+     * @throws BufferOverflowException if the message doesn't fit in the buffer, in which case it should be retried with
+     *                                 a larger buffer
+     * @throws IOException             should not throw
      */
-    protected void serialiseMessage(final MessageType msgType,
-                                    final Object msg,
-                                    final KdbMessageHeader kdbMessageHeader,
-                                    final ByteBuffer messageBuffer) throws IOException, KdbException {
-        int length = KdbMessageHeader.SIZE + lengthOfObject(msg);
-
-        messageBuffer.limit(length);
+    protected int serialiseMessage(final MessageType msgType,
+                                   final Object msg,
+                                   final KdbMessageHeader kdbMessageHeader,
+                                   final ByteBuffer messageBuffer) throws IOException, KdbException {
+        messageBuffer.clear();
+        if (messageBuffer.capacity() < KdbMessageHeader.SIZE) {
+            throw new BufferOverflowException();
+        }
 
         kdbMessageHeader.setByteOrder(ByteOrder.BIG_ENDIAN)
                 .setMessageType(msgType)
-                .setMessageSize(length);
+                .setCompressed(false);
 
         messageBuffer.position(KdbMessageHeader.SIZE);
         serialise(msg, messageBuffer);
-        if (allowCompression && messageBuffer.position() > 2000) {
-            throw new UnsupportedEncodingException("Not yet implemented compression");
-//            kdbMessageHeader.setIsCompressed(true);
-//            compress();
+
+        final int length = messageBuffer.position();
+        kdbMessageHeader.setMessageSize(length);
+        return length;
+    }
+
+    /**
+     * Serialize an error response, which q signals as {@code 'error} to the caller.
+     *
+     * @param error            text of the error
+     * @param kdbMessageHeader flyweight kdb message header
+     * @param messageBuffer    buffer to serialise the error into
+     * @return length of the message, which is left between index 0 and the buffer's position
+     * @throws BufferOverflowException if the message doesn't fit in the buffer
+     */
+    protected int serialiseError(final String error,
+                                 final KdbMessageHeader kdbMessageHeader,
+                                 final ByteBuffer messageBuffer) throws UnsupportedEncodingException {
+        messageBuffer.clear();
+        if (messageBuffer.capacity() < KdbMessageHeader.SIZE) {
+            throw new BufferOverflowException();
         }
+
+        kdbMessageHeader.setByteOrder(ByteOrder.BIG_ENDIAN)
+                .setMessageType(MessageType.response)
+                .setCompressed(false);
+
+        messageBuffer.position(KdbMessageHeader.SIZE);
+        messageBuffer.put(DataType.Exception.getTypeCode());
+        writeStringToBuffer(error, messageBuffer);
+
+        final int length = messageBuffer.position();
+        kdbMessageHeader.setMessageSize(length);
+        return length;
+    }
+
+    /**
+     * @param length length of a serialised message
+     * @return true if the message should be compressed before it is sent
+     */
+    protected boolean shouldCompress(final int length) {
+        return allowCompression && length > IpcCompression.MIN_COMPRESSIBLE_SIZE;
+    }
+
+    /**
+     * Compresses a serialised message.
+     *
+     * @param messageBuffer buffer holding the serialised message from index 0
+     * @param length        length of the serialised message
+     * @param target        buffer to write the compressed message to, with a capacity of at least {@code length / 2}
+     * @return length of the compressed message, or -1 if the message didn't compress well enough to be worth sending
+     * compressed
+     */
+    protected int compress(final ByteBuffer messageBuffer, final int length, final ByteBuffer target) {
+        return ipcCompression.compress(messageBuffer, length, target);
+    }
+
+    /**
+     * @param kdbMessageHeader flyweight header of a compressed message
+     * @param messageBuffer    buffer holding the compressed message from index 0
+     * @return length of the message once uncompressed
+     */
+    protected int uncompressedLength(final KdbMessageHeader kdbMessageHeader, final ByteBuffer messageBuffer) {
+        messageBuffer.order(kdbMessageHeader.getByteOrder());
+        return IpcCompression.uncompressedLength(messageBuffer);
+    }
+
+    /**
+     * Uncompresses a message, ready for {@link #deserialize(KdbMessageHeader, ByteBuffer)} against {@code target}.
+     *
+     * @param kdbMessageHeader flyweight header of the compressed message
+     * @param messageBuffer    buffer holding the compressed message from index 0
+     * @param target           buffer to write the uncompressed message to, with a capacity of at least
+     *                         {@link #uncompressedLength(KdbMessageHeader, ByteBuffer)}
+     */
+    protected void uncompress(final KdbMessageHeader kdbMessageHeader, final ByteBuffer messageBuffer, final ByteBuffer target) {
+        messageBuffer.order(kdbMessageHeader.getByteOrder());
+        ipcCompression.uncompress(messageBuffer, target);
     }
 
     protected Object deserialize(final KdbMessageHeader kdbMessageHeader, final ByteBuffer messageBuffer) throws UnsupportedEncodingException, KdbException {
@@ -108,12 +221,33 @@ public class KdbProtocol {
 
         messageBuffer.position(KdbMessageHeader.SIZE);
         if (kdbMessageHeader.isCompressed()) {
-            throw new UnsupportedEncodingException("Not yet implemented compression");
-//            uncompress();
+            throw new UnsupportedEncodingException("Compressed message must be uncompressed before it is deserialised");
         }
         return deserialiseResponseMessage(messageBuffer); // deserialize the message
     }
 
+    /**
+     * Points a view at the body of a response message, to read it in place instead of deserialising it.
+     *
+     * @param kdbMessageHeader flyweight header of the response
+     * @param messageBuffer    buffer holding the uncompressed response from index 0
+     * @param resultView       view to point at the response
+     * @return {@code resultView}
+     * @throws KdbException if the response is an error
+     */
+    protected ResultView view(final KdbMessageHeader kdbMessageHeader, final ByteBuffer messageBuffer, final ResultView resultView) throws UnsupportedEncodingException, KdbException {
+        messageBuffer.order(kdbMessageHeader.getByteOrder());
+
+        if (kdbMessageHeader.isCompressed()) {
+            throw new UnsupportedEncodingException("Compressed message must be uncompressed before it is viewed");
+        }
+        if (messageBuffer.get(KdbMessageHeader.SIZE) == DataType.Exception.getTypeCode()) {
+            messageBuffer.position(KdbMessageHeader.SIZE + 1);
+            throw new KdbException(deserializeString(messageBuffer));
+        }
+        return resultView.wrap(messageBuffer, KdbMessageHeader.SIZE);
+    }
+
     /**
      * Write String to serialization buffer
      *
@@ -121,13 +255,7 @@ public class KdbProtocol {
      * @throws UnsupportedEncodingException If there is an issue with the registered encoding
      */
     protected void writeStringToBuffer(final String string, final ByteBuffer buffer) throws UnsupportedEncodingException {
-        if (string != null && !string.isEmpty()) {
-            final var stringBytes = encodeString(string);
-            for (int idx = 0; idx < stringBytes.length && stringBytes[idx] != NULL_BYTE; idx++) {
-                buffer.put(stringBytes[idx]);
-            }
-        }
-        buffer.put(NULL_BYTE);
+        stringCodec.writeSymbol(string, buffer);
     }
 
     /**
@@ -139,6 +267,9 @@ public class KdbProtocol {
      */
     protected void serialise(final Object obj, final ByteBuffer messageBuffer) throws UnsupportedEncodingException, KdbException {
         final DataType type = DataType.getKdbType(obj);
+        if (type == DataType.List && codecs.hasEncoders() && serialiseWithCodec(obj, messageBuffer)) {
+            return;
+        }
         messageBuffer.put(type.getTypeCode());
         if (type.isAtom()) {
             switch (type) {
@@ -207,6 +338,16 @@ public class KdbProtocol {
         }
 
         messageBuffer.put(NULL_BYTE);
+        if (obj instanceof TableBuilder) {
+            serialiseTable((TableBuilder) obj, messageBuffer);
+            return;
+        }
+        if (obj instanceof TableBuilder.ColumnList) {
+            final TableBuilder table = ((TableBuilder.ColumnList) obj).table();
+            messageBuffer.putInt(table.columnCount());
+            serialiseColumns(table, messageBuffer);
+            return;
+        }
         if (type == DataType.Flip) {
             final Flip r = (Flip) obj;
             messageBuffer.put(DataType.Dict.getTypeCode());
@@ -215,16 +356,20 @@ public class KdbProtocol {
             return;
         }
 
+        if (type == DataType.CharArray) {
+            // the count is of encoded bytes, so back-patched once the chars are written rather than encoding them twice
+            final int countPosition = messageBuffer.position();
+            messageBuffer.putInt(0);
+            stringCodec.writeChars((char[]) obj, messageBuffer);
+            messageBuffer.putInt(countPosition, messageBuffer.position() - countPosition - Integer.BYTES);
+            return;
+        }
+
         final int numElements = elementCount(obj);
 
         serialise(numElements, messageBuffer);
 
-        if (type == DataType.CharArray) {
-            byte[] b = new String((char[]) obj).getBytes(stringEncoding);
-            for (final byte character : b) {
-                serialise(character, messageBuffer);
-            }
-        } else {
+        if (!serialisePrimitiveArray(type, obj, messageBuffer)) {
             for (int idx = 0; idx < numElements; idx++) {
                 switch (type) {
                     case List:
@@ -236,24 +381,6 @@ public class KdbProtocol {
                     case UUIDArray:
                         serialise(((UUID[]) obj)[idx], messageBuffer);
                         break;
-                    case ByteArray:
-                        serialise(((byte[]) obj)[idx], messageBuffer);
-                        break;
-                    case ShortArray:
-                        serialise(((short[]) obj)[idx], messageBuffer);
-                        break;
-                    case IntArray:
-                        serialise(((int[]) obj)[idx], messageBuffer);
-                        break;
-                    case LongArray:
-                        serialise(((long[]) obj)[idx], messageBuffer);
-                        break;
-                    case FloatArray:
-                        serialise(((float[]) obj)[idx], messageBuffer);
-                        break;
-                    case DoubleArray:
-                        serialise(((double[]) obj)[idx], messageBuffer);
-                        break;
                     case StringArray:
                         serialise(((String[]) obj)[idx], messageBuffer);
                         break;
@@ -288,6 +415,139 @@ public class KdbProtocol {
         }
     }
 
+    /**
+     * Writes a table straight from the storage of a builder's columns, following the flip's type and attribute bytes.
+     * Numeric columns are copied in bulk.
+     */
+    private void serialiseTable(final TableBuilder table, final ByteBuffer messageBuffer) throws UnsupportedEncodingException {
+        final int columnCount = table.columnCount();
+
+        messageBuffer.put(DataType.Dict.getTypeCode())
+                .put(DataType.StringArray.getTypeCode())
+                .put(NULL_BYTE)
+                .putInt(columnCount);
+        for (int idx = 0; idx < columnCount; idx++) {
+            stringCodec.writeSymbol(table.column(idx).getName(), messageBuffer);
+        }
+
+        messageBuffer.put(DataType.List.getTypeCode())
+                .put(NULL_BYTE)
+                .putInt(columnCount);
+        serialiseColumns(table, messageBuffer);
+    }
+
+    /**
+     * Writes the vectors of a builder's columns, one after another.
+     */
+    private void serialiseColumns(final TableBuilder table, final ByteBuffer messageBuffer) throws UnsupportedEncodingException {
+        final int rowCount = table.rowCount();
+        for (int idx = 0; idx < table.columnCount(); idx++) {
+            final TableBuilder.Column column = table.column(idx);
+            messageBuffer.put(column.getType().getTypeCode())
+                    .put(NULL_BYTE)
+                    .putInt(rowCount);
+            final int start = messageBuffer.position();
+            if (column instanceof TableBuilder.LongColumn) {
+                if (version < 1 && column.getType() != DataType.LongArray) {
+                    throw new RuntimeException(column.getType() + " not valid pre kdb+2.6");
+                }
+                messageBuffer.asLongBuffer().put(((TableBuilder.LongColumn) column).values(), 0, rowCount);
+                messageBuffer.position(start + rowCount * Long.BYTES);
+            } else if (column instanceof TableBuilder.IntColumn) {
+                messageBuffer.asIntBuffer().put(((TableBuilder.IntColumn) column).values(), 0, rowCount);
+                messageBuffer.position(start + rowCount * Integer.BYTES);
+            } else if (column instanceof TableBuilder.DoubleColumn) {
+                messageBuffer.asDoubleBuffer().put(((TableBuilder.DoubleColumn) column).values(), 0, rowCount);
+                messageBuffer.position(start + rowCount * Double.BYTES);
+            } else {
+                final TableBuilder.SymbolColumn symbols = (TableBuilder.SymbolColumn) column;
+                final int[] indices = symbols.indices();
+                for (int row = 0; row < rowCount; row++) {
+                    stringCodec.writeSymbol(symbols.symbol(indices[row]), messageBuffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a value, or an array of values, of a class with a registered codec. The codec is looked up once for an
+     * array, not once per element.
+     *
+     * @return false if there is no codec for the class, leaving it to be serialised as a general list
+     */
+    @SuppressWarnings("unchecked")
+    private boolean serialiseWithCodec(final Object obj, final ByteBuffer messageBuffer) {
+        final Class<?> javaType = obj.getClass();
+        final KdbCodec<Object> codec = (KdbCodec<Object>) codecs.encoder(javaType.isArray() ? javaType.getComponentType() : javaType);
+        if (codec == null) {
+            return false;
+        }
+        final byte typeCode = codec.getKdbType().getTypeCode();
+        if (!javaType.isArray()) {
+            messageBuffer.put(typeCode);
+            codec.encode(obj, messageBuffer);
+            return true;
+        }
+        final Object[] values = (Object[]) obj;
+        messageBuffer.put((byte) -typeCode)
+                .put(NULL_BYTE)
+                .putInt(values.length);
+        for (final Object value : values) {
+            codec.encode(value, messageBuffer);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the elements of a numeric or primitive temporal vector with a single bulk copy through a typed view of the buffer, rather than
+     * one put per element. Views share the buffer's byte order, so the result is the same as the element-wise path.
+     *
+     * @return false if the type isn't a numeric vector, leaving it to the element-wise path
+     */
+    private boolean serialisePrimitiveArray(final DataType type, final Object obj, final ByteBuffer messageBuffer) {
+        final int start = messageBuffer.position();
+        if (obj instanceof TemporalLongVector) {
+            if (version < 1) {
+                throw new RuntimeException(type + " not valid pre kdb+2.6");
+            }
+            messageBuffer.asLongBuffer().put(((TemporalLongVector) obj).values);
+            messageBuffer.position(start + ((TemporalLongVector) obj).values.length * Long.BYTES);
+            return true;
+        }
+        if (obj instanceof TemporalIntVector) {
+            messageBuffer.asIntBuffer().put(((TemporalIntVector) obj).values);
+            messageBuffer.position(start + ((TemporalIntVector) obj).values.length * Integer.BYTES);
+            return true;
+        }
+        switch (type) {
+            case ByteArray:
+                messageBuffer.put((byte[]) obj);
+                return true;
+            case ShortArray:
+                messageBuffer.asShortBuffer().put((short[]) obj);
+                messageBuffer.position(start + ((short[]) obj).length * Short.BYTES);
+                return true;
+            case IntArray:
+                messageBuffer.asIntBuffer().put((int[]) obj);
+                messageBuffer.position(start + ((int[]) obj).length * Integer.BYTES);
+                return true;
+            case LongArray:
+                messageBuffer.asLongBuffer().put((long[]) obj);
+                messageBuffer.position(start + ((long[]) obj).length * Long.BYTES);
+                return true;
+            case FloatArray:
+                messageBuffer.asFloatBuffer().put((float[]) obj);
+                messageBuffer.position(start + ((float[]) obj).length * Float.BYTES);
+                return true;
+            case DoubleArray:
+                messageBuffer.asDoubleBuffer().put((double[]) obj);
+                messageBuffer.position(start + ((double[]) obj).length * Double.BYTES);
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private void serialise(boolean bool, final ByteBuffer messageBuffer) {
         messageBuffer.put((byte) (bool ? 1 : 0));
     }
@@ -330,13 +590,7 @@ public class KdbProtocol {
     }
 
     private void serialise(String s, final ByteBuffer messageBuffer) throws UnsupportedEncodingException {
-        if (s != null) {
-            byte[] encodedStringChars = s.getBytes(stringEncoding);
-            for (int idx = 0; idx < encodedStringChars.length && encodedStringChars[idx] != NULL_BYTE; idx++) {
-                messageBuffer.put(encodedStringChars[idx]);
-            }
-        }
-        messageBuffer.put(NULL_BYTE);
+        stringCodec.writeSymbol(s, messageBuffer);
     }
 
     private void serialise(Instant p, final ByteBuffer messageBuffer) {
@@ -367,7 +621,7 @@ public class KdbProtocol {
     private void serialise(LocalDateTime z, final ByteBuffer messageBuffer) {
         serialise(z == LocalDateTime.MIN
                         ? NULL_FLOAT
-                        : (z.toInstant(UTC).toEpochMilli() - MILLS_BETWEEN_1970_2000) / 8.64e7,
+                        : (z.toEpochSecond(UTC) * 1000 + z.getNano() / 1000000 - MILLS_BETWEEN_1970_2000) / 8.64e7,
                 messageBuffer);
     }
 
@@ -399,17 +653,19 @@ public class KdbProtocol {
      * @return Deserialized string using registered encoding
      */
     private String deserializeString(final ByteBuffer messageBuffer) throws UnsupportedEncodingException {
-        final var startPos = messageBuffer.position();
-        while (messageBuffer.get() != NULL_BYTE) {
-            Thread.onSpinWait();
+        final int startPos = messageBuffer.position();
+        int endPos = startPos;
+        int hash = 0;
+        byte b;
+        while ((b = messageBuffer.get(endPos)) != NULL_BYTE) {
+            hash = SymbolTable.hash(hash, b);
+            endPos++;
         }
-        final var endPos = messageBuffer.position();
-        final var stringBytes = new byte[endPos - startPos - 1];
-        messageBuffer.get(startPos, stringBytes);
+        messageBuffer.position(endPos + 1);
 
-        return (startPos == endPos - 1)
+        return (startPos == endPos)
                 ? ""
-                : new String(stringBytes, stringEncoding);
+                : symbolTable.intern(messageBuffer, startPos, endPos - startPos, hash, stringCodec);
     }
 
     /**
@@ -421,7 +677,14 @@ public class KdbProtocol {
     protected Object deserialiseResponseMessage(final ByteBuffer messageBuffer) throws UnsupportedEncodingException, KdbException {
         int i = 0;
         int n;
-        DataType type = DataType.getKdbType(messageBuffer.get());
+        final byte typeCode = messageBuffer.get();
+        if (codecs.hasDecoders()) {
+            final KdbCodec<?> codec = codecs.decoder(typeCode);
+            if (codec != null) {
+                return deserialiseWithCodec(codec, typeCode, messageBuffer);
+            }
+        }
+        DataType type = DataType.getKdbType(typeCode);
         if (type.isAtom())
             switch (type) {
                 case Boolean:
@@ -491,6 +754,12 @@ public class KdbProtocol {
             return new Flip((Dict) deserialiseResponseMessage(messageBuffer));
         }
         n = messageBuffer.getInt();
+        if (primitiveTemporalVectors) {
+            final Object temporalVector = deserialiseTemporalVector(type, n, messageBuffer);
+            if (temporalVector != null) {
+                return temporalVector;
+            }
+        }
         switch (type) {
             case List:
                 Object[] objArr = new Object[n];
@@ -509,36 +778,35 @@ public class KdbProtocol {
                 return uuidArr;
             case ByteArray:
                 byte[] byteArr = new byte[n];
-                for (; i < n; i++)
-                    byteArr[i] = messageBuffer.get();
+                messageBuffer.get(byteArr);
                 return byteArr;
             case ShortArray:
                 short[] shortArr = new short[n];
-                for (; i < n; i++)
-                    shortArr[i] = deserialiseShort(messageBuffer);
+                messageBuffer.asShortBuffer().get(shortArr);
+                messageBuffer.position(messageBuffer.position() + n * Short.BYTES);
                 return shortArr;
             case IntArray:
                 int[] intArr = new int[n];
-                for (; i < n; i++)
-                    intArr[i] = messageBuffer.getInt();
+                messageBuffer.asIntBuffer().get(intArr);
+                messageBuffer.position(messageBuffer.position() + n * Integer.BYTES);
                 return intArr;
             case LongArray:
                 long[] longArr = new long[n];
-                for (; i < n; i++)
-                    longArr[i] = deserialiseLong(messageBuffer);
+                messageBuffer.asLongBuffer().get(longArr);
+                messageBuffer.position(messageBuffer.position() + n * Long.BYTES);
                 return longArr;
             case FloatArray:
                 float[] floatArr = new float[n];
-                for (; i < n; i++)
-                    floatArr[i] = deserialiseFloat(messageBuffer);
+                messageBuffer.asFloatBuffer().get(floatArr);
+                messageBuffer.position(messageBuffer.position() + n * Float.BYTES);
                 return floatArr;
             case DoubleArray:
                 double[] doubleArr = new double[n];
-                for (; i < n; i++)
-                    doubleArr[i] = deserialiseDouble(messageBuffer);
+                messageBuffer.asDoubleBuffer().get(doubleArr);
+                messageBuffer.position(messageBuffer.position() + n * Double.BYTES);
                 return doubleArr;
             case CharArray:
-                char[] charArr = Charset.forName(stringEncoding).decode(messageBuffer.slice(messageBuffer.position(), n)).toString().toCharArray();
+                char[] charArr = stringCodec.decodeChars(messageBuffer, messageBuffer.position(), n);
                 messageBuffer.position(messageBuffer.position() + n);
                 return charArr;
             case StringArray:
@@ -592,6 +860,57 @@ public class KdbProtocol {
         return null;
     }
 
+    /**
+     * Reads an atom, or a vector into an array of the codec's Java type, with a registered codec.
+     *
+     * @param codec         codec registered to decode the type
+     * @param typeCode      type code, already read
+     * @param messageBuffer buffer positioned after the type code
+     */
+    private Object deserialiseWithCodec(final KdbCodec<?> codec, final byte typeCode, final ByteBuffer messageBuffer) {
+        if (typeCode < 0) {
+            return codec.decode(messageBuffer);
+        }
+        messageBuffer.get();
+        final int n = messageBuffer.getInt();
+        final Object[] values = (Object[]) Array.newInstance(codec.getJavaType(), n);
+        for (int idx = 0; idx < n; idx++) {
+            values[idx] = codec.decode(messageBuffer);
+        }
+        return values;
+    }
+
+    /**
+     * Reads a temporal vector's raw values with a bulk copy, leaving conversion to {@code java.time} objects to the
+     * caller. Datetime vectors are left to the usual path, as their values are fractional days rather than integers.
+     *
+     * @param type          vector type
+     * @param n             number of elements
+     * @param messageBuffer buffer positioned at the first element
+     * @return a {@link TemporalLongVector} or {@link TemporalIntVector}, or null if {@code type} isn't one of their types
+     */
+    private Object deserialiseTemporalVector(final DataType type, final int n, final ByteBuffer messageBuffer) {
+        switch (type) {
+            case InstantArray:
+            case TimespanArray:
+                final long[] longs = new long[n];
+                messageBuffer.asLongBuffer().get(longs);
+                messageBuffer.position(messageBuffer.position() + n * Long.BYTES);
+                return new TemporalLongVector(type, longs);
+            case MonthArray:
+            case LocalDateArray:
+            case MinuteArray:
+            case SecondArray:
+            case LocalTimeArray:
+                final int[] ints = new int[n];
+                messageBuffer.asIntBuffer().get(ints);
+                messageBuffer.position(messageBuffer.position() + n * Integer.BYTES);
+                return new TemporalIntVector(type, ints);
+            default:
+                return null;
+        }
+    }
+
     /**
      * Deserialize char from byte buffer
      *
@@ -703,10 +1022,7 @@ public class KdbProtocol {
      * @return Deserialized date
      */
     private LocalDate deserialiseLocalDate(final ByteBuffer messageBuffer) {
-        final int dateAsInt = messageBuffer.getInt();
-        return (dateAsInt == NULL_INT
-                ? LocalDate.MIN
-                : LocalDate.ofEpochDay(DAYS_BETWEEN_1970_2000 + dateAsInt));
+        return TemporalIntVector.toLocalDate(messageBuffer.getInt());
     }
 
     /**
@@ -715,10 +1031,7 @@ public class KdbProtocol {
      * @return Deserialized time
      */
     private LocalTime deserialiseLocalTime(final ByteBuffer messageBuffer) {
-        final int timeAsInt = messageBuffer.getInt();
-        return (timeAsInt == NULL_INT
-                ? NULL_LOCAL_TIME
-                : LocalDateTime.ofInstant(Instant.ofEpochMilli(timeAsInt), UTC).toLocalTime());
+        return TemporalIntVector.toLocalTime(messageBuffer.getInt());
     }
 
     /**
@@ -740,92 +1053,7 @@ public class KdbProtocol {
      * @return Deserialized timestamp
      */
     private Instant deserialiseInstant(final ByteBuffer messageBuffer) {
-        final long timeAsLong = messageBuffer.getLong();
-        if (timeAsLong == NULL_LONG) {
-            return Instant.MIN;
-        }
-        final long d = timeAsLong < 0
-                ? (timeAsLong + 1) / NANOS_IN_SEC - 1
-                : timeAsLong / NANOS_IN_SEC;
-        return Instant.ofEpochMilli(MILLS_BETWEEN_1970_2000 + 1000 * d).plusNanos((int) (timeAsLong - NANOS_IN_SEC * d));
-    }
-
-    /**
-     * A helper function for nx, calculates the number of bytes which would be required to serialize the supplied string.
-     *
-     * @param string String to be serialized
-     * @return number of bytes required to serialise a string
-     * @throws UnsupportedEncodingException If the named charset is not supported
-     */
-    protected int lengthOfEncodedString(final String string) throws UnsupportedEncodingException {
-        if (string == null) {
-            return 0;
-        }
-
-        int nullTerminatorPosition;
-        if (-1 < (nullTerminatorPosition = string.indexOf(0x00))) {
-            return string.substring(0, nullTerminatorPosition).getBytes(stringEncoding).length;
-        } else {
-            return string.getBytes(stringEncoding).length;
-        }
-    }
-
-    private byte[] encodeString(final String string) throws UnsupportedEncodingException {
-        return string.getBytes(stringEncoding);
-    }
-
-    /**
-     * Calculates the number of bytes which would be required to serialize the supplied object.
-     *
-     * @param obj Object to be serialized
-     * @return number of bytes required to serialise an object.
-     * @throws UnsupportedEncodingException If the named charset is not supported
-     */
-    protected int lengthOfObject(final Object obj) throws UnsupportedEncodingException {
-        final DataType type = DataType.getKdbType(obj);
-        if (type == DataType.Dict) {
-            return Byte.BYTES +
-                    lengthOfObject(((Dict) obj).x) +
-                    lengthOfObject(((Dict) obj).y);
-        }
-        if (type == DataType.Flip) {
-            return Byte.BYTES + // flip type id byte
-                    Byte.BYTES + // null pad byte
-                    Byte.BYTES + // dict type id byte
-                    lengthOfObject(((Flip) obj).columnNames) +
-                    lengthOfObject(((Flip) obj).columns);
-        }
-        if (type.isAtom()) {
-            if (type == DataType.String) {
-                return Byte.BYTES +
-                        lengthOfEncodedString((String) obj) +
-                        Byte.BYTES; // Null terminator byte
-            } else {
-                return Byte.BYTES +
-                        type.getAtomicByteSize();
-            }
-        }
-
-        int numBytes = Byte.BYTES + // array type id byte
-                Byte.BYTES + // null pad byte
-                Integer.BYTES; // numElements int
-
-        int numElements = elementCount(obj);
-        if (type == DataType.List || type == DataType.StringArray) {
-            for (int idx = 0; idx < numElements; ++idx) {
-                if (type == DataType.StringArray) {
-                    numBytes +=
-                            lengthOfEncodedString(((String[]) obj)[idx]) +
-                                    Byte.BYTES; // Null terminator byte
-                } else {
-                    numBytes +=
-                            lengthOfObject(((Object[]) obj)[idx]);
-                }
-            }
-        } else {
-            numBytes += numElements * type.getAtomicByteSize();
-        }
-        return numBytes;
+        return TemporalLongVector.toInstant(messageBuffer.getLong());
     }
 
     /**
@@ -835,17 +1063,20 @@ public class KdbProtocol {
      *
      * @param obj Object to be serialized
      * @return number of elements in an object.
-     * @throws UnsupportedEncodingException If the named charset is not supported
      */
-    private int elementCount(final Object obj) throws UnsupportedEncodingException {
+    private int elementCount(final Object obj) {
         if (obj instanceof Dict) {
             return elementCount(((Dict) obj).x);
         }
         if (obj instanceof Flip) {
             return elementCount(((Flip) obj).columns[0]);
         }
-        return obj instanceof char[]
-                ? new String((char[]) obj).getBytes(stringEncoding).length
-                : Array.getLength(obj);
+        if (obj instanceof TemporalLongVector) {
+            return ((TemporalLongVector) obj).values.length;
+        }
+        if (obj instanceof TemporalIntVector) {
+            return ((TemporalIntVector) obj).values.length;
+        }
+        return Array.getLength(obj);
     }
 }
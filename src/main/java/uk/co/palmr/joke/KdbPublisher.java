@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.DataType;
+import uk.co.palmr.joke.types.MessageType;
+import uk.co.palmr.joke.types.TableBuilder;
+import uk.co.palmr.joke.types.Timespan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A publisher which coalesces rows into one columnar {@code .u.upd} message per table, sent async, instead of a message
+ * and a system call per row.
+ * <p>
+ * Any number of threads may {@link #offer(String, Object...)} rows. An offer only claims a slot in a lock-free ring
+ * buffer, so it never blocks: when the ring is full it fails, and the caller decides whether to retry, drop or slow
+ * down. A single I/O thread drains the ring into a {@link TableBuilder} per table, and sends every table's pending rows
+ * in one write once the rows pending, their approximate size in bytes, or the time since the oldest of them reaches its
+ * threshold.
+ * <p>
+ * The columns of a table are typed by its first row. Values may be {@link Long}, {@link Integer}, {@link Double},
+ * {@link String} symbols, {@link Instant} timestamps, {@link Timespan}s and {@link LocalDate}s; a later row which
+ * doesn't match, or has a timestamp or date out of range of kdb+'s, is rejected and counted in
+ * {@link #getRowsRejected()}.
+ */
+public final class KdbPublisher implements AutoCloseable {
+    public static final int DEFAULT_MAX_BATCH_ROWS = 10_000;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1 << 20;
+    public static final Duration DEFAULT_MAX_BATCH_DELAY = Duration.ofMillis(10);
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+
+    private static final char[] UPDATE_FUNCTION = ".u.upd".toCharArray();
+
+    private final SocketChannel socketChannel;
+    private final KdbProtocol kdbProtocol;
+    private final BufferPool bufferPool;
+    private final KdbMessageHeader writeHeader = new KdbMessageHeader(null);
+    private final RowQueue rowQueue;
+    private final RowQueue.RowSink appender = this::append;
+    private final Map<String, Batch> batchesByTable = new HashMap<>();
+    private final List<Batch> batches = new ArrayList<>();
+    private final int maxBatchRows;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayNanos;
+    private final Thread ioThread;
+    private ByteBuffer writeBuffer;
+    private int pendingRows;
+    private long pendingBytes;
+    private long oldestPendingNanos;
+    private volatile boolean running = true;
+    private volatile boolean parked;
+    private volatile boolean flushRequested;
+    private volatile IOException failure;
+    private volatile long rowsPublished;
+    private volatile long rowsRejected;
+    private volatile long messagesSent;
+
+    /**
+     * Initializes a new {@link KdbPublisher} instance, connects to KDB+ over TCP and starts its I/O thread.
+     *
+     * @param hostname Host of remote q process
+     * @param port     Port of remote q process
+     * @param username Username for remote authorization
+     * @param password Password for remote authorization
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbPublisher(final String hostname, final int port, final String username, final String password) throws IOException, KdbException {
+        this(hostname, port, username, password, false, KdbClient.DEFAULT_STRING_ENCODING,
+                DEFAULT_MAX_BATCH_ROWS, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_BATCH_DELAY, DEFAULT_QUEUE_CAPACITY, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Initializes a new {@link KdbPublisher} instance, connects to KDB+ over TCP and starts its I/O thread.
+     *
+     * @param hostname         Host of remote q process
+     * @param port             Port of remote q process
+     * @param username         Username for remote authorization
+     * @param password         Password for remote authorization
+     * @param allowCompression consider compression on outgoing messages (given uncompressed serialized data also has a
+     *                         length greater than 2000 bytes and connection is not localhost)
+     * @param stringEncoding   character encoding to use when serializing symbols
+     * @param maxBatchRows     send once this many rows are pending
+     * @param maxBatchBytes    send once the pending rows take about this many bytes
+     * @param maxBatchDelay    send once the oldest pending row has waited this long
+     * @param queueCapacity    number of rows which can be offered before the I/O thread drains them, rounded up to a
+     *                         power of two
+     * @param bufferPool       pool to take message buffers from
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbPublisher(final String hostname, final int port, final String username, final String password, final boolean allowCompression, final String stringEncoding,
+                        final int maxBatchRows, final int maxBatchBytes, final Duration maxBatchDelay, final int queueCapacity, final BufferPool bufferPool) throws IOException, KdbException {
+        if (maxBatchRows < 1 || maxBatchBytes < 1 || maxBatchDelay.isNegative()) {
+            throw new IllegalArgumentException("Batch thresholds must be positive");
+        }
+        this.maxBatchRows = maxBatchRows;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+        this.rowQueue = new RowQueue(queueCapacity);
+        this.bufferPool = bufferPool;
+        this.writeBuffer = bufferPool.acquire(KdbClient.DEFAULT_BUFFER_SIZE);
+
+        try {
+            final var inetSocketAddress = new InetSocketAddress(hostname, port);
+            socketChannel = KdbConnector.open(inetSocketAddress);
+
+            final var compressionAllowed = allowCompression && !KdbConnector.isLoopback(inetSocketAddress.getAddress());
+            kdbProtocol = new KdbProtocol(stringEncoding, compressionAllowed);
+
+            KdbConnector.handshake(socketChannel, username, password, kdbProtocol, writeBuffer);
+        } catch (IOException | KdbException | RuntimeException e) {
+            bufferPool.release(writeBuffer);
+            throw e;
+        }
+
+        ioThread = Thread.ofPlatform()
+                .name("joke-publisher-" + hostname + ":" + port)
+                .daemon()
+                .start(this::runIoLoop);
+    }
+
+    /**
+     * Queues a row for publishing without blocking. Any number of threads may call this at once.
+     *
+     * @param table name of the table the row belongs to
+     * @param row   one value per column. The array is held until the row is sent, so must not be changed.
+     * @return false, without queueing the row, if the queue is full or the publisher is closed
+     */
+    public boolean offer(final String table, final Object... row) {
+        if (!running || !rowQueue.offer(table, row)) {
+            return false;
+        }
+        if (parked) {
+            LockSupport.unpark(ioThread);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the I/O thread to send pending rows now, rather than waiting for a threshold. Doesn't block.
+     */
+    public void flush() {
+        flushRequested = true;
+        LockSupport.unpark(ioThread);
+    }
+
+    private void runIoLoop() {
+        try {
+            while (true) {
+                final boolean stopping = !running;
+                final boolean flushing = flushRequested;
+                flushRequested = false;
+                rowQueue.drain(appender, maxBatchRows - pendingRows);
+                if (pendingRows > 0 && (stopping || flushing || isBatchDue())) {
+                    sendBatches();
+                }
+                if (rowQueue.isEmpty()) {
+                    if (stopping) {
+                        break;
+                    }
+                    park();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        } finally {
+            running = false;
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+                // already failing or closing
+            }
+            bufferPool.release(writeBuffer);
+        }
+    }
+
+    private boolean isBatchDue() {
+        return pendingRows >= maxBatchRows
+                || pendingBytes >= maxBatchBytes
+                || System.nanoTime() - oldestPendingNanos >= maxBatchDelayNanos;
+    }
+
+    /**
+     * Parks until a row is offered, a flush is asked for, the publisher is closed, or the oldest pending row is due.
+     */
+    private void park() {
+        parked = true;
+        if (rowQueue.isEmpty() && running && !flushRequested) {
+            if (pendingRows == 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, oldestPendingNanos + maxBatchDelayNanos - System.nanoTime());
+            }
+        }
+        parked = false;
+    }
+
+    private void append(final String table, final Object[] row) {
+        Batch batch = batchesByTable.get(table);
+        if (batch == null) {
+            batch = Batch.forRow(table, row);
+            if (batch == null) {
+                rowsRejected++;
+                return;
+            }
+            batchesByTable.put(table, batch);
+            batches.add(batch);
+        }
+        if (!batch.accepts(row)) {
+            rowsRejected++;
+            return;
+        }
+        final int bytes;
+        try {
+            bytes = batch.add(row);
+        } catch (ArithmeticException e) {
+            rowsRejected++;
+            return;
+        }
+
+        if (pendingRows == 0) {
+            oldestPendingNanos = System.nanoTime();
+        }
+        pendingBytes += bytes;
+        pendingRows++;
+    }
+
+    /**
+     * Serialises an update per table with pending rows, and writes them all out.
+     */
+    private void sendBatches() throws IOException {
+        for (int idx = 0; idx < batches.size(); idx++) {
+            final Batch batch = batches.get(idx);
+            final int rowCount = batch.table.rowCount();
+            if (rowCount > 0) {
+                serialise(batch.message);
+                batch.table.clear();
+                rowsPublished += rowCount;
+                messagesSent++;
+            }
+        }
+        writeToKdb();
+        pendingRows = 0;
+        pendingBytes = 0;
+    }
+
+    /**
+     * Serialises an async message behind those already in the write buffer, writing them out first if it doesn't fit,
+     * and growing the buffer if it doesn't fit on its own.
+     */
+    private void serialise(final Object[] message) throws IOException {
+        while (true) {
+            final int start = writeBuffer.position();
+            final ByteBuffer messageBuffer = writeBuffer.slice(start, writeBuffer.capacity() - start);
+            try {
+                final int length = kdbProtocol.serialiseMessage(MessageType.async, message, writeHeader.wrap(messageBuffer), messageBuffer);
+                writeBuffer.position(start + (kdbProtocol.shouldCompress(length)
+                        ? compressInPlace(messageBuffer, length)
+                        : length));
+                return;
+            } catch (BufferOverflowException e) {
+                if (start > 0) {
+                    writeToKdb();
+                    continue;
+                }
+                final ByteBuffer largerBuffer = bufferPool.acquireLarger(writeBuffer.capacity());
+                bufferPool.release(writeBuffer);
+                writeBuffer = largerBuffer;
+            } catch (KdbException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Compresses a serialised message over the top of itself.
+     *
+     * @return length of the message as it now stands in the buffer
+     */
+    private int compressInPlace(final ByteBuffer messageBuffer, final int length) {
+        final ByteBuffer compressed = bufferPool.acquire(length / 2);
+        try {
+            final int compressedLength = kdbProtocol.compress(messageBuffer, length, compressed);
+            if (compressedLength < 0) {
+                return length;
+            }
+            messageBuffer.put(0, compressed, 0, compressedLength);
+            return compressedLength;
+        } finally {
+            bufferPool.release(compressed);
+        }
+    }
+
+    private void writeToKdb() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            socketChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * @return number of rows sent
+     */
+    public long getRowsPublished() {
+        return rowsPublished;
+    }
+
+    /**
+     * @return number of rows dropped because their values didn't match their table's columns, are out of range, or
+     * aren't supported
+     */
+    public long getRowsRejected() {
+        return rowsRejected;
+    }
+
+    /**
+     * @return number of update messages sent
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return true while the connection is open and the I/O thread is running
+     */
+    public boolean isOpen() {
+        return running;
+    }
+
+    /**
+     * Sends the rows already offered, stops the I/O thread and closes the connection.
+     *
+     * @throws IOException if the connection failed, or if interrupted waiting for the I/O thread to stop
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(ioThread);
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted closing connection");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The pending rows of one table, in columns typed by its first row.
+     */
+    private static final class Batch {
+        private static final Set<Class<?>> VALUE_TYPES = Set.of(Long.class, Instant.class, Timespan.class, Integer.class, LocalDate.class, Double.class, String.class);
+
+        private final TableBuilder table;
+        private final Class<?>[] valueTypes;
+        private final TableBuilder.Column[] columns;
+        private final long[] encoded;
+        private final Object[] message;
+
+        private Batch(final String name, final Class<?>[] valueTypes) {
+            this.table = new TableBuilder();
+            this.valueTypes = valueTypes;
+            this.columns = new TableBuilder.Column[valueTypes.length];
+            this.encoded = new long[valueTypes.length];
+            for (int idx = 0; idx < valueTypes.length; idx++) {
+                columns[idx] = addColumn(table, "c" + idx, valueTypes[idx]);
+            }
+            this.message = new Object[]{UPDATE_FUNCTION, name, table.asColumnList()};
+        }
+
+        /**
+         * @return a batch with columns for the values of a row, or null if a value's type isn't supported
+         */
+        static Batch forRow(final String name, final Object[] row) {
+            if (row.length == 0) {
+                return null;
+            }
+            final Class<?>[] valueTypes = new Class<?>[row.length];
+            for (int idx = 0; idx < row.length; idx++) {
+                if (row[idx] == null || !VALUE_TYPES.contains(row[idx].getClass())) {
+                    return null;
+                }
+                valueTypes[idx] = row[idx].getClass();
+            }
+            return new Batch(name, valueTypes);
+        }
+
+        private static TableBuilder.Column addColumn(final TableBuilder table, final String name, final Class<?> valueType) {
+            if (valueType == Long.class) {
+                return table.longColumn(name);
+            } else if (valueType == Instant.class) {
+                return table.longColumn(name, DataType.InstantArray);
+            } else if (valueType == Timespan.class) {
+                return table.longColumn(name, DataType.TimespanArray);
+            } else if (valueType == Integer.class) {
+                return table.intColumn(name);
+            } else if (valueType == LocalDate.class) {
+                return table.intColumn(name, DataType.LocalDateArray);
+            } else if (valueType == Double.class) {
+                return table.doubleColumn(name);
+            }
+            return table.symbolColumn(name);
+        }
+
+        boolean accepts(final Object[] row) {
+            if (row.length != valueTypes.length) {
+                return false;
+            }
+            for (int idx = 0; idx < row.length; idx++) {
+                if (row[idx] == null || row[idx].getClass() != valueTypes[idx]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds an accepted row. Every value is converted before any column is touched, so a row is either added whole
+         * or not at all.
+         *
+         * @return approximate number of bytes the row adds to the message
+         * @throws ArithmeticException if a value is out of range of its kdb+ type, in which case the row isn't added
+         */
+        int add(final Object[] row) {
+            for (int idx = 0; idx < row.length; idx++) {
+                final TableBuilder.Column column = columns[idx];
+                if (column instanceof TableBuilder.LongColumn) {
+                    encoded[idx] = toLong(row[idx]);
+                } else if (column instanceof TableBuilder.IntColumn) {
+                    encoded[idx] = toInt(row[idx]);
+                }
+            }
+
+            int bytes = 0;
+            for (int idx = 0; idx < row.length; idx++) {
+                final TableBuilder.Column column = columns[idx];
+                if (column instanceof TableBuilder.LongColumn longColumn) {
+                    longColumn.add(encoded[idx]);
+                    bytes += Long.BYTES;
+                } else if (column instanceof TableBuilder.IntColumn intColumn) {
+                    intColumn.add((int) encoded[idx]);
+                    bytes += Integer.BYTES;
+                } else if (column instanceof TableBuilder.DoubleColumn doubleColumn) {
+                    doubleColumn.add((Double) row[idx]);
+                    bytes += Double.BYTES;
+                } else {
+                    final String symbol = (String) row[idx];
+                    ((TableBuilder.SymbolColumn) column).add(symbol);
+                    bytes += symbol.length() + 1;
+                }
+            }
+            return bytes;
+        }
+
+        private static long toLong(final Object value) {
+            if (value instanceof Instant instant) {
+                return instant == Instant.MIN
+                        ? KdbProtocol.NULL_LONG
+                        : Math.addExact(Math.multiplyExact(instant.getEpochSecond() - KdbProtocol.MILLS_BETWEEN_1970_2000 / 1000, KdbProtocol.NANOS_IN_SEC), instant.getNano());
+            }
+            if (value instanceof Timespan timespan) {
+                return timespan.j;
+            }
+            return (Long) value;
+        }
+
+        private static int toInt(final Object value) {
+            if (value instanceof LocalDate date) {
+                return date == LocalDate.MIN
+                        ? KdbProtocol.NULL_INT
+                        : Math.toIntExact(date.toEpochDay() - KdbProtocol.DAYS_BETWEEN_1970_2000);
+            }
+            return (Integer) value;
+        }
+    }
+}
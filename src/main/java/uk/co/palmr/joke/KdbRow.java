@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a record, or a class with non-private fields and a no-arg constructor, as a row of a kdb+ table. With the
+ * {@code processor} project on the annotation processor path, a {@code <Name>RowCodec} class is generated alongside it,
+ * which reads rows straight out of a {@link uk.co.palmr.joke.messages.FlipView} and writes rows out as a columnar
+ * {@link uk.co.palmr.joke.types.Flip}, without reflection or boxing.
+ * <p>
+ * Each record component or field is a column of the same name. Supported types are {@code boolean}, {@code byte},
+ * {@code short}, {@code int}, {@code long}, {@code float}, {@code double}, {@code char} and {@link String}, the last
+ * being written as a symbol column.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface KdbRow {
+}
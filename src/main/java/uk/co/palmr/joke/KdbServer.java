@@ -0,0 +1,616 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static uk.co.palmr.joke.IpcVersion.KDB_IPC_VERSION;
+
+/**
+ * An embedded kdb+ IPC server, so q processes can open handles to a Java service, e.g. {@code h:hopen `:javahost:5001}.
+ * <p>
+ * An acceptor thread hands each new connection to one of a small pool of event loops, each a {@link Selector} serving
+ * many connections. The loop performs the login handshake, agreeing the capability byte, then decodes sync and async
+ * messages with {@link KdbProtocol} and dispatches them to a {@link RequestHandler}. The result of a sync message is
+ * sent back as its response, and a handler failure as an error.
+ * <p>
+ * Messages are read into a buffer shared by all a loop's connections, so an idle connection holds no buffers. One is
+ * only taken from the pool to keep a partial message, or a response the client has not yet read; no more is read from
+ * that client until its responses have been written.
+ */
+public class KdbServer implements AutoCloseable {
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * Longest login, in bytes, accepted before the connection is closed.
+     */
+    private static final int MAX_LOGIN_SIZE = 1024;
+    /**
+     * Pause before accepting again after a failed accept, such as running out of file descriptors, which would
+     * otherwise fail again straight away.
+     */
+    private static final long ACCEPT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ServerSocketChannel serverChannel;
+    private final int port;
+    private final RequestHandler handler;
+    private final EventLoop[] eventLoops;
+    private final Thread acceptor;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    /**
+     * Initializes a new {@link KdbServer} listening on all interfaces, and starts accepting connections.
+     *
+     * @param port    port to listen on, or 0 for any free port
+     * @param handler handler to dispatch messages to
+     * @throws IOException if the port cannot be bound
+     */
+    public KdbServer(final int port, final RequestHandler handler) throws IOException {
+        this(new InetSocketAddress(port), handler, DEFAULT_EVENT_LOOPS, false, KdbClient.DEFAULT_STRING_ENCODING, KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Initializes a new {@link KdbServer} and starts accepting connections.
+     *
+     * @param address          address to listen on
+     * @param handler          handler to dispatch messages to
+     * @param eventLoops       number of event loop threads to share connections between
+     * @param allowCompression consider compression on responses (given uncompressed serialized data also has a length
+     *                         greater than 2000 bytes and the client is not on localhost)
+     * @param stringEncoding   character encoding to use when [de]-serializing strings
+     * @param bufferSize       initial size of each event loop's read and write buffers
+     * @param bufferPool       pool to take message buffers from
+     * @throws IOException if the address cannot be bound
+     */
+    public KdbServer(final InetSocketAddress address, final RequestHandler handler, final int eventLoops, final boolean allowCompression, final String stringEncoding, final int bufferSize, final BufferPool bufferPool) throws IOException {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be at least 1, was " + eventLoops);
+        }
+        this.handler = handler;
+        this.serverChannel = ServerSocketChannel.open();
+        this.eventLoops = new EventLoop[eventLoops];
+        try {
+            serverChannel.bind(address);
+            port = serverChannel.socket().getLocalPort();
+            for (int idx = 0; idx < eventLoops; idx++) {
+                this.eventLoops[idx] = new EventLoop(allowCompression, stringEncoding, bufferSize, bufferPool);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (final EventLoop eventLoop : this.eventLoops) {
+                if (eventLoop != null) {
+                    eventLoop.selector.close();
+                }
+            }
+            serverChannel.close();
+            throw e;
+        }
+
+        for (int idx = 0; idx < eventLoops; idx++) {
+            final EventLoop eventLoop = this.eventLoops[idx];
+            eventLoop.thread = Thread.ofPlatform()
+                    .name("joke-server-" + port + "-" + idx)
+                    .daemon()
+                    .start(eventLoop::run);
+        }
+        acceptor = Thread.ofPlatform()
+                .name("joke-server-" + port + "-accept")
+                .daemon()
+                .start(this::acceptConnections);
+    }
+
+    /**
+     * @return port the server is listening on
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return number of connections currently open, including those still logging in
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return number of messages received from all connections since the server started
+     */
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public boolean isOpen() {
+        return running;
+    }
+
+    /**
+     * Stops accepting connections, closes those open and waits for the event loops to finish. Safe to call from a
+     * handler.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } finally {
+            for (final EventLoop eventLoop : eventLoops) {
+                eventLoop.selector.wakeup();
+            }
+            join(acceptor);
+            for (final EventLoop eventLoop : eventLoops) {
+                join(eventLoop.thread);
+            }
+        }
+    }
+
+    private static void join(final Thread thread) {
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands accepted connections to the event loops in turn.
+     */
+    private void acceptConnections() {
+        int next = 0;
+        while (running) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    return;
+                }
+                LockSupport.parkNanos(ACCEPT_RETRY_NANOS);
+                continue;
+            }
+            eventLoops[next].register(channel);
+            next = (next + 1) % eventLoops.length;
+        }
+    }
+
+    /**
+     * @return text for an error response, the exception's message if it has one
+     */
+    private static String errorText(final Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * A client connection, only touched by the event loop serving it.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey selectionKey;
+        private String username;
+        private int version;
+        private boolean compress;
+        private ByteBuffer pendingRead;
+        private ByteBuffer pendingWrite;
+
+        private Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean isLoggedIn() {
+            return username != null;
+        }
+    }
+
+    /**
+     * A thread serving connections from a selector, with the protocol state and buffers they share.
+     */
+    private final class EventLoop {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final KdbProtocol[] protocols = new KdbProtocol[KDB_IPC_VERSION + 1];
+        private final KdbMessageHeader readHeader = new KdbMessageHeader(null);
+        private final KdbMessageHeader writeHeader = new KdbMessageHeader(null);
+        private final boolean allowCompression;
+        private final BufferPool bufferPool;
+        private ByteBuffer readBuffer;
+        private ByteBuffer writeBuffer;
+        private Thread thread;
+
+        private EventLoop(final boolean allowCompression, final String stringEncoding, final int bufferSize, final BufferPool bufferPool) throws IOException {
+            this.allowCompression = allowCompression;
+            this.bufferPool = bufferPool;
+            for (int version = 0; version < protocols.length; version++) {
+                protocols[version] = new KdbProtocol(stringEncoding, allowCompression);
+                protocols[version].setVersion(version);
+            }
+            this.selector = Selector.open();
+            this.readBuffer = bufferPool.acquire(bufferSize);
+            this.writeBuffer = bufferPool.acquire(bufferSize);
+        }
+
+        /**
+         * Queues an accepted connection to be registered with this loop's selector, from the acceptor thread.
+         */
+        private void register(final SocketChannel channel) {
+            accepted.offer(channel);
+            if (!running) {
+                closeQuietly(channel);
+            }
+            selector.wakeup();
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    registerAccepted();
+                    selector.select();
+                    final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        final SelectionKey selectionKey = selectedKeys.next();
+                        selectedKeys.remove();
+                        serve((Connection) selectionKey.attachment());
+                    }
+                }
+            } catch (IOException ignored) {
+                // selector failed, so close its connections
+            } finally {
+                for (final SelectionKey selectionKey : selector.keys()) {
+                    close((Connection) selectionKey.attachment());
+                }
+                SocketChannel channel;
+                while ((channel = accepted.poll()) != null) {
+                    closeQuietly(channel);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+                bufferPool.release(readBuffer);
+                bufferPool.release(writeBuffer);
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                final Connection connection = new Connection(channel);
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connection.selectionKey = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connectionCount.incrementAndGet();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        /**
+         * Writes what a connection has waiting, then reads and dispatches what it has sent, closing it on any failure.
+         */
+        private void serve(final Connection connection) {
+            final SelectionKey selectionKey = connection.selectionKey;
+            try {
+                if (selectionKey.isValid() && selectionKey.isWritable()) {
+                    flush(connection);
+                }
+                if (selectionKey.isValid() && selectionKey.isReadable() && connection.pendingWrite == null) {
+                    read(connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                close(connection);
+            }
+        }
+
+        private void read(final Connection connection) throws IOException {
+            final ByteBuffer buffer = connection.pendingRead != null ? connection.pendingRead : readBuffer.clear();
+            if (-1 == connection.channel.read(buffer)) {
+                close(connection);
+                return;
+            }
+
+            buffer.flip();
+            if (!connection.isLoggedIn() && !login(connection, buffer)) {
+                retain(connection, buffer, MAX_LOGIN_SIZE);
+                return;
+            }
+
+            int needed = KdbMessageHeader.SIZE;
+            while (connection.selectionKey.isValid() && buffer.remaining() >= KdbMessageHeader.SIZE) {
+                final int start = buffer.position();
+                buffer.order(buffer.get(start) == KdbMessageHeader.TRUE ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                final int messageSize = buffer.getInt(start + 4);
+                if (messageSize < KdbMessageHeader.SIZE) {
+                    throw new IOException("Invalid message size " + messageSize);
+                }
+                if (buffer.remaining() < messageSize) {
+                    needed = messageSize;
+                    break;
+                }
+
+                final ByteBuffer message = buffer.slice(start, messageSize);
+                buffer.position(start + messageSize);
+                dispatch(connection, message);
+            }
+            retain(connection, buffer, needed);
+        }
+
+        /**
+         * Keeps the unread part of a connection's input until more arrives, in a buffer of its own big enough for the
+         * next message.
+         *
+         * @param buffer buffer the input was read into, ready to read what is left
+         * @param needed size of the next message, if known
+         */
+        private void retain(final Connection connection, final ByteBuffer buffer, final int needed) {
+            if (!connection.selectionKey.isValid()) {
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                if (buffer == connection.pendingRead) {
+                    bufferPool.release(buffer);
+                    connection.pendingRead = null;
+                }
+                return;
+            }
+            if (buffer == connection.pendingRead && needed <= buffer.capacity()) {
+                buffer.compact();
+                return;
+            }
+
+            final ByteBuffer retained = bufferPool.acquire(Math.max(needed, buffer.remaining()));
+            retained.put(buffer);
+            if (buffer == connection.pendingRead) {
+                bufferPool.release(buffer);
+            }
+            connection.pendingRead = retained;
+        }
+
+        /**
+         * Reads the {@code username:password} login and capability byte, and answers with the agreed capability, or
+         * closes the connection if the handler rejects the login.
+         *
+         * @return true once logged in, false if the login is incomplete or rejected
+         */
+        private boolean login(final Connection connection, final ByteBuffer buffer) throws IOException {
+            final int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != KdbProtocol.NULL_BYTE) {
+                end++;
+            }
+            if (end == buffer.limit()) {
+                if (buffer.remaining() >= MAX_LOGIN_SIZE) {
+                    throw new IOException("Login longer than " + MAX_LOGIN_SIZE + " bytes");
+                }
+                return false;
+            }
+
+            int capability = 0;
+            int credentialsEnd = end;
+            if (end > start && buffer.get(end - 1) > 0 && buffer.get(end - 1) < ' ') {
+                capability = buffer.get(end - 1);
+                credentialsEnd--;
+            }
+            final byte[] bytes = new byte[credentialsEnd - start];
+            buffer.get(start, bytes);
+            buffer.position(end + 1);
+
+            final String credentials = new String(bytes, protocols[KDB_IPC_VERSION].getCharset());
+            final int colon = credentials.indexOf(':');
+            final String username = colon < 0 ? credentials : credentials.substring(0, colon);
+            final String password = colon < 0 ? "" : credentials.substring(colon + 1);
+            if (!handler.authenticate(username, password)) {
+                close(connection);
+                return false;
+            }
+
+            connection.username = username;
+            connection.version = Math.min(capability, KDB_IPC_VERSION);
+            connection.compress = allowCompression
+                    && connection.version >= 1
+                    && !KdbConnector.isLoopback(((InetSocketAddress) connection.channel.getRemoteAddress()).getAddress());
+            send(connection, writeBuffer.clear().put((byte) connection.version).flip());
+            return true;
+        }
+
+        /**
+         * Deserialises a message and hands it to the handler, then sends the result back if it was sync.
+         */
+        private void dispatch(final Connection connection, final ByteBuffer message) throws IOException {
+            messagesReceived.increment();
+            final KdbProtocol kdbProtocol = protocols[connection.version];
+            final MessageType messageType = readHeader.wrap(message).getMessageType();
+
+            Object request = null;
+            String error = null;
+            try {
+                request = deserialise(kdbProtocol, message);
+            } catch (KdbException e) {
+                error = e.getMessage();
+            }
+
+            if (messageType == MessageType.async) {
+                if (error == null) {
+                    try {
+                        handler.onAsync(connection.username, request);
+                    } catch (RuntimeException ignored) {
+                        // no caller to tell
+                    }
+                }
+                return;
+            }
+            if (messageType != MessageType.sync) {
+                return;
+            }
+
+            Object response = null;
+            if (error == null) {
+                try {
+                    response = handler.onSync(connection.username, request);
+                } catch (KdbException e) {
+                    error = e.getMessage();
+                } catch (RuntimeException e) {
+                    error = errorText(e);
+                }
+            }
+            respond(connection, kdbProtocol, response, error);
+        }
+
+        private Object deserialise(final KdbProtocol kdbProtocol, final ByteBuffer message) throws IOException, KdbException {
+            if (!readHeader.isCompressed()) {
+                return kdbProtocol.deserialize(readHeader, message);
+            }
+
+            final ByteBuffer uncompressed = bufferPool.acquire(kdbProtocol.uncompressedLength(readHeader, message));
+            try {
+                kdbProtocol.uncompress(readHeader, message, uncompressed);
+                return kdbProtocol.deserialize(readHeader.wrap(uncompressed), uncompressed);
+            } finally {
+                bufferPool.release(uncompressed);
+            }
+        }
+
+        /**
+         * Serialises a response, or an error if there is one or the response can't be serialised, growing the write
+         * buffer until it fits, and sends it.
+         */
+        private void respond(final Connection connection, final KdbProtocol kdbProtocol, final Object response, final String error) throws IOException {
+            String sending = error;
+            while (true) {
+                final int length;
+                try {
+                    length = sending != null
+                            ? kdbProtocol.serialiseError(sending, writeHeader.wrap(writeBuffer), writeBuffer)
+                            : kdbProtocol.serialiseMessage(MessageType.response, response, writeHeader.wrap(writeBuffer), writeBuffer);
+                } catch (BufferOverflowException e) {
+                    final ByteBuffer largerBuffer = bufferPool.acquireLarger(writeBuffer.capacity());
+                    bufferPool.release(writeBuffer);
+                    writeBuffer = largerBuffer;
+                    continue;
+                } catch (KdbException | RuntimeException e) {
+                    if (sending != null) {
+                        throw new IOException("Could not serialise error " + sending, e);
+                    }
+                    sending = errorText(e);
+                    continue;
+                }
+
+                if (connection.compress && kdbProtocol.shouldCompress(length)) {
+                    final ByteBuffer compressed = bufferPool.acquire(length / 2);
+                    try {
+                        final int compressedLength = kdbProtocol.compress(writeBuffer, length, compressed);
+                        if (compressedLength >= 0) {
+                            send(connection, compressed.limit(compressedLength).position(0));
+                            return;
+                        }
+                    } finally {
+                        bufferPool.release(compressed);
+                    }
+                }
+                send(connection, writeBuffer.flip());
+                return;
+            }
+        }
+
+        /**
+         * Writes as much as the socket will take, keeping the rest to write once the client has read more. Messages are
+         * queued behind any already waiting.
+         *
+         * @param data data to send, ready to read
+         */
+        private void send(final Connection connection, final ByteBuffer data) throws IOException {
+            if (connection.pendingWrite == null) {
+                connection.channel.write(data);
+                if (!data.hasRemaining()) {
+                    return;
+                }
+                connection.pendingWrite = bufferPool.acquire(data.remaining());
+                connection.selectionKey.interestOps(SelectionKey.OP_WRITE);
+            } else if (connection.pendingWrite.remaining() < data.remaining()) {
+                final ByteBuffer largerBuffer = bufferPool.acquire(connection.pendingWrite.position() + data.remaining());
+                largerBuffer.put(connection.pendingWrite.flip());
+                bufferPool.release(connection.pendingWrite);
+                connection.pendingWrite = largerBuffer;
+            }
+            connection.pendingWrite.put(data);
+        }
+
+        /**
+         * Writes waiting responses, going back to reading requests once they have all been written.
+         */
+        private void flush(final Connection connection) throws IOException {
+            final ByteBuffer pendingWrite = connection.pendingWrite.flip();
+            connection.channel.write(pendingWrite);
+            if (pendingWrite.hasRemaining()) {
+                pendingWrite.compact();
+                return;
+            }
+            bufferPool.release(pendingWrite);
+            connection.pendingWrite = null;
+            connection.selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void close(final Connection connection) {
+            if (connection.selectionKey == null || !connection.selectionKey.isValid()) {
+                return;
+            }
+            connection.selectionKey.cancel();
+            closeQuietly(connection.channel);
+            connectionCount.decrementAndGet();
+            if (connection.pendingRead != null) {
+                bufferPool.release(connection.pendingRead);
+                connection.pendingRead = null;
+            }
+            if (connection.pendingWrite != null) {
+                bufferPool.release(connection.pendingWrite);
+                connection.pendingWrite = null;
+            }
+        }
+    }
+}
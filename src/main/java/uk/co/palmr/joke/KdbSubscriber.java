@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.UpdateView;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client which subscribes to a kdb+ tickerplant and streams the updates it publishes.
+ * <p>
+ * After registering with {@code .u.sub}, {@link #run()} reads from the socket in bulk and hands every
+ * {@code (`upd;`table;data)} message to an {@link UpdateHandler} as a {@link uk.co.palmr.joke.messages.FlipView} over
+ * the read buffer, so updates are consumed in place, without deserialising them or allocating per row.
+ * <p>
+ * {@link #subscribe(String, String...)} and {@link #run()} must be called from one thread; statistics can be read, and
+ * {@link #close()} called, from any.
+ */
+public class KdbSubscriber implements AutoCloseable {
+    private static final byte RESPONSE = MessageType.response.getTypeCode();
+    private static final String[] ALL_SYMS = new String[0];
+
+    private final SocketChannel socketChannel;
+    private final KdbProtocol kdbProtocol;
+    private final BufferPool bufferPool;
+    private final UpdateHandler handler;
+    private final KdbMessageHeader header = new KdbMessageHeader(null);
+    private final UpdateView updateView;
+    private final Map<String, String[]> columnNames = new HashMap<>();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final int initialCapacity;
+    private ByteBuffer readBuffer;
+    private long oversizedBufferLastUsedNanos;
+    private boolean awaitingResponse;
+    private Object response;
+    private boolean resumeBuffered;
+    private volatile boolean running;
+    private volatile boolean closed;
+    private volatile long messagesReceived;
+    private volatile long updatesReceived;
+    private volatile long rowsReceived;
+    private volatile long bytesReceived;
+    private volatile int backlogBytes;
+    private volatile long lagNanos;
+
+    /**
+     * Initializes a new {@link KdbSubscriber} instance and connects to a tickerplant over TCP.
+     *
+     * @param hostname Host of the tickerplant
+     * @param port     Port of the tickerplant
+     * @param username Username for remote authorization
+     * @param password Password for remote authorization
+     * @param handler  handler for the updates published
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbSubscriber(final String hostname, final int port, final String username, final String password, final UpdateHandler handler) throws IOException, KdbException {
+        this(hostname, port, username, password, handler, KdbClient.DEFAULT_STRING_ENCODING, KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Initializes a new {@link KdbSubscriber} instance and connects to a tickerplant over TCP.
+     *
+     * @param hostname       Host of the tickerplant
+     * @param port           Port of the tickerplant
+     * @param username       Username for remote authorization
+     * @param password       Password for remote authorization
+     * @param handler        handler for the updates published
+     * @param stringEncoding character encoding to use when [de]-serializing strings
+     * @param bufferSize     initial size of the read buffer, which grows to fit larger messages. A buffer holding many
+     *                       updates lets a busy feed be read with few system calls.
+     * @param bufferPool     pool to take message buffers from
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public KdbSubscriber(final String hostname, final int port, final String username, final String password, final UpdateHandler handler, final String stringEncoding, final int bufferSize, final BufferPool bufferPool) throws IOException, KdbException {
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.kdbProtocol = new KdbProtocol(stringEncoding, false);
+        this.updateView = new UpdateView(kdbProtocol.getCharset());
+        this.readBuffer = bufferPool.acquire(bufferSize);
+        this.initialCapacity = readBuffer.capacity();
+
+        try {
+            socketChannel = KdbConnector.open(new InetSocketAddress(hostname, port));
+
+            KdbConnector.handshake(socketChannel, username, password, kdbProtocol, readBuffer);
+        } catch (IOException | KdbException | RuntimeException e) {
+            releaseBuffer();
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribes to all symbols of a table.
+     *
+     * @see #subscribe(String, String...)
+     */
+    public Object subscribe(final String table) throws IOException, KdbException {
+        return subscribe(table, ALL_SYMS);
+    }
+
+    /**
+     * Registers for updates with {@code .u.sub}, and records the column names of the tables in its response, so that
+     * updates sent as bare lists of columns can be read by column name. Updates which arrive before the response are
+     * handed to the handler as usual.
+     *
+     * @param table table to subscribe to, or the empty string for all tables
+     * @param syms  symbols to subscribe to, or none for all symbols
+     * @return the deserialised response of {@code .u.sub}, typically the table name and its empty schema
+     * @throws KdbException if the subscription resulted in an error
+     * @throws IOException  if an I/O error occurs.
+     */
+    public Object subscribe(final String table, final String... syms) throws IOException, KdbException {
+        sendSync(new Object[]{".u.sub".toCharArray(), table, syms.length == 0 ? "" : syms});
+
+        awaitingResponse = true;
+        running = true;
+        try {
+            while (awaitingResponse) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                readMessages();
+            }
+        } finally {
+            stopRunning();
+        }
+        final Object subscribed = response;
+        response = null;
+        if (subscribed instanceof KdbException kdbException) {
+            throw kdbException;
+        }
+        return subscribed;
+    }
+
+    /**
+     * Reads and handles messages until the subscriber is closed. An exception thrown by the handler ends the loop, and
+     * a later call carries on from the message after the one which failed.
+     *
+     * @throws KdbException if the tickerplant sends an error
+     * @throws IOException  if an I/O error occurs, or the tickerplant closes the connection
+     */
+    public void run() throws IOException, KdbException {
+        running = true;
+        try {
+            while (!closed) {
+                readMessages();
+            }
+        } catch (ClosedChannelException e) {
+            if (!closed) {
+                throw e;
+            }
+        } finally {
+            stopRunning();
+        }
+    }
+
+    /**
+     * Ends a read loop. The read buffer is only released by whichever thread owns the read loop, or by {@link #close()}
+     * when none is running, so it is never handed back to the pool while a read is in progress.
+     */
+    private void stopRunning() {
+        running = false;
+        if (closed) {
+            releaseBuffer();
+        }
+    }
+
+    private void sendSync(final Object message) throws IOException, KdbException {
+        ByteBuffer buffer = bufferPool.acquire(KdbClient.DEFAULT_BUFFER_SIZE);
+        try {
+            while (true) {
+                try {
+                    kdbProtocol.serialiseMessage(MessageType.sync, message, header.wrap(buffer), buffer);
+                    break;
+                } catch (BufferOverflowException e) {
+                    final ByteBuffer largerBuffer = bufferPool.acquireLarger(buffer.capacity());
+                    bufferPool.release(buffer);
+                    buffer = largerBuffer;
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                socketChannel.write(buffer);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads whatever is available and handles each whole message in the read buffer. If handling a message failed last
+     * time, the messages already read after it are handled before reading any more.
+     */
+    private void readMessages() throws IOException, KdbException {
+        if (!resumeBuffered) {
+            final int read = socketChannel.read(readBuffer);
+            if (read == -1) {
+                throw new EOFException("end of stream");
+            }
+            bytesReceived += read;
+        }
+        final long readNanos = System.nanoTime();
+
+        readBuffer.flip();
+        boolean handledAll = false;
+        try {
+            while (readBuffer.remaining() >= KdbMessageHeader.SIZE) {
+                final int start = readBuffer.position();
+                readBuffer.order(readBuffer.get(start) == KdbMessageHeader.TRUE ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                final int messageSize = readBuffer.getInt(start + 4);
+                if (messageSize < KdbMessageHeader.SIZE) {
+                    throw new IOException("Invalid message size " + messageSize);
+                }
+                if (readBuffer.remaining() < messageSize) {
+                    if (messageSize > readBuffer.capacity()) {
+                        final ByteBuffer largerBuffer = bufferPool.acquire(messageSize);
+                        largerBuffer.put(readBuffer).flip();
+                        bufferPool.release(readBuffer);
+                        readBuffer = largerBuffer;
+                    }
+                    break;
+                }
+
+                readBuffer.position(start + messageSize);
+                backlogBytes = readBuffer.remaining();
+                if (messageSize > initialCapacity) {
+                    oversizedBufferLastUsedNanos = System.nanoTime();
+                }
+                handleMessage(readBuffer, start, messageSize);
+                messagesReceived++;
+                lagNanos = System.nanoTime() - readNanos;
+            }
+            handledAll = true;
+        } finally {
+            resumeBuffered = !handledAll;
+            backlogBytes = readBuffer.remaining();
+            readBuffer.compact();
+        }
+        releaseIdleBuffer();
+    }
+
+    /**
+     * Hands an oversized read buffer back to the pool once it has drained and no message needing it has arrived for
+     * the pool's idle release period. Reads block, so an idle feed gives the buffer back after its next message.
+     */
+    private void releaseIdleBuffer() {
+        if (readBuffer.capacity() > initialCapacity && readBuffer.position() == 0
+                && System.nanoTime() - oversizedBufferLastUsedNanos > bufferPool.getIdleReleaseNanos()) {
+            bufferPool.release(readBuffer);
+            readBuffer = bufferPool.acquire(initialCapacity);
+        }
+    }
+
+    private void handleMessage(final ByteBuffer buffer, final int start, final int messageSize) throws IOException, KdbException {
+        if (buffer.get(start + 2) != KdbMessageHeader.TRUE) {
+            dispatch(buffer, start, messageSize);
+            return;
+        }
+
+        final ByteBuffer message = buffer.slice(start, messageSize);
+        header.wrap(message);
+        final ByteBuffer uncompressed = bufferPool.acquire(kdbProtocol.uncompressedLength(header, message));
+        try {
+            kdbProtocol.uncompress(header, message, uncompressed);
+            uncompressed.order(header.getByteOrder());
+            dispatch(uncompressed, 0, uncompressed.getInt(4));
+        } finally {
+            bufferPool.release(uncompressed);
+        }
+    }
+
+    private void dispatch(final ByteBuffer buffer, final int start, final int messageSize) throws IOException, KdbException {
+        if (buffer.get(start + 1) == RESPONSE) {
+            try {
+                response = deserialize(buffer, start, messageSize);
+                recordColumnNames(response);
+            } catch (KdbException e) {
+                response = e;
+            }
+            awaitingResponse = false;
+            return;
+        }
+
+        if (updateView.wrap(buffer, start + KdbMessageHeader.SIZE)) {
+            final String table = updateView.table();
+            final String[] names = columnNames.get(table);
+            if (!updateView.isColumnList() || names != null) {
+                final var rows = updateView.rows(names);
+                updatesReceived++;
+                rowsReceived += rows.rowCount();
+                handler.onUpdate(table, rows);
+                return;
+            }
+        }
+        handler.onMessage(deserialize(buffer, start, messageSize));
+    }
+
+    private Object deserialize(final ByteBuffer buffer, final int start, final int messageSize) throws IOException, KdbException {
+        final ByteBuffer message = buffer.slice(start, messageSize);
+        return kdbProtocol.deserialize(header.wrap(message), message);
+    }
+
+    /**
+     * Records the schemas in a {@code .u.sub} response: either a table name and its schema, or a list of those.
+     */
+    private void recordColumnNames(final Object subscribed) {
+        if (!(subscribed instanceof Object[] items)) {
+            return;
+        }
+        if (items.length == 2 && items[0] instanceof String table && items[1] instanceof Flip schema) {
+            columnNames.put(table, schema.columnNames);
+            return;
+        }
+        for (final Object item : items) {
+            recordColumnNames(item);
+        }
+    }
+
+    /**
+     * @return number of messages handled, updates or otherwise
+     */
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    /**
+     * @return number of updates handed to {@link UpdateHandler#onUpdate}
+     */
+    public long getUpdatesReceived() {
+        return updatesReceived;
+    }
+
+    /**
+     * @return number of rows across all updates handed to {@link UpdateHandler#onUpdate}
+     */
+    public long getRowsReceived() {
+        return rowsReceived;
+    }
+
+    /**
+     * @return number of bytes read from the tickerplant
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return number of bytes read from the socket but not yet handled. A backlog which stays high means the handler is
+     * falling behind the feed, and the tickerplant's output queue for this subscriber is growing.
+     */
+    public int getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * @return nanoseconds between reading the last message handled from the socket and the handler finishing with it
+     */
+    public long getLagNanos() {
+        return lagNanos;
+    }
+
+    /**
+     * @return true until the subscriber is closed
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the connection, which ends {@link #run()} or {@link #subscribe(String, String...)} on whichever thread is
+     * running it.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socketChannel.close();
+        if (!running) {
+            releaseBuffer();
+        }
+    }
+
+    private void releaseBuffer() {
+        if (released.compareAndSet(false, true)) {
+            bufferPool.release(readBuffer);
+        }
+    }
+}
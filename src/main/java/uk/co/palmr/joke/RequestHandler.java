@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+/**
+ * Answers the q clients connected to a {@link KdbServer}.
+ * <p>
+ * Methods are called on the server's event loop threads, each of which serves many connections, so they should return
+ * quickly rather than block.
+ */
+public interface RequestHandler {
+    /**
+     * Called once per connection with the credentials from its handshake. Accepts everyone by default.
+     *
+     * @param username username the client logged in with, empty if none
+     * @param password password the client logged in with, empty if none
+     * @return true to accept the connection, false to close it, which q reports as {@code 'access}
+     */
+    default boolean authenticate(final String username, final String password) {
+        return true;
+    }
+
+    /**
+     * Called for each sync message, e.g. {@code h"query"} or {@code h(`fn;arg)}, whose result is sent back to the client.
+     *
+     * @param username username the client logged in with
+     * @param message  the deserialised message, e.g. a {@code char[]} expression or an {@code Object[]} function call
+     * @return the response, which must be serialisable by {@link KdbProtocol}
+     * @throws KdbException to send the client an error, raised in q as {@code 'message}
+     */
+    Object onSync(String username, Object message) throws KdbException;
+
+    /**
+     * Called for each async message, e.g. {@code neg[h]"query"}. Nothing is sent back, so exceptions are discarded.
+     * Ignores the message by default.
+     *
+     * @param username username the client logged in with
+     * @param message  the deserialised message
+     */
+    default void onAsync(final String username, final Object message) {
+    }
+}
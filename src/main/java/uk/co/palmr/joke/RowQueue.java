@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free ring buffer of rows, for any number of producer threads and a single consumer.
+ * <p>
+ * Each slot carries a sequence number saying whose turn it is: a producer claims the slot at the tail with a CAS, fills
+ * it, then publishes it by advancing its sequence; the consumer empties it and hands it back by advancing the sequence
+ * a lap. A full ring fails the offer rather than waiting, so producers never block.
+ */
+final class RowQueue {
+    /**
+     * Receives rows drained from the ring.
+     */
+    interface RowSink {
+        void accept(String table, Object[] row);
+    }
+
+    private final AtomicLongArray sequences;
+    private final String[] tables;
+    private final Object[][] rows;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    RowQueue(final int capacity) {
+        final int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.sequences = new AtomicLongArray(slots);
+        this.tables = new String[slots];
+        this.rows = new Object[slots][];
+        this.mask = slots - 1;
+        for (int idx = 0; idx < slots; idx++) {
+            sequences.set(idx, idx);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a row, from any thread.
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(final String table, final Object[] row) {
+        long sequence = tail.get();
+        while (true) {
+            final int slot = (int) sequence & mask;
+            final long difference = sequences.get(slot) - sequence;
+            if (difference == 0) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    tables[slot] = table;
+                    rows[slot] = row;
+                    sequences.set(slot, sequence + 1);
+                    return true;
+                }
+                sequence = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                sequence = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Hands rows to a sink in the order they were offered. Only the consumer thread may call this.
+     *
+     * @param sink  sink for the rows
+     * @param limit most rows to drain
+     * @return number of rows drained
+     */
+    int drain(final RowSink sink, final int limit) {
+        int drained = 0;
+        while (drained < limit) {
+            final int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            final String table = tables[slot];
+            final Object[] row = rows[slot];
+            tables[slot] = null;
+            rows[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            drained++;
+            sink.accept(table, row);
+        }
+        return drained;
+    }
+
+    /**
+     * @return true if no row is ready to drain. Only meaningful on the consumer thread.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
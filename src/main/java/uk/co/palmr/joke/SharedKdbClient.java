@@ -0,0 +1,661 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe client which lets any number of threads share one connection to KDB+.
+ * <p>
+ * Callers hand requests to a lock-free queue and get a {@link CompletableFuture} back. A single I/O thread owns the
+ * socket, protocol and buffers: it serialises queued requests into one batch per write, and matches responses to
+ * requests in the order they were sent, which is the order kdb+ answers sync messages on a connection.
+ * <p>
+ * Futures are completed on the I/O thread, so dependent stages doing real work should use the {@code *Async} variants
+ * to keep the I/O thread free.
+ * <p>
+ * Async messages pushed by the remote, such as tickerplant updates, are published to {@link #subscribe(Object)}
+ * subscribers as their demand allows.
+ */
+public class SharedKdbClient implements AutoCloseable {
+    /**
+     * Number of async messages buffered for a subscriber without demand at which the I/O thread stops reading from the
+     * connection, leaving kdb+ to queue further messages until the subscriber catches up.
+     */
+    public static final int MAX_BUFFERED_MESSAGES = 1024;
+
+    private final SocketChannel socketChannel;
+    private final Selector selector;
+    private final SelectionKey selectionKey;
+    private final KdbProtocol kdbProtocol;
+    private final BufferPool bufferPool;
+    private final KdbMessageHeader writeHeader = new KdbMessageHeader(null);
+    private final KdbMessageHeader readHeader = new KdbMessageHeader(null);
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<CompletableFuture<Object>> awaitingResponse = new ArrayDeque<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final List<AsyncSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Thread ioThread;
+    private final int initialCapacity;
+    private volatile boolean running = true;
+    private volatile boolean stopped;
+    private volatile IOException failure;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer readBuffer;
+    private Request deferred;
+    private boolean readsPaused;
+    private long oversizedBufferLastUsedNanos;
+
+    /**
+     * Initializes a new {@link SharedKdbClient} instance, connects to KDB+ over TCP and starts its I/O thread.
+     *
+     * @param hostname Host of remote q process
+     * @param port     Port of remote q process
+     * @param username Username for remote authorization
+     * @param password Password for remote authorization
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public SharedKdbClient(final String hostname, final int port, final String username, final String password) throws IOException, KdbException {
+        this(hostname, port, username, password, false, KdbClient.DEFAULT_STRING_ENCODING, KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Initializes a new {@link SharedKdbClient} instance, connects to KDB+ over TCP and starts its I/O thread.
+     *
+     * @param hostname         Host of remote q process
+     * @param port             Port of remote q process
+     * @param username         Username for remote authorization
+     * @param password         Password for remote authorization
+     * @param allowCompression consider compression on outgoing messages (given uncompressed serialized data also has a
+     *                         length greater than 2000 bytes and connection is not localhost)
+     * @param stringEncoding   character encoding to use when [de]-serializing strings
+     * @param bufferSize       initial size of the read and write buffers
+     * @param bufferPool       pool to take message buffers from
+     * @throws KdbException if access denied
+     * @throws IOException  if an I/O error occurs.
+     */
+    public SharedKdbClient(final String hostname, final int port, final String username, final String password, final boolean allowCompression, final String stringEncoding, final int bufferSize, final BufferPool bufferPool) throws IOException, KdbException {
+        this.bufferPool = bufferPool;
+        this.writeBuffer = bufferPool.acquire(bufferSize);
+        this.readBuffer = bufferPool.acquire(bufferSize);
+        this.initialCapacity = readBuffer.capacity();
+
+        SocketChannel channel = null;
+        Selector ioSelector = null;
+        try {
+            final var inetSocketAddress = new InetSocketAddress(hostname, port);
+            channel = KdbConnector.open(inetSocketAddress);
+
+            final var compressionAllowed = allowCompression && !KdbConnector.isLoopback(inetSocketAddress.getAddress());
+            kdbProtocol = new KdbProtocol(stringEncoding, compressionAllowed);
+
+            KdbConnector.handshake(channel, username, password, kdbProtocol, readBuffer);
+
+            channel.configureBlocking(false);
+            ioSelector = Selector.open();
+            selectionKey = channel.register(ioSelector, SelectionKey.OP_READ);
+        } catch (IOException | KdbException | RuntimeException e) {
+            KdbConnector.closeAfterFailure(ioSelector, e);
+            KdbConnector.closeAfterFailure(channel, e);
+            bufferPool.release(writeBuffer);
+            bufferPool.release(readBuffer);
+            throw e;
+        }
+        socketChannel = channel;
+        selector = ioSelector;
+
+        ioThread = Thread.ofPlatform()
+                .name("joke-io-" + hostname + ":" + port)
+                .daemon()
+                .start(this::runIoLoop);
+    }
+
+    /**
+     * Sends a sync message to the remote kdb+ process and blocks the calling thread until its response arrives. Any
+     * number of threads may call this at once.
+     *
+     * @param expr The expression to send
+     * @return deserialised response to request {@code expr}
+     * @throws KdbException if request evaluation resulted in an error
+     * @throws IOException  if an I/O error occurs, or the calling thread is interrupted while waiting
+     */
+    public Object send(final String expr) throws KdbException, IOException {
+        final CompletableFuture<Object> response = submit(expr);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KdbException kdbException) {
+                throw kdbException;
+            }
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues a sync message for the remote kdb+ process without blocking.
+     *
+     * @param expr The expression to send
+     * @return future completed with the deserialised response, or exceptionally with a {@link KdbException} if request
+     * evaluation resulted in an error or an {@link IOException} if the connection failed
+     */
+    public CompletableFuture<Object> submit(final String expr) {
+        return enqueue(MessageType.sync, expr.toCharArray());
+    }
+
+    /**
+     * Queues an async message for the remote kdb+ process without blocking. No response is read.
+     *
+     * @param msg The object to send, e.g. an expression as a {@code char[]} or a function call as an {@code Object[]}
+     * @return future completed once the message has been serialised into an outgoing batch
+     */
+    public CompletableFuture<Void> sendAsync(final Object msg) {
+        return enqueue(MessageType.async, msg).thenAccept(ignored -> {
+        });
+    }
+
+    private CompletableFuture<Object> enqueue(final MessageType messageType, final Object msg) {
+        final Request request = new Request(messageType, msg, new CompletableFuture<>());
+        if (!running) {
+            request.response.completeExceptionally(closedException());
+            return request.response;
+        }
+
+        submitted.offer(request);
+        if (!running) {
+            failSubmitted(closedException());
+        } else {
+            wakeup();
+        }
+        return request.response;
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Streams the async messages the remote pushes on this connection, e.g. after a tickerplant subscription.
+     * <p>
+     * Each subscriber sends {@code request} as a sync message when it subscribes, is failed if that results in an
+     * error, and then receives every async message arriving on the connection, deserialised, as its demand allows.
+     * Messages are buffered for a subscriber which has no demand; once {@link #MAX_BUFFERED_MESSAGES} are waiting, the
+     * I/O thread stops reading until the subscriber requests more, so the remote's queue absorbs the backlog rather than
+     * this process's heap. Reading stops for the whole connection, holding up responses to requests too.
+     * <p>
+     * Subscribers are signalled on the I/O thread, so should hand real work off to keep it free. They are completed when
+     * the client is closed, and failed if the connection fails or the remote sends an async error.
+     *
+     * @param request the subscription request, e.g. {@code ".u.sub[`trade;`]".toCharArray()} or
+     *                {@code new Object[]{".u.sub".toCharArray(), "trade", ""}}
+     * @return a publisher of the async messages the remote sends
+     */
+    public Flow.Publisher<Object> subscribe(final Object request) {
+        return subscriber -> {
+            final AsyncSubscription subscription = new AsyncSubscription(subscriber);
+            subscriber.onSubscribe(subscription);
+            subscriptions.add(subscription);
+            if (stopped) {
+                subscription.terminate(failure);
+                return;
+            }
+            enqueue(MessageType.sync, request).whenComplete((response, e) -> {
+                if (e != null) {
+                    subscription.fail(e);
+                }
+            });
+        };
+    }
+
+    private void runIoLoop() {
+        try {
+            while (running) {
+                wakeupPending.set(false);
+                serialiseSubmitted();
+                deliverToSubscribers();
+                writeToKdb();
+                releaseIdleBuffers();
+
+                selector.select(idleReleaseTimeoutMillis());
+                if (!readsPaused && selectionKey.isValid() && selectionKey.isReadable()) {
+                    readFromKdb();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        } finally {
+            running = false;
+            closeQuietly();
+            final IOException cause = closedException();
+            CompletableFuture<Object> awaiting;
+            while ((awaiting = awaitingResponse.poll()) != null) {
+                awaiting.completeExceptionally(cause);
+            }
+            if (deferred != null) {
+                deferred.response.completeExceptionally(cause);
+            }
+            failSubmitted(cause);
+            stopped = true;
+            for (final AsyncSubscription subscription : subscriptions) {
+                final Throwable pendingFailure = subscription.pendingFailure;
+                subscription.terminate(pendingFailure != null ? pendingFailure : failure);
+                subscription.buffered.clear();
+            }
+            subscriptions.clear();
+            bufferPool.release(writeBuffer);
+            bufferPool.release(readBuffer);
+        }
+    }
+
+    /**
+     * Serialises queued requests into the write buffer until the queue is empty or the buffer is full. A request which
+     * doesn't fit behind others is deferred to the next batch; one which doesn't fit on its own grows the buffer.
+     */
+    private void serialiseSubmitted() {
+        if (writeBuffer.position() > 0) {
+            return;
+        }
+
+        Request request;
+        while ((request = deferred != null ? deferred : submitted.poll()) != null) {
+            deferred = null;
+            final int start = writeBuffer.position();
+            final ByteBuffer messageBuffer = writeBuffer.slice(start, writeBuffer.capacity() - start);
+            try {
+                final int length = kdbProtocol.serialiseMessage(request.messageType, request.message, writeHeader.wrap(messageBuffer), messageBuffer);
+                writeBuffer.position(start + (kdbProtocol.shouldCompress(length)
+                        ? compressInPlace(messageBuffer, length)
+                        : length));
+                if (length > initialCapacity) {
+                    oversizedBufferLastUsedNanos = System.nanoTime();
+                }
+            } catch (BufferOverflowException e) {
+                deferred = request;
+                if (start > 0) {
+                    return;
+                }
+                final ByteBuffer largerBuffer = bufferPool.acquireLarger(writeBuffer.capacity());
+                bufferPool.release(writeBuffer);
+                writeBuffer = largerBuffer;
+                continue;
+            } catch (IOException | KdbException | RuntimeException e) {
+                request.response.completeExceptionally(e);
+                continue;
+            }
+
+            if (request.messageType == MessageType.sync) {
+                awaitingResponse.add(request.response);
+            } else {
+                request.response.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Compresses a serialised message over the top of itself.
+     *
+     * @return length of the message as it now stands in the buffer
+     */
+    private int compressInPlace(final ByteBuffer messageBuffer, final int length) {
+        final ByteBuffer compressed = bufferPool.acquire(length / 2);
+        try {
+            final int compressedLength = kdbProtocol.compress(messageBuffer, length, compressed);
+            if (compressedLength < 0) {
+                return length;
+            }
+            messageBuffer.put(0, compressed, 0, compressedLength);
+            return compressedLength;
+        } finally {
+            bufferPool.release(compressed);
+        }
+    }
+
+    private void writeToKdb() throws IOException {
+        final int readInterest = readsPaused ? 0 : SelectionKey.OP_READ;
+        if (writeBuffer.position() == 0) {
+            selectionKey.interestOps(readInterest);
+            return;
+        }
+
+        socketChannel.write(writeBuffer.flip());
+        writeBuffer.compact();
+        selectionKey.interestOps(writeBuffer.position() > 0
+                ? readInterest | SelectionKey.OP_WRITE
+                : readInterest);
+    }
+
+    /**
+     * Reads whatever is available and completes a future for each whole response in the read buffer.
+     */
+    private void readFromKdb() throws IOException {
+        if (-1 == socketChannel.read(readBuffer)) {
+            throw new EOFException("end of stream");
+        }
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= KdbMessageHeader.SIZE) {
+            final int start = readBuffer.position();
+            readBuffer.order(readBuffer.get(start) == KdbMessageHeader.TRUE ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            final int messageSize = readBuffer.getInt(start + 4);
+            if (messageSize < KdbMessageHeader.SIZE) {
+                throw new IOException("Invalid message size " + messageSize);
+            }
+            if (readBuffer.remaining() < messageSize) {
+                if (messageSize > readBuffer.capacity()) {
+                    final ByteBuffer largerBuffer = bufferPool.acquire(messageSize);
+                    largerBuffer.put(readBuffer);
+                    bufferPool.release(readBuffer);
+                    readBuffer = largerBuffer;
+                    return;
+                }
+                break;
+            }
+
+            final ByteBuffer message = readBuffer.slice(start, messageSize);
+            readBuffer.position(start + messageSize);
+            if (messageSize > initialCapacity) {
+                oversizedBufferLastUsedNanos = System.nanoTime();
+            }
+            handleMessage(message);
+        }
+        readBuffer.compact();
+    }
+
+    /**
+     * Hands oversized read and write buffers back to the pool once they have drained and been unused for the pool's
+     * idle release period.
+     */
+    private void releaseIdleBuffers() {
+        if (System.nanoTime() - oversizedBufferLastUsedNanos <= bufferPool.getIdleReleaseNanos()) {
+            return;
+        }
+        if (writeBuffer.capacity() > initialCapacity && writeBuffer.position() == 0 && deferred == null) {
+            bufferPool.release(writeBuffer);
+            writeBuffer = bufferPool.acquire(initialCapacity);
+        }
+        if (readBuffer.capacity() > initialCapacity && readBuffer.position() == 0) {
+            bufferPool.release(readBuffer);
+            readBuffer = bufferPool.acquire(initialCapacity);
+        }
+    }
+
+    /**
+     * @return how long to wait for the connection before checking oversized buffers again, or 0 to wait indefinitely
+     */
+    private long idleReleaseTimeoutMillis() {
+        if (writeBuffer.capacity() <= initialCapacity && readBuffer.capacity() <= initialCapacity) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(bufferPool.getIdleReleaseNanos()) + 1;
+    }
+
+    private void handleMessage(final ByteBuffer message) {
+        readHeader.wrap(message);
+        if (readHeader.getMessageType() != MessageType.response) {
+            publish(message);
+            return;
+        }
+
+        final CompletableFuture<Object> response = awaitingResponse.poll();
+        if (response == null) {
+            throw new IllegalStateException("Received a response with no request awaiting one");
+        }
+        if (!readHeader.isCompressed()) {
+            completeResponse(response, message);
+            return;
+        }
+
+        final ByteBuffer uncompressed = bufferPool.acquire(kdbProtocol.uncompressedLength(readHeader, message));
+        try {
+            kdbProtocol.uncompress(readHeader, message, uncompressed);
+            completeResponse(response, uncompressed);
+        } finally {
+            bufferPool.release(uncompressed);
+        }
+    }
+
+    private void completeResponse(final CompletableFuture<Object> response, final ByteBuffer message) {
+        try {
+            response.complete(kdbProtocol.deserialize(readHeader.wrap(message), message));
+        } catch (KdbException | IOException | RuntimeException e) {
+            response.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Buffers an async message for every subscriber, handing it straight on to those with demand.
+     */
+    private void publish(final ByteBuffer message) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        Object published;
+        if (!readHeader.isCompressed()) {
+            published = deserialiseMessage(message);
+        } else {
+            final ByteBuffer uncompressed = bufferPool.acquire(kdbProtocol.uncompressedLength(readHeader, message));
+            try {
+                kdbProtocol.uncompress(readHeader, message, uncompressed);
+                published = deserialiseMessage(uncompressed);
+            } finally {
+                bufferPool.release(uncompressed);
+            }
+        }
+
+        for (final AsyncSubscription subscription : subscriptions) {
+            if (subscription.isDone()) {
+                continue;
+            }
+            if (published instanceof Throwable error) {
+                subscription.terminate(error);
+            } else {
+                subscription.buffered.add(published);
+                subscription.deliver();
+            }
+        }
+    }
+
+    /**
+     * @return the deserialised message, or the exception deserialising it threw
+     */
+    private Object deserialiseMessage(final ByteBuffer message) {
+        try {
+            return kdbProtocol.deserialize(readHeader.wrap(message), message);
+        } catch (KdbException | IOException | RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Hands buffered messages to subscribers which have since requested more, drops those cancelled or terminated, and
+     * pauses reading while any subscriber is too far behind.
+     */
+    private void deliverToSubscribers() {
+        boolean backlogged = false;
+        for (final AsyncSubscription subscription : subscriptions) {
+            subscription.deliver();
+            if (subscription.isDone()) {
+                subscription.buffered.clear();
+                subscriptions.remove(subscription);
+                continue;
+            }
+            backlogged |= subscription.buffered.size() >= MAX_BUFFERED_MESSAGES;
+        }
+        readsPaused = backlogged;
+    }
+
+    private void failSubmitted(final IOException cause) {
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            request.response.completeExceptionally(cause);
+        }
+    }
+
+    private IOException closedException() {
+        final IOException cause = failure;
+        return cause != null ? cause : new ClosedChannelException();
+    }
+
+    private void closeQuietly() {
+        try {
+            selector.close();
+            socketChannel.close();
+        } catch (IOException ignored) {
+            // already failing or closing
+        }
+    }
+
+    /**
+     * @return true while the connection is open and the I/O thread is running
+     */
+    public boolean isOpen() {
+        return running;
+    }
+
+    /**
+     * Stops the I/O thread and closes the connection. Requests still awaiting a response are completed exceptionally.
+     *
+     * @throws IOException if interrupted waiting for the I/O thread to stop
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() == ioThread) {
+            return;
+        }
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing connection");
+        }
+    }
+
+    private record Request(MessageType messageType, Object message, CompletableFuture<Object> response) {
+    }
+
+    /**
+     * A subscriber's demand and the messages waiting for it. Demand may be added, the subscription cancelled, and a
+     * failure recorded, from any thread; the subscriber is only signalled on the I/O thread, which drops the subscription
+     * once it is done. Once the I/O thread has stopped, a late subscriber is terminated by the thread subscribing it.
+     */
+    private final class AsyncSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Object> subscriber;
+        private final ArrayDeque<Object> buffered = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Throwable pendingFailure;
+
+        private AsyncSubscription(final Flow.Subscriber<? super Object> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requested " + n + " messages, which is not positive"));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            wakeup();
+        }
+
+        @Override
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                wakeup();
+            }
+        }
+
+        /**
+         * Records a failure for the I/O thread to hand to the subscriber, keeping the first if there are several.
+         */
+        private void fail(final Throwable cause) {
+            if (pendingFailure == null) {
+                pendingFailure = cause;
+            }
+            wakeup();
+        }
+
+        private boolean isDone() {
+            return done.get();
+        }
+
+        private void deliver() {
+            final Throwable cause = pendingFailure;
+            if (cause != null) {
+                terminate(cause);
+                return;
+            }
+            while (!buffered.isEmpty() && demand.get() > 0 && !done.get()) {
+                demand.decrementAndGet();
+                try {
+                    subscriber.onNext(buffered.poll());
+                } catch (RuntimeException e) {
+                    cancel();
+                }
+            }
+        }
+
+        /**
+         * Completes the subscriber, or fails it if there is a cause, unless it is already done.
+         */
+        private void terminate(final Throwable cause) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            wakeup();
+            if (cause == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(cause);
+            }
+        }
+    }
+}
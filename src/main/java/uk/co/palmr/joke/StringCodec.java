@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Encodes and decodes the strings, symbols and char vectors of kdb+ messages with a character encoding resolved once,
+ * rather than looked up by name for every string.
+ * <p>
+ * ISO-8859-1 and US-ASCII, which between them cover nearly all symbol data, map each char to a single byte, so they are
+ * written straight into the message buffer and read straight out of it without an intermediate byte array. Other
+ * encodings go through {@link Charset}. Unmappable chars become {@code '?'}, as with {@link String#getBytes(Charset)}.
+ */
+final class StringCodec {
+    private static final byte REPLACEMENT_BYTE = '?';
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    private final String encoding;
+    private final Charset charset;
+    /**
+     * Highest char the encoding maps to a single byte of the same value, or -1 if it isn't a single byte encoding.
+     */
+    private final int maxSingleByteChar;
+
+    /**
+     * @param encoding name of the character encoding. An unsupported encoding is only reported, as an
+     *                 {@link UnsupportedEncodingException}, when a string is first encoded or decoded.
+     */
+    StringCodec(final String encoding) {
+        this.encoding = encoding;
+        this.charset = lookup(encoding);
+        if (StandardCharsets.ISO_8859_1.equals(charset)) {
+            maxSingleByteChar = 0xff;
+        } else if (StandardCharsets.US_ASCII.equals(charset)) {
+            maxSingleByteChar = 0x7f;
+        } else {
+            maxSingleByteChar = -1;
+        }
+    }
+
+    /**
+     * @return the resolved character set
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     */
+    Charset charset() throws UnsupportedEncodingException {
+        if (charset == null) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+        return charset;
+    }
+
+    /**
+     * Writes a string as a NUL terminated symbol. kdb+ symbols can't hold NUL, so the string is cut short at its first.
+     *
+     * @param string string to write, null being written as the empty symbol
+     * @param buffer buffer to write to
+     */
+    void writeSymbol(final String string, final ByteBuffer buffer) throws UnsupportedEncodingException {
+        if (string != null) {
+            if (maxSingleByteChar > 0) {
+                for (int idx = 0; idx < string.length(); idx++) {
+                    final char c = string.charAt(idx);
+                    if (c == KdbProtocol.NULL_BYTE) {
+                        break;
+                    }
+                    if (isSurrogatePair(c, idx + 1 < string.length() ? string.charAt(idx + 1) : 0)) {
+                        idx++;
+                    }
+                    buffer.put(singleByte(c));
+                }
+            } else {
+                final byte[] bytes = string.getBytes(charset());
+                for (int idx = 0; idx < bytes.length && bytes[idx] != KdbProtocol.NULL_BYTE; idx++) {
+                    buffer.put(bytes[idx]);
+                }
+            }
+        }
+        buffer.put(KdbProtocol.NULL_BYTE);
+    }
+
+    /**
+     * Writes the chars of a char vector.
+     *
+     * @param chars  chars to write
+     * @param buffer buffer to write to
+     */
+    void writeChars(final char[] chars, final ByteBuffer buffer) throws UnsupportedEncodingException {
+        if (maxSingleByteChar > 0) {
+            for (int idx = 0; idx < chars.length; idx++) {
+                if (isSurrogatePair(chars[idx], idx + 1 < chars.length ? chars[idx + 1] : 0)) {
+                    idx++;
+                }
+                buffer.put(singleByte(chars[idx]));
+            }
+        } else {
+            buffer.put(new String(chars).getBytes(charset()));
+        }
+    }
+
+    /**
+     * @param buffer buffer holding the encoded string
+     * @param start  index of the first byte
+     * @param length number of bytes
+     * @return the decoded string
+     */
+    String decode(final ByteBuffer buffer, final int start, final int length) throws UnsupportedEncodingException {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, charset());
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, charset());
+    }
+
+    /**
+     * @param buffer buffer holding the encoded chars
+     * @param start  index of the first byte
+     * @param length number of bytes
+     * @return the decoded chars
+     */
+    char[] decodeChars(final ByteBuffer buffer, final int start, final int length) throws UnsupportedEncodingException {
+        if (maxSingleByteChar > 0) {
+            final char[] chars = new char[length];
+            for (int idx = 0; idx < length; idx++) {
+                final int b = buffer.get(start + idx) & 0xff;
+                chars[idx] = b <= maxSingleByteChar ? (char) b : REPLACEMENT_CHAR;
+            }
+            return chars;
+        }
+        return charset().decode(buffer.slice(start, length)).toString().toCharArray();
+    }
+
+    /**
+     * A surrogate pair is one unmappable code point, so becomes a single replacement byte.
+     */
+    private static boolean isSurrogatePair(final char c, final char next) {
+        return Character.isHighSurrogate(c) && Character.isLowSurrogate(next);
+    }
+
+    private byte singleByte(final char c) {
+        return c <= maxSingleByteChar ? (byte) c : REPLACEMENT_BYTE;
+    }
+
+    private static Charset lookup(final String encoding) {
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+}
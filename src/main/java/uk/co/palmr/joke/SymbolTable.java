@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bounded intern table for symbols, keyed on their encoded bytes. Symbols in market data repeat heavily, so handing
+ * back the same {@link String} for the same bytes saves decoding and allocating one per occurrence.
+ * <p>
+ * The table is direct mapped: each slot holds the last symbol which hashed to it, and a colliding symbol simply takes
+ * over the slot. Memory use is bounded by the slot count and {@link #MAX_SYMBOL_LENGTH}, whatever the data looks like.
+ * <p>
+ * Not thread safe; each {@link KdbProtocol} has its own.
+ */
+final class SymbolTable {
+    static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * Symbols longer than this many bytes are decoded every time rather than interned.
+     */
+    static final int MAX_SYMBOL_LENGTH = 64;
+
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+
+    SymbolTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    SymbolTable(final int capacity) {
+        final int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.keys = new byte[slots][];
+        this.values = new String[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Accumulates a byte into a symbol's hash, so the hash can be built while scanning for the NUL terminator.
+     */
+    static int hash(final int hash, final byte b) {
+        return 31 * hash + b;
+    }
+
+    /**
+     * @param buffer      buffer holding the symbol
+     * @param start       index of the first byte of the symbol
+     * @param length      length of the symbol in bytes, excluding the NUL terminator
+     * @param hash        hash of the symbol's bytes, built with {@link #hash(int, byte)} from 0
+     * @param stringCodec codec for the character encoding the symbol was written with
+     * @return the decoded symbol, the same instance as last time if the symbol is still in the table
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     */
+    String intern(final ByteBuffer buffer, final int start, final int length, final int hash, final StringCodec stringCodec) throws UnsupportedEncodingException {
+        if (length > MAX_SYMBOL_LENGTH) {
+            return stringCodec.decode(buffer, start, length);
+        }
+
+        final int slot = (hash ^ (hash >>> 16)) & mask;
+        final byte[] key = keys[slot];
+        if (key != null && key.length == length && matches(key, buffer, start)) {
+            return values[slot];
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        final String value = stringCodec.decode(buffer, start, length);
+        keys[slot] = bytes;
+        values[slot] = value;
+        return value;
+    }
+
+    private static boolean matches(final byte[] key, final ByteBuffer buffer, final int start) {
+        if (buffer.hasArray()) {
+            final int offset = buffer.arrayOffset() + start;
+            return Arrays.equals(key, 0, key.length, buffer.array(), offset, offset + key.length);
+        }
+        for (int idx = 0; idx < key.length; idx++) {
+            if (key[idx] != buffer.get(start + idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
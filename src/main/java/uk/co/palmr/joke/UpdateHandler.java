@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import uk.co.palmr.joke.messages.FlipView;
+
+/**
+ * Receives the messages a tickerplant pushes to a {@link KdbSubscriber}.
+ */
+public interface UpdateHandler {
+    /**
+     * Called for each update, with its rows read in place from the subscriber's read buffer.
+     *
+     * @param table name of the table updated
+     * @param rows  view over the rows of the update, valid only until this call returns
+     */
+    void onUpdate(String table, FlipView rows);
+
+    /**
+     * Called, deserialised, for any other async message, such as {@code (`.u.end;date)} at end of day, or an update
+     * of a single row of atoms. Ignores the message by default.
+     *
+     * @param message the deserialised message
+     */
+    default void onMessage(final Object message) {
+    }
+}
@@ -18,12 +18,23 @@ public class AuthenticateResponse {
     public static final int SIZE = 1;
     private static final int OFFSET_VERSION = 0;
 
-    private final ByteBuffer buffer;
+    private ByteBuffer buffer;
 
     public AuthenticateResponse(final ByteBuffer buffer) {
         this.buffer = buffer;
     }
 
+    /**
+     * Points this flyweight at a different buffer, e.g. after the message buffer has been replaced by a larger one.
+     *
+     * @param buffer buffer holding the message
+     * @return this flyweight
+     */
+    public AuthenticateResponse wrap(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
     public byte getVersion() {
         return buffer.get(OFFSET_VERSION);
     }
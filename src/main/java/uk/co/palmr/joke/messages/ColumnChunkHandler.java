@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+/**
+ * Receives a table a chunk of a column at a time, as a {@link TableStreamDecoder} decodes it.
+ */
+@FunctionalInterface
+public interface ColumnChunkHandler {
+    /**
+     * Called for each run of complete values of a column as they arrive. Columns arrive one after another, in order,
+     * each split into as many chunks as it takes.
+     *
+     * @param column     index of the column
+     * @param columnName name of the column
+     * @param firstRow   row of the chunk's first value
+     * @param chunk      view over the chunk's values, only valid for the duration of the call
+     */
+    void onChunk(int column, String columnName, int firstRow, ColumnView chunk);
+}
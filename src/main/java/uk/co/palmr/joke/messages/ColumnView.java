@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Objects;
+
+/**
+ * Flyweight cursor over a serialised kdb+ vector or list, reading elements straight from the message buffer. Nothing is
+ * deserialised until an element is asked for, and numeric elements are never boxed.
+ * <p>
+ * Temporal vectors are read as their raw kdb+ values, e.g. {@link #getLong(int)} on a timestamp column gives nanoseconds
+ * since 2000.01.01 and {@link #getInt(int)} on a date column gives days since 2000.01.01.
+ * <p>
+ * A view is only valid until the buffer it wraps is reused, e.g. by the next request on the client it came from.
+ */
+public final class ColumnView {
+    private final Charset charset;
+    private ByteBuffer buffer;
+    private DataType type;
+    private int size;
+    private int elementsOffset;
+    private int[] elementOffsets = new int[0];
+    private boolean elementOffsetsResolved;
+
+    /**
+     * @param charset character set symbols and strings were encoded with
+     */
+    public ColumnView(final Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Points this view at a vector or list.
+     *
+     * @param buffer buffer holding the message, in the byte order of its header
+     * @param offset index of the type byte of the vector
+     * @return this view
+     * @throws IllegalArgumentException if the object at {@code offset} isn't a vector or list
+     */
+    public ColumnView wrap(final ByteBuffer buffer, final int offset) {
+        this.buffer = buffer;
+        this.type = KdbObjectWalker.vectorType(buffer.get(offset));
+        this.size = buffer.getInt(offset + 2);
+        this.elementsOffset = offset + KdbObjectWalker.VECTOR_HEADER_SIZE;
+        this.elementOffsetsResolved = false;
+        return this;
+    }
+
+    /**
+     * Points this view at a run of complete elements of a vector, e.g. a chunk of a column which is still arriving.
+     *
+     * @param buffer         buffer holding the elements, in the byte order of the message
+     * @param type           vector type
+     * @param elementsOffset index of the first element
+     * @param size           number of elements
+     * @return this view
+     */
+    ColumnView wrapElements(final ByteBuffer buffer, final DataType type, final int elementsOffset, final int size) {
+        this.buffer = buffer;
+        this.type = type;
+        this.size = size;
+        this.elementsOffset = elementsOffset;
+        this.elementOffsetsResolved = false;
+        return this;
+    }
+
+    public DataType getType() {
+        return type;
+    }
+
+    /**
+     * @return number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean getBoolean(final int row) {
+        require(type == DataType.BooleanArray, "boolean");
+        return buffer.get(elementsOffset + Objects.checkIndex(row, size)) != 0;
+    }
+
+    /**
+     * Reads an element of a boolean, byte or char vector.
+     */
+    public byte getByte(final int row) {
+        require(type == DataType.ByteArray || type == DataType.BooleanArray || type == DataType.CharArray, "byte");
+        return buffer.get(elementsOffset + Objects.checkIndex(row, size));
+    }
+
+    public short getShort(final int row) {
+        require(type == DataType.ShortArray, "short");
+        return buffer.getShort(elementsOffset + Objects.checkIndex(row, size) * Short.BYTES);
+    }
+
+    /**
+     * Reads an element of an int, month, date, minute, second or time vector.
+     */
+    public int getInt(final int row) {
+        require(type.getAtomicByteSize() == Integer.BYTES && type != DataType.FloatArray, "int");
+        return buffer.getInt(elementsOffset + Objects.checkIndex(row, size) * Integer.BYTES);
+    }
+
+    /**
+     * Reads an element of a long, timestamp or timespan vector.
+     */
+    public long getLong(final int row) {
+        require(type == DataType.LongArray || type == DataType.InstantArray || type == DataType.TimespanArray, "long");
+        return buffer.getLong(elementsOffset + Objects.checkIndex(row, size) * Long.BYTES);
+    }
+
+    public float getFloat(final int row) {
+        require(type == DataType.FloatArray, "float");
+        return buffer.getFloat(elementsOffset + Objects.checkIndex(row, size) * Float.BYTES);
+    }
+
+    /**
+     * Reads an element of a float or datetime vector.
+     */
+    public double getDouble(final int row) {
+        require(type == DataType.DoubleArray || type == DataType.LocalDateTimeArray, "double");
+        return buffer.getDouble(elementsOffset + Objects.checkIndex(row, size) * Double.BYTES);
+    }
+
+    /**
+     * Reads an element of a symbol vector. Finding a symbol means scanning the vector, so the start of every symbol is
+     * indexed on first use.
+     */
+    public String getSymbol(final int row) {
+        require(type == DataType.StringArray, "symbol");
+        final int start = elementOffset(row);
+        return KdbObjectWalker.decode(buffer, start, KdbObjectWalker.endOfSymbol(buffer, start) - start, charset);
+    }
+
+    /**
+     * Reads an element of a symbol vector, or of a list of char vectors such as a q string column.
+     */
+    public String getString(final int row) {
+        if (type == DataType.StringArray) {
+            return getSymbol(row);
+        }
+        require(type == DataType.List, "string");
+        final int start = elementOffset(row);
+        if (buffer.get(start) != DataType.CharArray.getTypeCode()) {
+            throw new IllegalStateException("Element " + row + " is not a char vector");
+        }
+        return KdbObjectWalker.decode(buffer, start + KdbObjectWalker.VECTOR_HEADER_SIZE, buffer.getInt(start + 2), charset);
+    }
+
+    /**
+     * Points another view at a vector held in this list, e.g. a row of a nested column.
+     *
+     * @param row  index of the element
+     * @param view view to point at the element
+     * @return {@code view}
+     */
+    public ColumnView getVector(final int row, final ColumnView view) {
+        require(type == DataType.List, "nested vector");
+        return view.wrap(buffer, elementOffset(row));
+    }
+
+    private int elementOffset(final int row) {
+        Objects.checkIndex(row, size);
+        if (!elementOffsetsResolved) {
+            resolveElementOffsets();
+        }
+        return elementOffsets[row];
+    }
+
+    private void resolveElementOffsets() {
+        if (elementOffsets.length < size) {
+            elementOffsets = new int[size];
+        }
+        int position = elementsOffset;
+        for (int idx = 0; idx < size; idx++) {
+            elementOffsets[idx] = position;
+            position = type == DataType.StringArray
+                    ? KdbObjectWalker.endOfSymbol(buffer, position) + 1
+                    : KdbObjectWalker.skip(buffer, position);
+        }
+        elementOffsetsResolved = true;
+    }
+
+    private void require(final boolean supported, final String valueType) {
+        if (!supported) {
+            throw new IllegalStateException(type + " has no " + valueType + " elements");
+        }
+    }
+}
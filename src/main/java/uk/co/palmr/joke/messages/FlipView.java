@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Objects;
+
+/**
+ * Flyweight over a serialised kdb+ table, handing out {@link ColumnView}s over its columns in place. Columns are only
+ * located as far as the last one asked for, so reading a couple of columns from a wide table skips the rest without
+ * decoding them.
+ * <p>
+ * A view is only valid until the buffer it wraps is reused, e.g. by the next request on the client it came from.
+ */
+public final class FlipView {
+    private final Charset charset;
+    private final ColumnView columnNames;
+    private ByteBuffer buffer;
+    private String[] names;
+    private int columnCount;
+    private int[] columnOffsets = new int[0];
+    private int resolvedColumns;
+
+    /**
+     * @param charset character set symbols and strings were encoded with
+     */
+    public FlipView(final Charset charset) {
+        this.charset = charset;
+        this.columnNames = new ColumnView(charset);
+    }
+
+    /**
+     * Points this view at a table.
+     *
+     * @param buffer buffer holding the message, in the byte order of its header
+     * @param offset index of the type byte of the table
+     * @return this view
+     * @throws IllegalArgumentException if the object at {@code offset} isn't a table
+     */
+    public FlipView wrap(final ByteBuffer buffer, final int offset) {
+        if (buffer.get(offset) != DataType.Flip.getTypeCode() || buffer.get(offset + 2) != DataType.Dict.getTypeCode()) {
+            throw new IllegalArgumentException("Not a table: " + buffer.get(offset));
+        }
+        this.buffer = buffer;
+        this.names = null;
+
+        final int namesOffset = offset + 3;
+        columnNames.wrap(buffer, namesOffset);
+        if (columnNames.getType() != DataType.StringArray) {
+            throw new IllegalArgumentException("Table column names are not symbols: " + columnNames.getType());
+        }
+        columnCount = columnNames.size();
+
+        final int columnsOffset = KdbObjectWalker.skip(buffer, namesOffset);
+        if (buffer.get(columnsOffset) != DataType.List.getTypeCode() || buffer.getInt(columnsOffset + 2) != columnCount) {
+            throw new IllegalArgumentException("Table columns don't match its column names");
+        }
+        return locateColumns(columnsOffset);
+    }
+
+    /**
+     * Points this view at a bare list of columns, such as the data of a tickerplant update, naming them after a
+     * table's schema.
+     *
+     * @param buffer      buffer holding the message, in the byte order of its header
+     * @param offset      index of the type byte of the list of columns
+     * @param columnNames names of the columns, in order. Held rather than copied, so must not change while in use.
+     * @return this view
+     * @throws IllegalArgumentException if the object at {@code offset} isn't a list with one item per name
+     */
+    public FlipView wrap(final ByteBuffer buffer, final int offset, final String[] columnNames) {
+        if (buffer.get(offset) != DataType.List.getTypeCode() || buffer.getInt(offset + 2) != columnNames.length) {
+            throw new IllegalArgumentException("Columns don't match the column names");
+        }
+        this.buffer = buffer;
+        this.names = columnNames;
+        columnCount = columnNames.length;
+        return locateColumns(offset);
+    }
+
+    private FlipView locateColumns(final int columnsOffset) {
+        if (columnOffsets.length < columnCount) {
+            columnOffsets = new int[columnCount];
+        }
+        if (columnCount > 0) {
+            columnOffsets[0] = columnsOffset + KdbObjectWalker.VECTOR_HEADER_SIZE;
+        }
+        resolvedColumns = Math.min(columnCount, 1);
+        return this;
+    }
+
+    public int columnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return number of rows, taken from the first column
+     */
+    public int rowCount() {
+        return columnCount == 0 ? 0 : buffer.getInt(columnOffset(0) + 2);
+    }
+
+    public String columnName(final int column) {
+        if (names != null) {
+            Objects.checkIndex(column, columnCount);
+            return names[column];
+        }
+        return columnNames.getSymbol(column);
+    }
+
+    /**
+     * @param name column name
+     * @return index of the column, or -1 if the table has no such column
+     */
+    public int columnIndex(final String name) {
+        for (int idx = 0; idx < columnCount; idx++) {
+            if (name.equals(columnName(idx))) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Points a view at a column of this table.
+     *
+     * @param column index of the column
+     * @param view   view to point at the column
+     * @return {@code view}
+     */
+    public ColumnView column(final int column, final ColumnView view) {
+        return view.wrap(buffer, columnOffset(column));
+    }
+
+    /**
+     * Points a view at a column of this table.
+     *
+     * @param name name of the column
+     * @param view view to point at the column
+     * @return {@code view}
+     * @throws IllegalArgumentException if the table has no such column
+     */
+    public ColumnView column(final String name, final ColumnView view) {
+        final int column = columnIndex(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("No such column: " + name);
+        }
+        return column(column, view);
+    }
+
+    /**
+     * @return a new view over the named column
+     * @see #column(String, ColumnView)
+     */
+    public ColumnView column(final String name) {
+        return column(name, new ColumnView(charset));
+    }
+
+    private int columnOffset(final int column) {
+        Objects.checkIndex(column, columnCount);
+        while (resolvedColumns <= column) {
+            columnOffsets[resolvedColumns] = KdbObjectWalker.skip(buffer, columnOffsets[resolvedColumns - 1]);
+            resolvedColumns++;
+        }
+        return columnOffsets[column];
+    }
+}
@@ -27,12 +27,23 @@ public class KdbMessageHeader {
     private static final int OFFSET_IS_COMPRESSED = 2;
     private static final int OFFSET_MESSAGE_SIZE = 4;
 
-    private final ByteBuffer buffer;
+    private ByteBuffer buffer;
 
     public KdbMessageHeader(final ByteBuffer buffer) {
         this.buffer = buffer;
     }
 
+    /**
+     * Points this flyweight at a different buffer, e.g. after the message buffer has been replaced by a larger one.
+     *
+     * @param buffer buffer holding the message
+     * @return this flyweight
+     */
+    public KdbMessageHeader wrap(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
     public ByteOrder getByteOrder() {
         return buffer.get(OFFSET_IS_LITTLE_ENDIAN) == TRUE
                 ? ByteOrder.LITTLE_ENDIAN
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Steps over serialised kdb+ objects in place, without deserialising them, so views can find the parts they need.
+ */
+final class KdbObjectWalker {
+    /**
+     * Bytes ahead of the elements of a vector: type, attributes and element count.
+     */
+    static final int VECTOR_HEADER_SIZE = 6;
+
+    private static final byte NULL_BYTE = 0;
+
+    private KdbObjectWalker() {
+    }
+
+    /**
+     * @param buffer buffer holding serialised kdb+ objects, in the byte order of the message
+     * @param offset index of the type byte of an object
+     * @return index of the byte after the object
+     */
+    static int skip(final ByteBuffer buffer, final int offset) {
+        final byte typeCode = buffer.get(offset);
+        if (typeCode < 0) {
+            final DataType type = atomType(typeCode);
+            return type == DataType.String || type == DataType.Exception
+                    ? endOfSymbol(buffer, offset + 1) + 1
+                    : offset + 1 + type.getAtomicByteSize();
+        }
+
+        if (typeCode == DataType.List.getTypeCode()) {
+            final int count = buffer.getInt(offset + 2);
+            int position = offset + VECTOR_HEADER_SIZE;
+            for (int idx = 0; idx < count; idx++) {
+                position = skip(buffer, position);
+            }
+            return position;
+        }
+
+        if (typeCode <= DataType.LocalTimeArray.getTypeCode()) {
+            final int count = buffer.getInt(offset + 2);
+            if (typeCode == DataType.StringArray.getTypeCode()) {
+                int position = offset + VECTOR_HEADER_SIZE;
+                for (int idx = 0; idx < count; idx++) {
+                    position = endOfSymbol(buffer, position) + 1;
+                }
+                return position;
+            }
+            return offset + VECTOR_HEADER_SIZE + count * vectorType(typeCode).getAtomicByteSize();
+        }
+
+        if (typeCode == DataType.Flip.getTypeCode()) {
+            return skip(buffer, offset + 2);
+        }
+        if (typeCode == DataType.Dict.getTypeCode()) {
+            return skip(buffer, skip(buffer, offset + 1));
+        }
+        if (typeCode == DataType.Lambda.getTypeCode()) {
+            return skip(buffer, endOfSymbol(buffer, offset + 1) + 1);
+        }
+        if (typeCode == DataType.UnaryPrimitive.getTypeCode()
+                || typeCode == DataType.Operator.getTypeCode()
+                || typeCode == DataType.Iterator.getTypeCode()) {
+            return offset + 2;
+        }
+        if (typeCode == DataType.Projection.getTypeCode() || typeCode == DataType.Composition.getTypeCode()) {
+            final int count = buffer.getInt(offset + 1);
+            int position = offset + 1 + Integer.BYTES;
+            for (int idx = 0; idx < count; idx++) {
+                position = skip(buffer, position);
+            }
+            return position;
+        }
+        if (typeCode >= DataType.Each.getTypeCode() && typeCode <= DataType.EachLeft.getTypeCode()) {
+            return skip(buffer, offset + 1);
+        }
+        throw new IllegalArgumentException("Unsupported type: " + typeCode);
+    }
+
+    /**
+     * Steps over an object which may not have arrived in full.
+     *
+     * @param buffer buffer holding serialised kdb+ objects up to its limit, in the byte order of the message
+     * @param offset index of the type byte of an object
+     * @return index of the byte after the object, or -1 if the object runs past the buffer's limit
+     */
+    static int skipIfComplete(final ByteBuffer buffer, final int offset) {
+        try {
+            final int end = skip(buffer, offset);
+            return end <= buffer.limit() ? end : -1;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param buffer   buffer holding serialised kdb+ objects
+     * @param position index of the first byte of a NUL terminated symbol
+     * @return index of the terminating NUL
+     */
+    static int endOfSymbol(final ByteBuffer buffer, final int position) {
+        int end = position;
+        while (buffer.get(end) != NULL_BYTE) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Decodes bytes of the buffer into a string, straight from the backing array where there is one.
+     */
+    static String decode(final ByteBuffer buffer, final int position, final int length, final Charset charset) {
+        if (length == 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, charset);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, charset);
+    }
+
+    static DataType vectorType(final byte typeCode) {
+        final DataType type = DataType.getKdbType(typeCode);
+        if (type == null || type.isAtom() || type.getTypeCode() > DataType.LocalTimeArray.getTypeCode()) {
+            throw new IllegalArgumentException("Not a vector type: " + typeCode);
+        }
+        return type;
+    }
+
+    private static DataType atomType(final byte typeCode) {
+        final DataType type = DataType.getKdbType(typeCode);
+        if (type == null) {
+            throw new IllegalArgumentException("Unsupported type: " + typeCode);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Flyweight over a serialised kdb+ object, e.g. the body of a response message, which reads it in place rather than
+ * deserialising it into Java objects. Tables and vectors are read through {@link FlipView} and {@link ColumnView}, and
+ * a keyed table, being a dictionary of two tables, through {@link #key(ResultView)} and {@link #value(ResultView)}.
+ * <p>
+ * A view is only valid until the buffer it wraps is reused, e.g. by the next request on the client it came from.
+ */
+public final class ResultView {
+    private final Charset charset;
+    private final FlipView flipView;
+    private final ColumnView columnView;
+    private ByteBuffer buffer;
+    private int offset;
+    private DataType type;
+
+    /**
+     * @param charset character set symbols and strings were encoded with
+     */
+    public ResultView(final Charset charset) {
+        this.charset = charset;
+        this.flipView = new FlipView(charset);
+        this.columnView = new ColumnView(charset);
+    }
+
+    /**
+     * Points this view at an object.
+     *
+     * @param buffer buffer holding the message, in the byte order of its header
+     * @param offset index of the type byte of the object
+     * @return this view
+     */
+    public ResultView wrap(final ByteBuffer buffer, final int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.type = DataType.getKdbType(buffer.get(offset));
+        return this;
+    }
+
+    /**
+     * @return type of the object, or null if it is a type this library doesn't support
+     */
+    public DataType getType() {
+        return type;
+    }
+
+    /**
+     * @return this object as a table, through a view owned by this one
+     * @throws IllegalArgumentException if the object isn't a table
+     */
+    public FlipView asFlip() {
+        return flipView.wrap(buffer, offset);
+    }
+
+    /**
+     * @return this object as a vector or list, through a view owned by this one
+     * @throws IllegalArgumentException if the object isn't a vector or list
+     */
+    public ColumnView asVector() {
+        return columnView.wrap(buffer, offset);
+    }
+
+    /**
+     * Points another view at the keys of this dictionary.
+     *
+     * @param view view to point at the keys
+     * @return {@code view}
+     */
+    public ResultView key(final ResultView view) {
+        require(type == DataType.Dict, "keys");
+        return view.wrap(buffer, offset + 1);
+    }
+
+    /**
+     * Points another view at the values of this dictionary.
+     *
+     * @param view view to point at the values
+     * @return {@code view}
+     */
+    public ResultView value(final ResultView view) {
+        require(type == DataType.Dict, "values");
+        return view.wrap(buffer, KdbObjectWalker.skip(buffer, offset + 1));
+    }
+
+    public boolean getBoolean() {
+        require(type == DataType.Boolean, "boolean value");
+        return buffer.get(offset + 1) != 0;
+    }
+
+    /**
+     * Reads an int, month, date, minute, second or time atom.
+     */
+    public int getInt() {
+        require(type != null && type.isAtom() && type.getAtomicByteSize() == Integer.BYTES && type != DataType.Float, "int value");
+        return buffer.getInt(offset + 1);
+    }
+
+    /**
+     * Reads a long, timestamp or timespan atom.
+     */
+    public long getLong() {
+        require(type == DataType.Long || type == DataType.Instant || type == DataType.Timespan, "long value");
+        return buffer.getLong(offset + 1);
+    }
+
+    /**
+     * Reads a float or datetime atom.
+     */
+    public double getDouble() {
+        require(type == DataType.Double || type == DataType.LocalDateTime, "double value");
+        return buffer.getDouble(offset + 1);
+    }
+
+    public String getSymbol() {
+        require(type == DataType.String, "symbol value");
+        return KdbObjectWalker.decode(buffer, offset + 1, KdbObjectWalker.endOfSymbol(buffer, offset + 1) - offset - 1, charset);
+    }
+
+    private void require(final boolean supported, final String valueType) {
+        if (!supported) {
+            throw new IllegalStateException(type + " has no " + valueType);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes a serialised table incrementally, as its bytes arrive, handing each run of complete values of a column to a
+ * {@link ColumnChunkHandler} in place. Only the bytes of a single value need to be held at once, so a table far larger
+ * than any buffer can be processed while it is still being received.
+ * <p>
+ * The decoder is fed the message body a buffer at a time. Whatever it can't decode yet, such as the start of a symbol
+ * whose terminator hasn't arrived, is left in the buffer, to be passed again followed by more of the message.
+ * <p>
+ * Not thread safe; a decoder can be reused for any number of tables, one after another.
+ */
+public final class TableStreamDecoder {
+    private enum State {
+        TABLE, COLUMN_NAMES, COLUMNS, COLUMN, VALUES, DONE
+    }
+
+    private final Charset charset;
+    private final ColumnView chunk;
+    private ColumnChunkHandler handler;
+    private State state = State.DONE;
+    private String[] columnNames = new String[0];
+    private int columnCount;
+    private int column;
+    private DataType columnType;
+    private int columnSize;
+    private int rowsDecoded;
+
+    /**
+     * @param charset character set symbols and strings were encoded with
+     */
+    public TableStreamDecoder(final Charset charset) {
+        this.charset = charset;
+        this.chunk = new ColumnView(charset);
+    }
+
+    /**
+     * Starts decoding a new table.
+     *
+     * @param handler handler for the table's column chunks
+     * @return this decoder
+     */
+    public TableStreamDecoder reset(final ColumnChunkHandler handler) {
+        this.handler = handler;
+        this.state = State.TABLE;
+        this.columnCount = 0;
+        this.column = 0;
+        return this;
+    }
+
+    /**
+     * @return true once the whole table has been decoded
+     */
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Decodes as much of the table as the buffer holds.
+     *
+     * @param buffer the next bytes of the table, from its position to its limit, in the byte order of the message. On
+     *               return its position is at the first byte not yet decoded.
+     * @return true once the whole table has been decoded
+     * @throws IllegalArgumentException if the message isn't a table of vectors and lists
+     */
+    public boolean decode(final ByteBuffer buffer) {
+        while (true) {
+            final int position = buffer.position();
+            final int available = buffer.remaining();
+            switch (state) {
+                case TABLE:
+                    if (available < 3 + KdbObjectWalker.VECTOR_HEADER_SIZE) {
+                        return false;
+                    }
+                    if (buffer.get(position) != DataType.Flip.getTypeCode()) {
+                        throw new IllegalArgumentException("Not a table: " + buffer.get(position));
+                    }
+                    if (buffer.get(position + 3) != DataType.StringArray.getTypeCode()) {
+                        throw new IllegalArgumentException("Table column names are not symbols: " + buffer.get(position + 3));
+                    }
+                    columnCount = buffer.getInt(position + 5);
+                    if (columnNames.length < columnCount) {
+                        columnNames = new String[columnCount];
+                    }
+                    column = 0;
+                    buffer.position(position + 3 + KdbObjectWalker.VECTOR_HEADER_SIZE);
+                    state = State.COLUMN_NAMES;
+                    break;
+                case COLUMN_NAMES:
+                    if (column == columnCount) {
+                        column = 0;
+                        state = State.COLUMNS;
+                        break;
+                    }
+                    final int end = endOfSymbol(buffer, position);
+                    if (end < 0) {
+                        return false;
+                    }
+                    columnNames[column++] = KdbObjectWalker.decode(buffer, position, end - position, charset);
+                    buffer.position(end + 1);
+                    break;
+                case COLUMNS:
+                    if (available < KdbObjectWalker.VECTOR_HEADER_SIZE) {
+                        return false;
+                    }
+                    if (buffer.get(position) != DataType.List.getTypeCode() || buffer.getInt(position + 2) != columnCount) {
+                        throw new IllegalArgumentException("Table columns don't match its column names");
+                    }
+                    buffer.position(position + KdbObjectWalker.VECTOR_HEADER_SIZE);
+                    state = columnCount == 0 ? State.DONE : State.COLUMN;
+                    break;
+                case COLUMN:
+                    if (available < KdbObjectWalker.VECTOR_HEADER_SIZE) {
+                        return false;
+                    }
+                    columnType = KdbObjectWalker.vectorType(buffer.get(position));
+                    columnSize = buffer.getInt(position + 2);
+                    rowsDecoded = 0;
+                    buffer.position(position + KdbObjectWalker.VECTOR_HEADER_SIZE);
+                    state = State.VALUES;
+                    break;
+                case VALUES:
+                    if (rowsDecoded == columnSize) {
+                        state = ++column == columnCount ? State.DONE : State.COLUMN;
+                        break;
+                    }
+                    if (!decodeValues(buffer, position, available)) {
+                        return false;
+                    }
+                    break;
+                case DONE:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Hands the complete values at the start of the buffer to the handler.
+     *
+     * @return false if not even one value is complete
+     */
+    private boolean decodeValues(final ByteBuffer buffer, final int position, final int available) {
+        final int remainingRows = columnSize - rowsDecoded;
+        final int width = columnType.getAtomicByteSize();
+        int rows = 0;
+        int end = position;
+        if (width > 0) {
+            rows = Math.min(remainingRows, available / width);
+            end = position + rows * width;
+        } else if (columnType == DataType.StringArray) {
+            for (int next; rows < remainingRows && (next = endOfSymbol(buffer, end)) >= 0; rows++) {
+                end = next + 1;
+            }
+        } else {
+            for (int next; rows < remainingRows && (next = KdbObjectWalker.skipIfComplete(buffer, end)) >= 0; rows++) {
+                end = next;
+            }
+        }
+        if (rows == 0) {
+            return false;
+        }
+
+        handler.onChunk(column, columnNames[column], rowsDecoded, chunk.wrapElements(buffer, columnType, position, rows));
+        rowsDecoded += rows;
+        buffer.position(end);
+        return true;
+    }
+
+    /**
+     * @return index of the NUL terminating the symbol starting at {@code position}, or -1 if it hasn't arrived yet
+     */
+    private static int endOfSymbol(final ByteBuffer buffer, final int position) {
+        for (int idx = position; idx < buffer.limit(); idx++) {
+            if (buffer.get(idx) == 0) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.messages;
+
+import uk.co.palmr.joke.types.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Flyweight over a tickerplant update, a {@code (`upd;`table;data)} message whose data is either a table or a list of
+ * columns, handing out a {@link FlipView} over the data in place.
+ * <p>
+ * Table names are decoded once and the same {@link String} handed back for every later update to the table, so a view
+ * can be pointed at any number of updates without allocating.
+ * <p>
+ * A view is only valid until the buffer it wraps is reused.
+ */
+public final class UpdateView {
+    private static final byte SYMBOL = DataType.String.getTypeCode();
+
+    private final Charset charset;
+    private final FlipView rows;
+    private byte[][] tableNameBytes = new byte[0][];
+    private String[] tableNames = new String[0];
+    private ByteBuffer buffer;
+    private String table;
+    private int dataOffset;
+    private boolean columnList;
+
+    /**
+     * @param charset character set symbols and strings were encoded with
+     */
+    public UpdateView(final Charset charset) {
+        this.charset = charset;
+        this.rows = new FlipView(charset);
+    }
+
+    /**
+     * Points this view at a message body if it is an update.
+     *
+     * @param buffer buffer holding the message, in the byte order of its header
+     * @param offset index of the type byte of the message body
+     * @return true if the body is a list of a function name, a table name and either a table or a list of vectors;
+     * false, leaving the view as it was, for anything else, including an update of a single row of atoms
+     */
+    public boolean wrap(final ByteBuffer buffer, final int offset) {
+        if (buffer.get(offset) != DataType.List.getTypeCode() || buffer.getInt(offset + 2) != 3 || buffer.get(offset + 6) != SYMBOL) {
+            return false;
+        }
+        final int tableOffset = KdbObjectWalker.endOfSymbol(buffer, offset + 7) + 1;
+        if (buffer.get(tableOffset) != SYMBOL) {
+            return false;
+        }
+        final int tableEnd = KdbObjectWalker.endOfSymbol(buffer, tableOffset + 1);
+        final int data = tableEnd + 1;
+        final byte dataType = buffer.get(data);
+        final boolean isColumnList;
+        if (dataType == DataType.Flip.getTypeCode()) {
+            isColumnList = false;
+        } else if (dataType == DataType.List.getTypeCode() && buffer.getInt(data + 2) > 0 && buffer.get(data + KdbObjectWalker.VECTOR_HEADER_SIZE) >= 0) {
+            isColumnList = true;
+        } else {
+            return false;
+        }
+
+        this.buffer = buffer;
+        this.table = tableName(buffer, tableOffset + 1, tableEnd - tableOffset - 1);
+        this.dataOffset = data;
+        this.columnList = isColumnList;
+        return true;
+    }
+
+    /**
+     * @return name of the table updated
+     */
+    public String table() {
+        return table;
+    }
+
+    /**
+     * @return true if the data is a bare list of columns, which needs the table's column names to be read by name
+     */
+    public boolean isColumnList() {
+        return columnList;
+    }
+
+    /**
+     * Points the view's {@link FlipView} at the updated rows.
+     *
+     * @param columnNames names of the columns of the table, only used when the data is a {@link #isColumnList() list
+     *                    of columns}
+     * @return a view over the rows, reused by every call
+     * @throws IllegalArgumentException if the data is a list of columns and the names are missing or don't match it
+     */
+    public FlipView rows(final String[] columnNames) {
+        if (!columnList) {
+            return rows.wrap(buffer, dataOffset);
+        }
+        if (columnNames == null) {
+            throw new IllegalArgumentException("No column names for " + table);
+        }
+        return rows.wrap(buffer, dataOffset, columnNames);
+    }
+
+    private String tableName(final ByteBuffer buffer, final int start, final int length) {
+        for (int idx = 0; idx < tableNameBytes.length; idx++) {
+            if (matches(tableNameBytes[idx], buffer, start, length)) {
+                return tableNames[idx];
+            }
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        final String name = KdbObjectWalker.decode(buffer, start, length, charset);
+        tableNameBytes = Arrays.copyOf(tableNameBytes, tableNameBytes.length + 1);
+        tableNames = Arrays.copyOf(tableNames, tableNames.length + 1);
+        tableNameBytes[tableNameBytes.length - 1] = bytes;
+        tableNames[tableNames.length - 1] = name;
+        return name;
+    }
+
+    private static boolean matches(final byte[] name, final ByteBuffer buffer, final int start, final int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int idx = 0; idx < length; idx++) {
+            if (name[idx] != buffer.get(start + idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
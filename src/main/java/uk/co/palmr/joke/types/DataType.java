@@ -16,8 +16,6 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -70,8 +68,8 @@ import java.util.UUID;
  */
 public enum DataType {
     /**
-     * "number of bytes from type." A helper for `lengthOfObject`, to assist in calculating the number of bytes required
-     * to serialize a particular type.
+     * "number of bytes from type." The size of each element, used when sizing and skipping serialised values of a
+     * particular type.
      */
     List(0, false, 0),
     Boolean(-1, true, 1),
@@ -127,14 +125,28 @@ public enum DataType {
     EachLeft(111, false, 0),
     dynamicLoad(112, false, 0);
 
-    private static final Map<Byte, DataType> typeCodeLookup = new HashMap<>();
+    /**
+     * Types indexed by their type code as an unsigned byte.
+     */
+    private static final DataType[] typeCodeLookup = new DataType[256];
 
     static {
         for (final DataType dt : values()) {
-            typeCodeLookup.put(dt.typeCode, dt);
+            typeCodeLookup[dt.typeCode & 0xff] = dt;
         }
     }
 
+    /**
+     * Type of each class seen so far, so looking up an object's type costs a class lookup rather than a pattern match
+     * against every supported class.
+     */
+    private static final ClassValue<DataType> typeByClass = new ClassValue<>() {
+        @Override
+        protected DataType computeValue(final Class<?> type) {
+            return getKdbType(type);
+        }
+    };
+
     private final byte typeCode;
     private final boolean isAtom;
     private final int atomicByteSize;
@@ -154,51 +166,63 @@ public enum DataType {
      * @return kdb+ type number for an object
      */
     public static DataType getKdbType(final Object x) {
-        return switch (x) {
-            case Boolean ignored -> Boolean;
-            case java.util.UUID ignored -> UUID;
-            case Byte ignored -> Byte;
-            case Short ignored -> Short;
-            case Integer ignored -> Integer;
-            case Long ignored -> Long;
-            case Float ignored -> Float;
-            case Double ignored -> Double;
-            case Character ignored -> Character;
-            case String ignored -> String;
-            case java.time.LocalDate ignored -> LocalDate;
-            case java.time.LocalTime ignored -> LocalTime;
-            case java.time.Instant ignored -> Instant;
-            case java.time.LocalDateTime ignored -> LocalDateTime;
-            case Timespan ignored -> Timespan;
-            case Month ignored -> Month;
-            case Minute ignored -> Minute;
-            case Second ignored -> Second;
-            case boolean[] ignored -> BooleanArray;
-            case UUID[] ignored -> UUIDArray;
-            case byte[] ignored -> ByteArray;
-            case short[] ignored -> ShortArray;
-            case int[] ignored -> IntArray;
-            case long[] ignored -> LongArray;
-            case float[] ignored -> FloatArray;
-            case double[] ignored -> DoubleArray;
-            case char[] ignored -> CharArray;
-            case String[] ignored -> StringArray;
-            case LocalDate[] ignored -> LocalDateArray;
-            case LocalTime[] ignored -> LocalTimeArray;
-            case Instant[] ignored -> InstantArray;
-            case LocalDateTime[] ignored -> LocalDateTimeArray;
-            case Timespan[] ignored -> TimespanArray;
-            case Month[] ignored -> MonthArray;
-            case Minute[] ignored -> MinuteArray;
-            case Second[] ignored -> SecondArray;
-            case Flip ignored -> Flip;
-            case Dict ignored -> Dict;
-            default -> List;
-        };
+        if (x instanceof TemporalLongVector) {
+            return ((TemporalLongVector) x).type;
+        }
+        if (x instanceof TemporalIntVector) {
+            return ((TemporalIntVector) x).type;
+        }
+        return typeByClass.get(x.getClass());
+    }
+
+    private static DataType getKdbType(final Class<?> x) {
+        if (x.isArray()) {
+            final Class<?> componentType = x.getComponentType();
+            if (componentType == boolean.class) return BooleanArray;
+            if (componentType == byte.class) return ByteArray;
+            if (componentType == short.class) return ShortArray;
+            if (componentType == int.class) return IntArray;
+            if (componentType == long.class) return LongArray;
+            if (componentType == float.class) return FloatArray;
+            if (componentType == double.class) return DoubleArray;
+            if (componentType == char.class) return CharArray;
+            if (java.util.UUID.class.isAssignableFrom(componentType)) return UUIDArray;
+            if (java.lang.String.class.isAssignableFrom(componentType)) return StringArray;
+            if (java.time.LocalDate.class.isAssignableFrom(componentType)) return LocalDateArray;
+            if (java.time.LocalTime.class.isAssignableFrom(componentType)) return LocalTimeArray;
+            if (java.time.Instant.class.isAssignableFrom(componentType)) return InstantArray;
+            if (java.time.LocalDateTime.class.isAssignableFrom(componentType)) return LocalDateTimeArray;
+            if (Timespan.class.isAssignableFrom(componentType)) return TimespanArray;
+            if (Month.class.isAssignableFrom(componentType)) return MonthArray;
+            if (Minute.class.isAssignableFrom(componentType)) return MinuteArray;
+            if (Second.class.isAssignableFrom(componentType)) return SecondArray;
+            return List;
+        }
+        if (x == java.lang.Boolean.class) return Boolean;
+        if (x == java.util.UUID.class) return UUID;
+        if (x == java.lang.Byte.class) return Byte;
+        if (x == java.lang.Short.class) return Short;
+        if (x == java.lang.Integer.class) return Integer;
+        if (x == java.lang.Long.class) return Long;
+        if (x == java.lang.Float.class) return Float;
+        if (x == java.lang.Double.class) return Double;
+        if (x == java.lang.Character.class) return Character;
+        if (x == java.lang.String.class) return String;
+        if (x == java.time.LocalDate.class) return LocalDate;
+        if (x == java.time.LocalTime.class) return LocalTime;
+        if (x == java.time.Instant.class) return Instant;
+        if (x == java.time.LocalDateTime.class) return LocalDateTime;
+        if (Timespan.class.isAssignableFrom(x)) return Timespan;
+        if (Month.class.isAssignableFrom(x)) return Month;
+        if (Minute.class.isAssignableFrom(x)) return Minute;
+        if (Second.class.isAssignableFrom(x)) return Second;
+        if (Flip.class.isAssignableFrom(x) || TableBuilder.class.isAssignableFrom(x)) return Flip;
+        if (Dict.class.isAssignableFrom(x)) return Dict;
+        return List;
     }
 
     public static DataType getKdbType(final byte typeCode) {
-        return typeCodeLookup.get(typeCode);
+        return typeCodeLookup[typeCode & 0xff];
     }
 
     public byte getTypeCode() {
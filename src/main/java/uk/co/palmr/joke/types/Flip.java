@@ -13,7 +13,9 @@
  */
 package uk.co.palmr.joke.types;
 
+import java.lang.reflect.Array;
 import java.util.Arrays;
+import java.util.Spliterator;
 
 /**
  * {@code Flip} represents a kdb+ table (an array of column names, and an array of arrays containing the column data).
@@ -62,6 +64,46 @@ public class Flip {
         return columns[find(columnNames, s)];
     }
 
+    /**
+     * @return index of a column, or -1 if there is no such column
+     */
+    public int columnIndex(String name) {
+        final int column = find(columnNames, name);
+        return column < columnNames.length ? column : -1;
+    }
+
+    /**
+     * @return number of rows, taken from the first column
+     */
+    public int rowCount() {
+        if (columns.length == 0) {
+            return 0;
+        }
+        if (columns[0] instanceof TemporalLongVector) {
+            return ((TemporalLongVector) columns[0]).size();
+        }
+        if (columns[0] instanceof TemporalIntVector) {
+            return ((TemporalIntVector) columns[0]).size();
+        }
+        return Array.getLength(columns[0]);
+    }
+
+    /**
+     * @return a cursor positioned before the first row
+     */
+    public FlipCursor cursor() {
+        return new FlipCursor(this, 0, rowCount());
+    }
+
+    /**
+     * Spliterator over the rows, handing the same {@link FlipCursor} to its action for each row rather than an object
+     * per row. It splits by ranges of rows, so {@code StreamSupport.stream(flip.spliterator(), true)} aggregates a
+     * large table across cores straight from its column arrays.
+     */
+    public Spliterator<FlipCursor> spliterator() {
+        return new FlipSpliterator(this, 0, rowCount());
+    }
+
     /**
      * Finds index of string in an array
      * @param x String array to search
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.lang.reflect.Array;
+
+/**
+ * {@code FlipCursor} is a flyweight over one row of a {@link Flip} at a time, reading values straight from its column
+ * arrays without boxing them or building an object per row.
+ * <pre>{@code
+ * final FlipCursor trade = flip.cursor();
+ * final int size = trade.columnIndex("size");
+ * final int price = trade.columnIndex("price");
+ * while (trade.next()) {
+ *     notional += trade.getLong(size) * trade.getDouble(price);
+ * }
+ * }</pre>
+ * The cursor moves on in place, so it must not be held on to as a row, e.g. by collecting the elements of
+ * {@link Flip#spliterator()}.
+ */
+public final class FlipCursor {
+    private final Flip flip;
+    private final Object[] columns;
+    private final int end;
+    int row;
+
+    /**
+     * @param start first row, which the first {@link #next()} moves to
+     * @param end   row after the last
+     */
+    FlipCursor(final Flip flip, final int start, final int end) {
+        this.flip = flip;
+        this.columns = flip.columns;
+        this.row = start - 1;
+        this.end = end;
+    }
+
+    /**
+     * Moves to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() {
+        return ++row < end;
+    }
+
+    /**
+     * @return index of the current row within the table
+     */
+    public int row() {
+        return row;
+    }
+
+    /**
+     * @return index of a column, to be looked up once rather than per row, or -1 if there is no such column
+     */
+    public int columnIndex(final String name) {
+        return flip.columnIndex(name);
+    }
+
+    public boolean getBoolean(final int column) {
+        final Object values = columns[column];
+        if (values instanceof boolean[]) {
+            return ((boolean[]) values)[row];
+        }
+        throw wrongType(column, "boolean");
+    }
+
+    public byte getByte(final int column) {
+        final Object values = columns[column];
+        if (values instanceof byte[]) {
+            return ((byte[]) values)[row];
+        }
+        throw wrongType(column, "byte");
+    }
+
+    public short getShort(final int column) {
+        final Object values = columns[column];
+        if (values instanceof short[]) {
+            return ((short[]) values)[row];
+        }
+        throw wrongType(column, "short");
+    }
+
+    /**
+     * Reads a value of an int column, or the raw value of a primitive month, date, minute, second or time column.
+     */
+    public int getInt(final int column) {
+        final Object values = columns[column];
+        if (values instanceof int[]) {
+            return ((int[]) values)[row];
+        }
+        if (values instanceof TemporalIntVector) {
+            return ((TemporalIntVector) values).values[row];
+        }
+        throw wrongType(column, "int");
+    }
+
+    /**
+     * Reads a value of a long column, or the raw value of a primitive timestamp or timespan column.
+     */
+    public long getLong(final int column) {
+        final Object values = columns[column];
+        if (values instanceof long[]) {
+            return ((long[]) values)[row];
+        }
+        if (values instanceof TemporalLongVector) {
+            return ((TemporalLongVector) values).values[row];
+        }
+        throw wrongType(column, "long");
+    }
+
+    public float getFloat(final int column) {
+        final Object values = columns[column];
+        if (values instanceof float[]) {
+            return ((float[]) values)[row];
+        }
+        throw wrongType(column, "float");
+    }
+
+    /**
+     * Reads a value of a float or real column.
+     */
+    public double getDouble(final int column) {
+        final Object values = columns[column];
+        if (values instanceof double[]) {
+            return ((double[]) values)[row];
+        }
+        if (values instanceof float[]) {
+            return ((float[]) values)[row];
+        }
+        throw wrongType(column, "double");
+    }
+
+    public char getChar(final int column) {
+        final Object values = columns[column];
+        if (values instanceof char[]) {
+            return ((char[]) values)[row];
+        }
+        throw wrongType(column, "char");
+    }
+
+    /**
+     * Reads a value of a symbol column, or of a string column, i.e. a list of char vectors.
+     */
+    public String getString(final int column) {
+        final Object values = columns[column];
+        if (values instanceof String[]) {
+            return ((String[]) values)[row];
+        }
+        if (values instanceof Object[] && ((Object[]) values)[row] instanceof char[]) {
+            return new String((char[]) ((Object[]) values)[row]);
+        }
+        throw wrongType(column, "string");
+    }
+
+    /**
+     * Reads a value of any column, as the object it would be deserialised as on its own, boxing primitives.
+     */
+    public Object getObject(final int column) {
+        final Object values = columns[column];
+        if (values instanceof TemporalLongVector) {
+            return ((TemporalLongVector) values).getObject(row);
+        }
+        if (values instanceof TemporalIntVector) {
+            return ((TemporalIntVector) values).getObject(row);
+        }
+        return Array.get(values, row);
+    }
+
+    private IllegalStateException wrongType(final int column, final String valueType) {
+        return new IllegalStateException("Column " + flip.columnNames[column] + " has no " + valueType + " values");
+    }
+}
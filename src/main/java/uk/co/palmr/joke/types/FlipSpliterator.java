@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of rows of a {@link Flip}, handing the same {@link FlipCursor} to the action for each row.
+ * Splitting halves the range of rows, and each half has its own cursor, so a parallel stream reads the columns from
+ * every thread without copying rows out.
+ */
+final class FlipSpliterator implements Spliterator<FlipCursor> {
+    private final Flip flip;
+    private final FlipCursor cursor;
+    private final int end;
+    private int row;
+
+    FlipSpliterator(final Flip flip, final int start, final int end) {
+        this.flip = flip;
+        this.cursor = new FlipCursor(flip, start, end);
+        this.row = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super FlipCursor> action) {
+        if (row >= end) {
+            return false;
+        }
+        cursor.row = row++;
+        action.accept(cursor);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super FlipCursor> action) {
+        final FlipCursor cursor = this.cursor;
+        for (; row < end; row++) {
+            cursor.row = row;
+            action.accept(cursor);
+        }
+    }
+
+    @Override
+    public Spliterator<FlipCursor> trySplit() {
+        final int mid = (row + end) >>> 1;
+        if (mid <= row) {
+            return null;
+        }
+        final FlipSpliterator prefix = new FlipSpliterator(flip, row, mid);
+        row = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - row;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@code KdbCodec} maps an application's own value class onto a fixed width kdb+ atom type, so that values of the class,
+ * and arrays of them, are sent and received as kdb+ data without first being converted to the types joke knows about.
+ * Arrays are written as the atom type's vector: with a codec writing a {@code Price} record as a real, a
+ * {@code Price[]} is sent as a real vector.
+ * <p>
+ * Codecs are registered with a client, which looks the codec up once per value or vector rather than once per element.
+ * A codec is only consulted for classes joke has no mapping of its own for.
+ *
+ * @param <T> the value class
+ */
+public interface KdbCodec<T> {
+    /**
+     * @return the value class, matched exactly against the class of values and the component type of arrays
+     */
+    Class<T> getJavaType();
+
+    /**
+     * @return the atom type values are written as, which must have a fixed width, so not a symbol
+     */
+    DataType getKdbType();
+
+    /**
+     * Writes a value, exactly {@link DataType#getAtomicByteSize()} bytes of it, without the type code.
+     *
+     * @param value  value to write, null for a null element of an array
+     * @param buffer buffer to write to
+     */
+    void encode(T value, ByteBuffer buffer);
+
+    /**
+     * Reads a value written as {@link #getKdbType()}, exactly {@link DataType#getAtomicByteSize()} bytes of it.
+     *
+     * @param buffer buffer positioned after the type code of an atom, or at an element of a vector
+     * @return the value read
+     */
+    T decode(ByteBuffer buffer);
+}
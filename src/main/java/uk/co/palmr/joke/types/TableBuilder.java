@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * {@code TableBuilder} builds a kdb+ table a row at a time into growable primitive columns, for publishing. The columns
+ * are serialised straight into the message buffer as a table, so rows are never copied into arrays sized for a
+ * {@link Flip} first.
+ * <p>
+ * A builder is meant to be reused: {@link #clear()} empties the columns but keeps their storage, so once the columns
+ * have grown to the usual batch size, building and sending a batch allocates nothing.
+ * <pre>{@code
+ * final TableBuilder trades = new TableBuilder(50_000);
+ * final TableBuilder.SymbolColumn sym = trades.symbolColumn("sym");
+ * final TableBuilder.LongColumn time = trades.longColumn("time", DataType.InstantArray);
+ * final TableBuilder.DoubleColumn price = trades.doubleColumn("price");
+ *
+ * sym.add("VOD.L");
+ * time.add(nanosSince2000);
+ * price.add(101.5);
+ * client.sendAsync(new Object[]{".u.upd", "trade", trades});
+ * trades.clear();
+ * }</pre>
+ * Not thread safe.
+ */
+public class TableBuilder {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final int initialCapacity;
+    private final List<Column> columns = new ArrayList<>();
+    private final ColumnList columnList = new ColumnList(this);
+
+    public TableBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of rows each column has room for before it first grows
+     */
+    public TableBuilder(final int initialCapacity) {
+        this.initialCapacity = Math.max(initialCapacity, 1);
+    }
+
+    /**
+     * Adds a long column.
+     */
+    public LongColumn longColumn(final String name) {
+        return longColumn(name, DataType.LongArray);
+    }
+
+    /**
+     * Adds a column of 8 byte values, e.g. a timestamp column of nanoseconds since 2000.01.01.
+     *
+     * @param type {@link DataType#LongArray}, {@link DataType#InstantArray} or {@link DataType#TimespanArray}
+     */
+    public LongColumn longColumn(final String name, final DataType type) {
+        if (type != DataType.LongArray && type != DataType.InstantArray && type != DataType.TimespanArray) {
+            throw new IllegalArgumentException("Not a long, timestamp or timespan vector type: " + type);
+        }
+        return add(new LongColumn(name, type, initialCapacity));
+    }
+
+    /**
+     * Adds an int column.
+     */
+    public IntColumn intColumn(final String name) {
+        return intColumn(name, DataType.IntArray);
+    }
+
+    /**
+     * Adds a column of 4 byte values, e.g. a date column of days since 2000.01.01.
+     *
+     * @param type {@link DataType#IntArray}, {@link DataType#MonthArray}, {@link DataType#LocalDateArray},
+     *             {@link DataType#MinuteArray}, {@link DataType#SecondArray} or {@link DataType#LocalTimeArray}
+     */
+    public IntColumn intColumn(final String name, final DataType type) {
+        if (type != DataType.IntArray && type != DataType.MonthArray && type != DataType.LocalDateArray
+                && type != DataType.MinuteArray && type != DataType.SecondArray && type != DataType.LocalTimeArray) {
+            throw new IllegalArgumentException("Not an int, month, date, minute, second or time vector type: " + type);
+        }
+        return add(new IntColumn(name, type, initialCapacity));
+    }
+
+    /**
+     * Adds a float column.
+     */
+    public DoubleColumn doubleColumn(final String name) {
+        return add(new DoubleColumn(name, initialCapacity));
+    }
+
+    /**
+     * Adds a symbol column.
+     */
+    public SymbolColumn symbolColumn(final String name) {
+        return add(new SymbolColumn(name, initialCapacity));
+    }
+
+    private <C extends Column> C add(final C column) {
+        for (final Column existing : columns) {
+            if (existing.getName().equals(column.getName())) {
+                throw new IllegalArgumentException("Duplicate column: " + column.getName());
+            }
+        }
+        columns.add(column);
+        return column;
+    }
+
+    public int columnCount() {
+        return columns.size();
+    }
+
+    public Column column(final int column) {
+        return columns.get(column);
+    }
+
+    /**
+     * @return number of complete rows
+     * @throws IllegalStateException if the columns have different numbers of values, i.e. a row is partly added
+     */
+    public int rowCount() {
+        if (columns.isEmpty()) {
+            return 0;
+        }
+        final int rowCount = columns.get(0).size;
+        for (final Column column : columns) {
+            if (column.size != rowCount) {
+                throw new IllegalStateException("Column " + column.name + " has " + column.size + " values, not " + rowCount);
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * @return a view of the columns which is serialised as a bare list of column vectors, without the column names, as
+     * taken by a tickerplant's {@code .u.upd}
+     */
+    public ColumnList asColumnList() {
+        return columnList;
+    }
+
+    /**
+     * Empties every column, keeping its storage. Symbol columns keep the symbols they have seen, so the next batch can
+     * reuse their indices, unless there are more than {@link SymbolColumn#MAX_SYMBOLS_PER_ROW} per row of capacity.
+     */
+    public void clear() {
+        for (final Column column : columns) {
+            column.clear();
+        }
+    }
+
+    /**
+     * The columns of a builder, serialised as a general list of their vectors.
+     */
+    public static final class ColumnList {
+        private final TableBuilder table;
+
+        private ColumnList(final TableBuilder table) {
+            this.table = table;
+        }
+
+        public TableBuilder table() {
+            return table;
+        }
+    }
+
+    /**
+     * A column, serialised as a vector of its {@link #getType() type}.
+     */
+    public abstract static class Column {
+        private final String name;
+        private final DataType type;
+        int size;
+
+        private Column(final String name, final DataType type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DataType getType() {
+            return type;
+        }
+
+        /**
+         * @return number of values added
+         */
+        public int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        static int grow(final int capacity) {
+            return Math.max(capacity + (capacity >> 1), capacity + 1);
+        }
+    }
+
+    public static final class LongColumn extends Column {
+        private long[] values;
+
+        private LongColumn(final String name, final DataType type, final int capacity) {
+            super(name, type);
+            this.values = new long[capacity];
+        }
+
+        public void add(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, grow(size));
+            }
+            values[size++] = value;
+        }
+
+        public long get(final int row) {
+            return values[Objects.checkIndex(row, size)];
+        }
+
+        /**
+         * @return the column's storage, of which only the first {@link #size()} values are in use
+         */
+        public long[] values() {
+            return values;
+        }
+    }
+
+    public static final class IntColumn extends Column {
+        private int[] values;
+
+        private IntColumn(final String name, final DataType type, final int capacity) {
+            super(name, type);
+            this.values = new int[capacity];
+        }
+
+        public void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, grow(size));
+            }
+            values[size++] = value;
+        }
+
+        public int get(final int row) {
+            return values[Objects.checkIndex(row, size)];
+        }
+
+        /**
+         * @return the column's storage, of which only the first {@link #size()} values are in use
+         */
+        public int[] values() {
+            return values;
+        }
+    }
+
+    public static final class DoubleColumn extends Column {
+        private double[] values;
+
+        private DoubleColumn(final String name, final int capacity) {
+            super(name, DataType.DoubleArray);
+            this.values = new double[capacity];
+        }
+
+        public void add(final double value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, grow(size));
+            }
+            values[size++] = value;
+        }
+
+        public double get(final int row) {
+            return values[Objects.checkIndex(row, size)];
+        }
+
+        /**
+         * @return the column's storage, of which only the first {@link #size()} values are in use
+         */
+        public double[] values() {
+            return values;
+        }
+    }
+
+    /**
+     * Symbol column, stored as an index per row into the distinct symbols seen. Symbols repeat heavily in market data,
+     * so a row costs an int rather than a reference, and a symbol is looked up once per row on the way in rather than
+     * being held as a separate object.
+     * <p>
+     * A column whose symbols rarely repeat, e.g. order ids, would otherwise collect every symbol it has ever seen, so
+     * {@link TableBuilder#clear()} forgets them once they outnumber the rows the column has room for several times over.
+     */
+    public static final class SymbolColumn extends Column {
+        /**
+         * Number of distinct symbols per row of capacity past which clearing the column also forgets its symbols.
+         */
+        public static final int MAX_SYMBOLS_PER_ROW = 4;
+
+        private final Map<String, Integer> symbolIndices = new HashMap<>();
+        private String[] symbols = new String[16];
+        private int symbolCount;
+        private int[] indices;
+
+        private SymbolColumn(final String name, final int capacity) {
+            super(name, DataType.StringArray);
+            this.indices = new int[capacity];
+        }
+
+        /**
+         * @param symbol symbol to add, null being added as the empty symbol
+         */
+        public void add(final String symbol) {
+            addIndex(indexOf(symbol));
+        }
+
+        /**
+         * Adds a symbol by the index {@link #indexOf(String)} gave it, saving the lookup for callers which keep
+         * indices of their own, e.g. per instrument. A {@link TableBuilder#clear()} which forgets the column's symbols,
+         * leaving {@link #symbolCount()} at zero, invalidates the indices kept.
+         */
+        public void addIndex(final int index) {
+            Objects.checkIndex(index, symbolCount);
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, grow(size));
+            }
+            indices[size++] = index;
+        }
+
+        /**
+         * @param symbol symbol to look up, null being the empty symbol
+         * @return the index of a symbol, assigning it the next index if it hasn't been seen before
+         */
+        public int indexOf(final String symbol) {
+            if (symbol == null) {
+                return indexOf("");
+            }
+            final Integer existing = symbolIndices.get(symbol);
+            if (existing != null) {
+                return existing;
+            }
+            if (symbolCount == symbols.length) {
+                symbols = Arrays.copyOf(symbols, symbolCount * 2);
+            }
+            symbols[symbolCount] = symbol;
+            symbolIndices.put(symbol, symbolCount);
+            return symbolCount++;
+        }
+
+        public String get(final int row) {
+            return symbols[indices[Objects.checkIndex(row, size)]];
+        }
+
+        /**
+         * @return number of distinct symbols the column has indexed
+         */
+        public int symbolCount() {
+            return symbolCount;
+        }
+
+        /**
+         * @return the symbol with an index
+         */
+        public String symbol(final int index) {
+            return symbols[Objects.checkIndex(index, symbolCount)];
+        }
+
+        /**
+         * @return the column's storage of symbol indices, of which only the first {@link #size()} are in use
+         */
+        public int[] indices() {
+            return indices;
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            if (symbolCount > (long) indices.length * MAX_SYMBOLS_PER_ROW) {
+                symbolIndices.clear();
+                Arrays.fill(symbols, 0, symbolCount, null);
+                symbolCount = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+
+import static uk.co.palmr.joke.KdbProtocol.NULL_INT;
+import static uk.co.palmr.joke.KdbProtocol.NULL_LOCAL_TIME;
+
+/**
+ * {@code TemporalIntVector} represents a kdb+ month, date, minute, second or time vector as its raw values, without an
+ * object per element: months since 2000.01, days since 2000.01.01, minutes, seconds or milliseconds since midnight.
+ * Elements are converted to {@code java.time} or joke objects only when asked for.
+ * <p>
+ * Vectors are serialised with a single bulk copy, and since {@link #values} may be refilled in place, a publisher can
+ * send the same vector batch after batch without creating any objects per row.
+ */
+public class TemporalIntVector {
+    private static final long DAYS_BETWEEN_1970_2000 = 10957L;
+    private static final long MILLS_IN_DAY = 86400000L;
+    private static final long NANOS_IN_MILLI = 1000000L;
+
+    /**
+     * One of {@link DataType#MonthArray}, {@link DataType#LocalDateArray}, {@link DataType#MinuteArray},
+     * {@link DataType#SecondArray} or {@link DataType#LocalTimeArray}.
+     */
+    public final DataType type;
+    /**
+     * Raw kdb+ values, {@link uk.co.palmr.joke.KdbProtocol#NULL_INT} for nulls.
+     */
+    public final int[] values;
+
+    /**
+     * @param type   month, date, minute, second or time vector type
+     * @param values raw kdb+ values
+     */
+    public TemporalIntVector(final DataType type, final int[] values) {
+        if (type != DataType.MonthArray && type != DataType.LocalDateArray && type != DataType.MinuteArray
+                && type != DataType.SecondArray && type != DataType.LocalTimeArray) {
+            throw new IllegalArgumentException("Not a month, date, minute, second or time vector type: " + type);
+        }
+        this.type = type;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isNull(final int idx) {
+        return values[idx] == NULL_INT;
+    }
+
+    /**
+     * @return the element of a date vector, {@link LocalDate#MIN} if null
+     */
+    public LocalDate getLocalDate(final int idx) {
+        require(DataType.LocalDateArray);
+        return toLocalDate(values[idx]);
+    }
+
+    /**
+     * @return the element of a time vector, {@link uk.co.palmr.joke.KdbProtocol#NULL_LOCAL_TIME} if null
+     */
+    public LocalTime getLocalTime(final int idx) {
+        require(DataType.LocalTimeArray);
+        return toLocalTime(values[idx]);
+    }
+
+    public Month getMonth(final int idx) {
+        require(DataType.MonthArray);
+        return new Month(values[idx]);
+    }
+
+    public Minute getMinute(final int idx) {
+        require(DataType.MinuteArray);
+        return new Minute(values[idx]);
+    }
+
+    public Second getSecond(final int idx) {
+        require(DataType.SecondArray);
+        return new Second(values[idx]);
+    }
+
+    /**
+     * @return the element as the object it is deserialised to when temporal vectors aren't kept primitive
+     */
+    public Object getObject(final int idx) {
+        return switch (type) {
+            case MonthArray -> getMonth(idx);
+            case LocalDateArray -> getLocalDate(idx);
+            case MinuteArray -> getMinute(idx);
+            case SecondArray -> getSecond(idx);
+            default -> getLocalTime(idx);
+        };
+    }
+
+    /**
+     * @param date kdb+ date, days since 2000.01.01
+     * @return the date as a {@link LocalDate}, {@link LocalDate#MIN} if null
+     */
+    public static LocalDate toLocalDate(final int date) {
+        return date == NULL_INT
+                ? LocalDate.MIN
+                : LocalDate.ofEpochDay(DAYS_BETWEEN_1970_2000 + date);
+    }
+
+    /**
+     * @param time kdb+ time, milliseconds since midnight
+     * @return the time as a {@link LocalTime}, {@link uk.co.palmr.joke.KdbProtocol#NULL_LOCAL_TIME} if null
+     */
+    public static LocalTime toLocalTime(final int time) {
+        return time == NULL_INT
+                ? NULL_LOCAL_TIME
+                : LocalTime.ofNanoOfDay(Math.floorMod(time, MILLS_IN_DAY) * NANOS_IN_MILLI);
+    }
+
+    private void require(final DataType required) {
+        if (type != required) {
+            throw new IllegalStateException(type + " is not a " + required);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return (o instanceof TemporalIntVector) && ((TemporalIntVector) o).type == type && Arrays.equals(((TemporalIntVector) o).values, values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + Arrays.hashCode(values);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import static uk.co.palmr.joke.KdbProtocol.NULL_LONG;
+
+/**
+ * {@code TemporalLongVector} represents a kdb+ timestamp or timespan vector as its raw values, nanoseconds since
+ * 2000.01.01 for timestamps and nanoseconds for timespans, without an object per element. Elements are converted to
+ * {@code java.time} or {@link Timespan} objects only when asked for.
+ * <p>
+ * Vectors are serialised with a single bulk copy, and since {@link #values} may be refilled in place, a publisher can
+ * send the same vector batch after batch without creating any objects per row.
+ */
+public class TemporalLongVector {
+    private static final long SECONDS_BETWEEN_1970_2000 = 946684800L;
+    private static final long NANOS_IN_SEC = 1000000000L;
+
+    /**
+     * Either {@link DataType#InstantArray} or {@link DataType#TimespanArray}.
+     */
+    public final DataType type;
+    /**
+     * Raw kdb+ values, {@link uk.co.palmr.joke.KdbProtocol#NULL_LONG} for nulls.
+     */
+    public final long[] values;
+
+    /**
+     * @param type   {@link DataType#InstantArray} or {@link DataType#TimespanArray}
+     * @param values raw kdb+ values
+     */
+    public TemporalLongVector(final DataType type, final long[] values) {
+        if (type != DataType.InstantArray && type != DataType.TimespanArray) {
+            throw new IllegalArgumentException("Not a timestamp or timespan vector type: " + type);
+        }
+        this.type = type;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isNull(final int idx) {
+        return values[idx] == NULL_LONG;
+    }
+
+    /**
+     * @return the element of a timestamp vector, {@link Instant#MIN} if null
+     */
+    public Instant getInstant(final int idx) {
+        require(DataType.InstantArray);
+        return toInstant(values[idx]);
+    }
+
+    /**
+     * @return the element of a timespan vector
+     */
+    public Timespan getTimespan(final int idx) {
+        require(DataType.TimespanArray);
+        return new Timespan(values[idx]);
+    }
+
+    /**
+     * @return the element as the object it is deserialised to when temporal vectors aren't kept primitive
+     */
+    public Object getObject(final int idx) {
+        return type == DataType.InstantArray
+                ? getInstant(idx)
+                : getTimespan(idx);
+    }
+
+    /**
+     * @param timestamp kdb+ timestamp, nanoseconds since 2000.01.01
+     * @return the timestamp as an {@link Instant}, {@link Instant#MIN} if null
+     */
+    public static Instant toInstant(final long timestamp) {
+        if (timestamp == NULL_LONG) {
+            return Instant.MIN;
+        }
+        return Instant.ofEpochSecond(SECONDS_BETWEEN_1970_2000 + Math.floorDiv(timestamp, NANOS_IN_SEC), Math.floorMod(timestamp, NANOS_IN_SEC));
+    }
+
+    private void require(final DataType required) {
+        if (type != required) {
+            throw new IllegalStateException(type + " is not a " + required);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return (o instanceof TemporalLongVector) && ((TemporalLongVector) o).type == type && Arrays.equals(((TemporalLongVector) o).values, values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + Arrays.hashCode(values);
+    }
+}
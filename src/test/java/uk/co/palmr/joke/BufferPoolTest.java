@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    @Test
+    void testAcquireRoundsUpToSizeClass() {
+        final BufferPool bufferPool = new BufferPool();
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, bufferPool.acquire(1).capacity());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE).capacity());
+        assertEquals(8192, bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE + 1).capacity());
+        assertEquals(1 << 20, bufferPool.acquire((1 << 19) + 1).capacity());
+    }
+
+    @Test
+    void testReleasedBufferIsReused() {
+        final BufferPool bufferPool = new BufferPool();
+        final ByteBuffer buffer = bufferPool.acquire(10_000);
+        buffer.put((byte) 1);
+        bufferPool.release(buffer);
+        assertEquals(1, bufferPool.pooledCount(buffer.capacity()));
+
+        final ByteBuffer reused = bufferPool.acquire(9_000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(0, bufferPool.pooledCount(buffer.capacity()));
+    }
+
+    @Test
+    void testRetentionIsBoundedPerSizeClass() {
+        final BufferPool bufferPool = new BufferPool(Duration.ofMinutes(1), 2);
+        for (int idx = 0; idx < 5; idx++) {
+            bufferPool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE));
+        }
+        assertEquals(2, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    void testIdleBuffersAreDropped() {
+        final BufferPool bufferPool = new BufferPool(Duration.ZERO, 2);
+        final ByteBuffer buffer = bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        bufferPool.release(buffer);
+        assertEquals(0, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE));
+        assertNotSame(buffer, bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    void testIdleBuffersAreDroppedOnAcquireAndTrim() throws InterruptedException {
+        final BufferPool bufferPool = new BufferPool(Duration.ofMillis(50), 2);
+        bufferPool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE * 2));
+        bufferPool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE * 4));
+        Thread.sleep(100);
+
+        bufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        assertEquals(0, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE * 2));
+        assertEquals(0, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE * 4));
+
+        bufferPool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE));
+        Thread.sleep(100);
+        bufferPool.trim();
+        assertEquals(0, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    void testOddSizedBuffersAreNotPooled() {
+        final BufferPool bufferPool = new BufferPool();
+        bufferPool.release(ByteBuffer.allocate(5000));
+        assertEquals(0, bufferPool.pooledCount(5000));
+    }
+
+    @Test
+    void testDirectPoolAllocatesOffHeap() {
+        final BufferPool bufferPool = new BufferPool(true, Duration.ofMinutes(1), 2);
+        final ByteBuffer buffer = bufferPool.acquire(100);
+        assertTrue(buffer.isDirect());
+        bufferPool.release(buffer);
+        assertSame(buffer, bufferPool.acquire(100));
+    }
+
+    @Test
+    void testHeapBuffersAreNotPooledInDirectPool() {
+        final BufferPool bufferPool = new BufferPool(true, Duration.ofMinutes(1), 2);
+        bufferPool.release(ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE));
+        assertEquals(0, bufferPool.pooledCount(BufferPool.MIN_BUFFER_SIZE));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IpcCompressionTest {
+    private KdbProtocol kdbProtocol;
+
+    @BeforeEach
+    void setUp() {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", true);
+    }
+
+    @Test
+    void testShouldCompressOnlyLargeMessages() {
+        assertFalse(kdbProtocol.shouldCompress(IpcCompression.MIN_COMPRESSIBLE_SIZE));
+        assertTrue(kdbProtocol.shouldCompress(IpcCompression.MIN_COMPRESSIBLE_SIZE + 1));
+        assertFalse(new KdbProtocol("ISO-8859-1", false).shouldCompress(1_000_000));
+    }
+
+    @Test
+    void testCompressUncompressRoundTrip() throws IOException, KdbException {
+        final String[] syms = new String[5000];
+        final long[] sizes = new long[5000];
+        final double[] prices = new double[5000];
+        for (int idx = 0; idx < syms.length; idx++) {
+            syms[idx] = idx % 3 == 0 ? "VOD.L" : "BARC.L";
+            sizes[idx] = 100L * (idx % 7);
+            prices[idx] = 100.25 + (idx % 11);
+        }
+        final Flip input = new Flip(new String[]{"sym", "size", "price"}, new Object[]{syms, sizes, prices});
+
+        final ByteBuffer message = serialise(input);
+        final int length = message.position();
+        final ByteBuffer compressed = ByteBuffer.allocate(length / 2);
+        final int compressedLength = kdbProtocol.compress(message, length, compressed);
+        assertTrue(compressedLength > 0 && compressedLength < length / 2, "Expected compression, got " + compressedLength);
+
+        final KdbMessageHeader compressedHeader = new KdbMessageHeader(compressed);
+        assertTrue(compressedHeader.isCompressed());
+        assertEquals(compressedLength, compressedHeader.getMessageSize());
+        assertEquals(length, kdbProtocol.uncompressedLength(compressedHeader, compressed));
+
+        final ByteBuffer uncompressed = ByteBuffer.allocate(length);
+        kdbProtocol.uncompress(compressedHeader, compressed, uncompressed);
+        final KdbMessageHeader header = new KdbMessageHeader(uncompressed);
+        assertFalse(header.isCompressed());
+        assertEquals(length, header.getMessageSize());
+        assertEquals(message.flip(), uncompressed.limit(length));
+
+        final Flip actual = (Flip) kdbProtocol.deserialize(header, uncompressed.clear());
+        assertArrayEquals(input.columnNames, actual.columnNames);
+        assertArrayEquals(input.columns, actual.columns);
+    }
+
+    @Test
+    void testIncompressibleMessageIsLeftAlone() throws IOException, KdbException {
+        final byte[] noise = new byte[4000];
+        new Random(42).nextBytes(noise);
+
+        final ByteBuffer message = serialise(noise);
+        final int length = message.position();
+        assertEquals(-1, kdbProtocol.compress(message, length, ByteBuffer.allocate(length / 2)));
+    }
+
+    private ByteBuffer serialise(final Object msg) throws IOException, KdbException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        kdbProtocol.serialiseMessage(MessageType.sync, msg, new KdbMessageHeader(buffer), buffer);
+        return buffer;
+    }
+}
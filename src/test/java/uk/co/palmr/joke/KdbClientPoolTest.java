@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KdbClientPoolTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private KdbServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), (username, message) -> message,
+                1, false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+    }
+
+    private KdbClientPool pool(final int initialSize, final int maxSize, final Duration validationInterval) throws IOException, KdbException {
+        return new KdbClientPool(() -> new KdbClient("localhost", server.getPort(), "user", "password"), initialSize, maxSize, validationInterval);
+    }
+
+    @Test
+    void testBorrowTimesOutWhenAllClientsAreCheckedOut() throws IOException, KdbException {
+        try (KdbClientPool pool = pool(1, 1, KdbClientPool.DEFAULT_VALIDATION_INTERVAL)) {
+            final KdbClient kdbClient = pool.borrow(TIMEOUT);
+            assertThrows(IOException.class, () -> pool.borrow(Duration.ofMillis(50)));
+
+            pool.release(kdbClient);
+            assertSame(kdbClient, pool.borrow(TIMEOUT));
+        }
+    }
+
+    @Test
+    void testMetricsCountCheckoutsAndWaits() throws IOException, KdbException, InterruptedException {
+        try (KdbClientPool pool = pool(2, 2, KdbClientPool.DEFAULT_VALIDATION_INTERVAL)) {
+            assertEquals(new KdbClientPool.Metrics(0, 2, 0, 0, 0, 0), pool.metrics());
+
+            final KdbClient first = pool.borrow(TIMEOUT);
+            final KdbClient second = pool.borrow(TIMEOUT);
+            KdbClientPool.Metrics metrics = pool.metrics();
+            assertEquals(2, metrics.active());
+            assertEquals(0, metrics.idle());
+            assertEquals(2, metrics.borrowed());
+
+            final Thread releaser = Thread.ofPlatform().start(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                    // release straight away
+                }
+                pool.release(first);
+            });
+            assertArrayEquals("x".toCharArray(), (char[]) pool.execute(TIMEOUT, kdbClient -> kdbClient.send("x")));
+            releaser.join();
+            pool.invalidate(second);
+
+            metrics = pool.metrics();
+            assertEquals(0, metrics.active());
+            assertEquals(1, metrics.idle());
+            assertEquals(3, metrics.borrowed());
+            assertEquals(1, metrics.evicted());
+            assertTrue(metrics.maxWaitNanos() >= Duration.ofMillis(50).toNanos());
+            assertTrue(metrics.totalWaitNanos() >= metrics.maxWaitNanos());
+        }
+    }
+
+    @Test
+    void testStaleClientIsValidatedAndReplaced() throws IOException, KdbException {
+        try (KdbClientPool pool = pool(1, 1, Duration.ZERO)) {
+            final KdbClient broken = pool.borrow(TIMEOUT);
+            broken.close();
+            pool.release(broken);
+
+            final KdbClient replacement = pool.borrow(TIMEOUT);
+            assertNotSame(broken, replacement);
+            assertArrayEquals("ok".toCharArray(), (char[]) replacement.send("ok"));
+            assertEquals(1, pool.metrics().evicted());
+            pool.release(replacement);
+
+            assertSame(replacement, pool.borrow(TIMEOUT));
+            assertEquals(1, pool.metrics().evicted());
+        }
+    }
+
+    @Test
+    void testClientCanOnlyBeHandedBackOnce() throws IOException, KdbException {
+        try (KdbClientPool pool = pool(0, 1, KdbClientPool.DEFAULT_VALIDATION_INTERVAL);
+             KdbClient stranger = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            assertThrows(IllegalArgumentException.class, () -> pool.release(stranger));
+
+            final KdbClient kdbClient = pool.borrow(TIMEOUT);
+            pool.release(kdbClient);
+            assertThrows(IllegalArgumentException.class, () -> pool.release(kdbClient));
+            assertThrows(IllegalArgumentException.class, () -> pool.invalidate(kdbClient));
+            assertEquals(0, pool.metrics().active());
+
+            pool.borrow(TIMEOUT);
+            assertThrows(IOException.class, () -> pool.borrow(Duration.ofMillis(50)));
+        }
+    }
+
+    @Test
+    void testClientReleasedAfterCloseIsClosed() throws IOException, KdbException {
+        final KdbClientPool pool = pool(1, 2, KdbClientPool.DEFAULT_VALIDATION_INTERVAL);
+        final KdbClient kdbClient = pool.borrow(TIMEOUT);
+        pool.close();
+
+        pool.release(kdbClient);
+        assertEquals(0, pool.metrics().idle());
+        assertThrows(IOException.class, () -> kdbClient.send("x"));
+        assertThrows(IOException.class, () -> pool.borrow(TIMEOUT));
+    }
+}
@@ -12,6 +12,314 @@
  */
 package uk.co.palmr.joke;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 class KdbClientTest {
+    private static final Flip TABLE = new Flip(new String[]{"id"}, new Object[]{new long[100_000]});
+
+    private final Queue<Object> asyncMessages = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch hanging = new CountDownLatch(1);
+    private final CountDownLatch answer = new CountDownLatch(1);
+    private KdbServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new RequestHandler() {
+            @Override
+            public Object onSync(final String username, final Object message) throws KdbException {
+                final String expr = new String((char[]) message);
+                if (expr.startsWith("err")) {
+                    throw new KdbException(expr);
+                }
+                if (expr.equals("table")) {
+                    return TABLE;
+                }
+                if (expr.equals("hang")) {
+                    hanging.countDown();
+                    try {
+                        answer.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return expr.toCharArray();
+            }
+
+            @Override
+            public void onAsync(final String username, final Object message) {
+                asyncMessages.add(message);
+            }
+        }, 1, false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        answer.countDown();
+        server.close();
+    }
+
+    @Test
+    void testBatchErrorsOnlyFailTheirOwnRequest() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            final List<CompletableFuture<Object>> responses = client.sendBatch(List.of("a", "err1", "b"));
+            assertTrue(responses.stream().allMatch(CompletableFuture::isDone));
+            assertArrayEquals("a".toCharArray(), (char[]) responses.get(0).join());
+            assertEquals("err1", assertThrows(CompletionException.class, () -> responses.get(1).join()).getCause().getMessage());
+            assertArrayEquals("b".toCharArray(), (char[]) responses.get(2).join());
+
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    @Test
+    void testBatchLongerThanPipelineWindowStaysInStep() throws IOException, KdbException {
+        final String[] exprs = new String[KdbClient.MAX_PIPELINED_REQUESTS * 3 + 1];
+        for (int idx = 0; idx < exprs.length; idx++) {
+            exprs[idx] = "q" + idx;
+        }
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            final List<CompletableFuture<Object>> responses = client.sendBatch(List.of(exprs));
+            for (int idx = 0; idx < exprs.length; idx++) {
+                assertArrayEquals(exprs[idx].toCharArray(), (char[]) responses.get(idx).join());
+            }
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    @Test
+    void testBatchConnectionFailureFailsOutstandingRequests() throws IOException, KdbException, InterruptedException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread remote = Thread.ofPlatform().daemon().start(() -> answerThenHangUp(serverSocket, 1));
+            final KdbClient client = new KdbClient("localhost", serverSocket.getLocalPort(), "user", "password");
+
+            final List<String> exprs = List.of("a", "b", "c");
+            assertThrows(IOException.class, () -> client.sendBatch(exprs));
+            assertThrows(IOException.class, () -> client.send("d"));
+            remote.join();
+        }
+    }
+
+    @Test
+    void testFailedConnectionsHandBuffersBack() throws IOException, InterruptedException {
+        final int bufferSize = BufferPool.MIN_BUFFER_SIZE * 2;
+        final BufferPool bufferPool = new BufferPool();
+        bufferPool.release(ByteBuffer.allocate(bufferSize));
+        bufferPool.release(ByteBuffer.allocate(bufferSize));
+        bufferPool.release(ByteBuffer.allocate(KdbClient.DEFAULT_BUFFER_SIZE));
+        final int refusedPort;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            refusedPort = closed.getLocalPort();
+        }
+        assertThrows(IOException.class, () -> new KdbClient("localhost", refusedPort, "user", "password", false, "ISO-8859-1", bufferSize, bufferPool));
+        assertThrows(IOException.class, () -> new SharedKdbClient("localhost", refusedPort, "user", "password", false, "ISO-8859-1", bufferSize, bufferPool));
+        assertThrows(IOException.class, () -> new KdbSubscriber("localhost", refusedPort, "user", "password", (table, rows) -> {
+        }, "ISO-8859-1", bufferSize, bufferPool));
+        assertEquals(2, bufferPool.pooledCount(bufferSize));
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread remote = Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    while (true) {
+                        serverSocket.accept().close();
+                    }
+                } catch (IOException ignored) {
+                    // test finished
+                }
+            });
+            final int port = serverSocket.getLocalPort();
+            assertThrows(KdbException.class, () -> new KdbClient("localhost", port, "user", "password", false, "ISO-8859-1", bufferSize, bufferPool));
+            assertThrows(KdbException.class, () -> new SharedKdbClient("localhost", port, "user", "password", false, "ISO-8859-1", bufferSize, bufferPool));
+            assertThrows(KdbException.class, () -> new KdbSubscriber("localhost", port, "user", "password", (table, rows) -> {
+            }, "ISO-8859-1", bufferSize, bufferPool));
+            assertThrows(KdbException.class, () -> new KdbPublisher("localhost", port, "user", "password", false, "ISO-8859-1",
+                    1, 1, Duration.ZERO, 16, bufferPool));
+            serverSocket.close();
+            remote.join();
+        }
+        assertEquals(2, bufferPool.pooledCount(bufferSize));
+        assertEquals(1, bufferPool.pooledCount(KdbClient.DEFAULT_BUFFER_SIZE));
+    }
+
+    @Test
+    void testGrownBufferIsHandedBackOnceIdle() throws IOException, KdbException, InterruptedException {
+        final BufferPool bufferPool = new BufferPool(Duration.ofMillis(50), 4);
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password", false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, bufferPool)) {
+            final String large = "x".repeat(100_000);
+            assertEquals(large, new String((char[]) client.send(large)));
+            client.trimBuffer();
+            assertEquals(0, bufferPool.pooledCount(1 << 17));
+
+            Thread.sleep(100);
+            client.trimBuffer();
+            assertEquals(1, bufferPool.pooledCount(1 << 17));
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    @Test
+    void testStreamingHandlerFailureSkipsRestOfTable() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            final AtomicInteger rows = new AtomicInteger();
+            client.sendStreaming("table", (column, columnName, firstRow, chunk) -> rows.set(firstRow));
+            assertTrue(rows.get() > 0, "table arrived in a single chunk");
+
+            assertThrows(IllegalStateException.class, () -> client.sendStreaming("table", (column, columnName, firstRow, chunk) -> {
+                throw new IllegalStateException("handler");
+            }));
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    @Test
+    void testStreamingConnectionFailureClosesClient() throws IOException, KdbException, InterruptedException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread remote = Thread.ofPlatform().daemon().start(() -> sendHalfATable(serverSocket));
+            final KdbClient client = new KdbClient("localhost", serverSocket.getLocalPort(), "user", "password");
+
+            assertThrows(IOException.class, () -> client.sendStreaming("table", (column, columnName, firstRow, chunk) -> {
+            }));
+            assertThrows(ClosedChannelException.class, () -> client.send("next"));
+            remote.join();
+        }
+    }
+
+    @Test
+    void testAsyncMessagesAreNotAnswered() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            client.sendAsync("a");
+            client.sendAsync(new Object[]{"f".toCharArray(), 1L});
+            client.flush();
+
+            assertArrayEquals("a".toCharArray(), (char[]) asyncMessages.poll());
+            final Object[] call = (Object[]) asyncMessages.poll();
+            assertArrayEquals("f".toCharArray(), (char[]) call[0]);
+            assertEquals(1L, call[1]);
+            assertNull(asyncMessages.poll());
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    @Test
+    void testFlushWaitsForAsyncMessagesToBeHandled() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            client.flush();
+            for (int idx = 0; idx < 100; idx++) {
+                client.sendAsync("q" + idx);
+            }
+            client.flush();
+            assertEquals(100, asyncMessages.size());
+        }
+    }
+
+    @Test
+    void testClientMovesBetweenVirtualThreads() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            assertArrayEquals("first".toCharArray(), (char[]) sendFromVirtualThread(client, "first").join());
+            assertArrayEquals("second".toCharArray(), (char[]) sendFromVirtualThread(client, "second").join());
+        }
+    }
+
+    @Test
+    void testOverlappingRequestsFailAssertion() throws IOException, KdbException, InterruptedException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "user", "password")) {
+            final CompletableFuture<Object> first = sendFromVirtualThread(client, "hang");
+            assertTrue(hanging.await(10, TimeUnit.SECONDS));
+
+            final AssertionError e = assertThrows(AssertionError.class, () -> client.send("second"));
+            assertTrue(e.getMessage().startsWith("KdbClient is not thread safe"), e.getMessage());
+            answer.countDown();
+            assertArrayEquals("hang".toCharArray(), (char[]) first.join());
+            assertArrayEquals("next".toCharArray(), (char[]) client.send("next"));
+        }
+    }
+
+    /**
+     * @return the response to {@code expr}, sent from a new virtual thread
+     */
+    private static CompletableFuture<Object> sendFromVirtualThread(final KdbClient client, final String expr) {
+        final CompletableFuture<Object> response = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                response.complete(client.send(expr));
+            } catch (Throwable e) {
+                response.completeExceptionally(e);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Plays a remote which answers the first sync message with the first half of a table, then drops the connection.
+     */
+    private static void sendHalfATable(final ServerSocket serverSocket) {
+        try (Socket socket = serverSocket.accept()) {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (in.read() > 0) {
+                // skip the login
+            }
+            out.write(IpcVersion.KDB_IPC_VERSION);
+            in.readFully(new byte[KdbMessageHeader.SIZE]);
+
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            final int length = new KdbProtocol("ISO-8859-1", false).serialiseMessage(MessageType.response, TABLE, new KdbMessageHeader(buffer), buffer);
+            out.write(buffer.array(), 0, length / 2);
+            out.flush();
+        } catch (IOException | KdbException ignored) {
+            // client went away
+        }
+    }
 
+    /**
+     * Plays a remote which accepts one login, echoes back a number of sync messages, then drops the connection.
+     */
+    private static void answerThenHangUp(final ServerSocket serverSocket, final int answers) {
+        try (Socket socket = serverSocket.accept()) {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (in.read() > 0) {
+                // skip the login
+            }
+            out.write(IpcVersion.KDB_IPC_VERSION);
+            for (int idx = 0; idx < answers; idx++) {
+                final byte[] header = new byte[8];
+                in.readFully(header);
+                final int size = ByteBuffer.wrap(header).order(header[0] == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getInt(4);
+                final byte[] message = new byte[size];
+                System.arraycopy(header, 0, message, 0, header.length);
+                in.readFully(message, header.length, size - header.length);
+                message[1] = 2;
+                out.write(message);
+            }
+        } catch (IOException ignored) {
+            // client went away
+        }
+    }
 }
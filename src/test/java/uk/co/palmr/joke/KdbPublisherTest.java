@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KdbPublisherTest {
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    private final BlockingQueue<Object[]> updates = new LinkedBlockingQueue<>();
+    private KdbServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new RequestHandler() {
+            @Override
+            public Object onSync(final String username, final Object message) {
+                return message;
+            }
+
+            @Override
+            public void onAsync(final String username, final Object message) {
+                updates.add((Object[]) message);
+            }
+        }, 1, false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+    }
+
+    private KdbPublisher publisher(final int maxBatchRows, final int maxBatchBytes, final Duration maxBatchDelay) throws IOException, KdbException {
+        return new KdbPublisher("localhost", server.getPort(), "user", "password", false, "ISO-8859-1",
+                maxBatchRows, maxBatchBytes, maxBatchDelay, 1024, BufferPool.DEFAULT);
+    }
+
+    @Test
+    void testRowThresholdSendsFullBatches() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(100, Integer.MAX_VALUE, NEVER)) {
+            for (long idx = 0; idx < 250; idx++) {
+                assertTrue(publisher.offer("trade", "VOD.L", idx));
+            }
+            assertEquals(100, rowCount(nextUpdate("trade")));
+            assertEquals(100, rowCount(nextUpdate("trade")));
+            assertNull(updates.poll(200, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(50, rowCount(nextUpdate("trade")));
+    }
+
+    @Test
+    void testByteThresholdSendsBatch() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(Integer.MAX_VALUE, 50 * Long.BYTES, NEVER)) {
+            for (long idx = 0; idx < 50; idx++) {
+                publisher.offer("trade", idx);
+            }
+            assertEquals(50, rowCount(nextUpdate("trade")));
+
+            publisher.offer("trade", 50L);
+            assertNull(updates.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void testDelayThresholdSendsBatch() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofMillis(50))) {
+            publisher.offer("trade", 1L);
+            publisher.offer("trade", 2L);
+            final Object[] update = nextUpdate("trade");
+            assertArrayEquals(new long[]{1L, 2L}, (long[]) ((Object[]) update[2])[0]);
+            assertEquals(2, publisher.getRowsPublished());
+            assertEquals(1, publisher.getMessagesSent());
+        }
+    }
+
+    @Test
+    void testFlushSendsPendingRowsOfEveryTable() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(Integer.MAX_VALUE, Integer.MAX_VALUE, NEVER)) {
+            publisher.offer("trade", "VOD.L", 1.5);
+            publisher.offer("quote", "VOD.L", 1.4, 1.6);
+            assertNull(updates.poll(200, TimeUnit.MILLISECONDS));
+
+            publisher.flush();
+            final Object[] first = nextUpdate(null);
+            final Object[] second = nextUpdate(null);
+            assertEquals("trade", first[1]);
+            assertEquals("quote", second[1]);
+            assertEquals(1, rowCount(second));
+        }
+    }
+
+    @Test
+    void testFlushWithNothingPendingLetsThreadPark() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(Integer.MAX_VALUE, Integer.MAX_VALUE, NEVER)) {
+            final Thread ioThread = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().equals("joke-publisher-localhost:" + server.getPort()))
+                    .findFirst()
+                    .orElseThrow();
+            publisher.offer("trade", "BAD");
+            publisher.offer("trade", 1L);
+            publisher.flush();
+            Thread.sleep(100);
+            publisher.flush();
+            Thread.sleep(100);
+
+            for (int sample = 0; sample < 10; sample++) {
+                assertEquals(Thread.State.WAITING, ioThread.getState());
+                Thread.sleep(10);
+            }
+            assertEquals(1, publisher.getRowsRejected());
+            assertEquals(1, rowCount(nextUpdate("trade")));
+        }
+    }
+
+    @Test
+    void testCloseSendsPendingRows() throws IOException, KdbException, InterruptedException {
+        final KdbPublisher publisher = publisher(Integer.MAX_VALUE, Integer.MAX_VALUE, NEVER);
+        for (int idx = 0; idx < 5; idx++) {
+            publisher.offer("trade", idx);
+        }
+        publisher.close();
+
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, (int[]) ((Object[]) nextUpdate("trade")[2])[0]);
+        assertEquals(5, publisher.getRowsPublished());
+        assertFalse(publisher.isOpen());
+        assertFalse(publisher.offer("trade", 5));
+    }
+
+    @Test
+    void testMismatchedRowsAreRejected() throws IOException, KdbException, InterruptedException {
+        try (KdbPublisher publisher = publisher(Integer.MAX_VALUE, Integer.MAX_VALUE, NEVER)) {
+            publisher.offer("trade", "VOD.L", 1L);
+            publisher.offer("trade", "VOD.L", 1.5);
+            publisher.offer("trade", "VOD.L");
+            publisher.offer("trade", "VOD.L", null);
+            publisher.offer("unsupported", new Object());
+            publisher.offer("dated", LocalDate.of(2024, 1, 2));
+            publisher.offer("dated", LocalDate.of(100_000_000, 1, 1));
+            publisher.offer("trade", "BARC.L", 2L);
+            publisher.flush();
+
+            final Object[] trade = nextUpdate("trade");
+            assertArrayEquals(new String[]{"VOD.L", "BARC.L"}, (String[]) ((Object[]) trade[2])[0]);
+            assertEquals(1, rowCount(nextUpdate("dated")));
+            assertEquals(5, publisher.getRowsRejected());
+            assertEquals(3, publisher.getRowsPublished());
+            assertTrue(publisher.isOpen());
+        }
+    }
+
+    /**
+     * @param table table the update should be for, or null for any
+     * @return the next {@code (`.u.upd;`table;columns)} message the server received
+     */
+    private Object[] nextUpdate(final String table) throws InterruptedException {
+        final Object[] update = updates.poll(10, TimeUnit.SECONDS);
+        assertNotNull(update, "no update received");
+        assertArrayEquals(".u.upd".toCharArray(), (char[]) update[0]);
+        if (table != null) {
+            assertEquals(table, update[1]);
+        }
+        return update;
+    }
+
+    private static int rowCount(final Object[] update) {
+        return Array.getLength(((Object[]) update[2])[0]);
+    }
+}
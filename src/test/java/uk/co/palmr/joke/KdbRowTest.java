@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.FlipView;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.ResultView;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KdbRowTest {
+    private KdbProtocol kdbProtocol;
+    private ByteBuffer buffer;
+    private ResultView resultView;
+
+    @KdbRow
+    record Trade(String sym, long time, double px, boolean buy) {
+    }
+
+    @KdbRow
+    static class Quote {
+        String sym;
+        float bid;
+        int size;
+        char side;
+
+        static Quote of(final String sym, final float bid, final int size, final char side) {
+            final Quote quote = new Quote();
+            quote.sym = sym;
+            quote.bid = bid;
+            quote.size = size;
+            quote.side = side;
+            return quote;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        buffer = ByteBuffer.allocate(4096);
+        resultView = new ResultView(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void testRecordsRoundTrip() throws IOException, KdbException {
+        final List<Trade> trades = List.of(new Trade("VOD.L", 1L, 1.5, true), new Trade("BARC.L", 2L, 2.5, false));
+
+        final Flip flip = KdbRowTest_TradeRowCodec.write(trades);
+        assertArrayEquals(new String[]{"sym", "time", "px", "buy"}, flip.columnNames);
+        assertArrayEquals(new String[]{"VOD.L", "BARC.L"}, (String[]) flip.at("sym"));
+        assertArrayEquals(new long[]{1L, 2L}, (long[]) flip.at("time"));
+
+        assertEquals(trades, KdbRowTest_TradeRowCodec.read(view(flip)));
+    }
+
+    @Test
+    void testClassesRoundTrip() throws IOException, KdbException {
+        final Flip flip = KdbRowTest_QuoteRowCodec.write(List.of(Quote.of("VOD.L", 1.25f, 100, 'B'), Quote.of("BARC.L", 2.5f, 200, '\u00e9')));
+        assertArrayEquals(new char[]{'B', '\u00e9'}, (char[]) flip.at("side"));
+
+        final List<Quote> quotes = KdbRowTest_QuoteRowCodec.read(view(flip));
+        assertEquals(2, quotes.size());
+        assertEquals("BARC.L", quotes.get(1).sym);
+        assertEquals(2.5f, quotes.get(1).bid);
+        assertEquals(200, quotes.get(1).size);
+        assertEquals('\u00e9', quotes.get(1).side);
+    }
+
+    @Test
+    void testReadRejectsMismatchedTable() throws IOException, KdbException {
+        final FlipView missingColumn = view(new Flip(new String[]{"sym"}, new Object[]{new String[]{"VOD.L"}}));
+        assertThrows(IllegalArgumentException.class, () -> KdbRowTest_TradeRowCodec.read(missingColumn));
+
+        final FlipView wrongType = view(new Flip(new String[]{"sym", "time", "px", "buy"},
+                new Object[]{new String[]{"VOD.L"}, new double[]{1.0}, new double[]{1.5}, new boolean[]{true}}));
+        assertThrows(IllegalStateException.class, () -> KdbRowTest_TradeRowCodec.read(wrongType));
+    }
+
+    private FlipView view(final Flip flip) throws IOException, KdbException {
+        final KdbMessageHeader header = new KdbMessageHeader(buffer);
+        kdbProtocol.serialiseMessage(MessageType.response, flip, header, buffer);
+        return kdbProtocol.view(header, buffer, resultView).asFlip();
+    }
+}
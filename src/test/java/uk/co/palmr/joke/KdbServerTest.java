@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KdbServerTest {
+    private final BlockingQueue<String> asyncMessages = new LinkedBlockingQueue<>();
+    private KdbServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new RequestHandler() {
+            @Override
+            public boolean authenticate(final String username, final String password) {
+                return !"intruder".equals(username);
+            }
+
+            @Override
+            public Object onSync(final String username, final Object message) throws KdbException {
+                final String expr = new String((char[]) message);
+                return switch (expr) {
+                    case "user" -> username;
+                    case "big" -> new long[100_000];
+                    case "kdbError" -> throw new KdbException("type");
+                    case "javaError" -> throw new IllegalStateException("boom");
+                    case "unserialisable" -> new Object();
+                    case "map" -> Map.of("a", 1L);
+                    default -> expr.toCharArray();
+                };
+            }
+
+            @Override
+            public void onAsync(final String username, final Object message) {
+                asyncMessages.add(username + ":" + new String((char[]) message));
+            }
+        }, 1, false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void testSyncMessagesAreAnswered() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "alice", "secret")) {
+            assertEquals("alice", client.send("user"));
+            assertArrayEquals("1+1".toCharArray(), (char[]) client.send("1+1"));
+            assertEquals(100_000, ((long[]) client.send("big")).length);
+
+            final List<String> exprs = new ArrayList<>();
+            for (int idx = 0; idx < KdbClient.MAX_PIPELINED_REQUESTS; idx++) {
+                exprs.add("expr" + idx);
+            }
+            final List<CompletableFuture<Object>> responses = client.sendBatch(exprs);
+            for (int idx = 0; idx < exprs.size(); idx++) {
+                assertArrayEquals(exprs.get(idx).toCharArray(), (char[]) responses.get(idx).join());
+            }
+        }
+        assertEquals(1 + 1 + 1 + KdbClient.MAX_PIPELINED_REQUESTS, server.getMessagesReceived());
+    }
+
+    @Test
+    void testHandlerFailuresAreSentAsErrors() throws IOException, KdbException {
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "alice", "secret")) {
+            assertEquals("type", assertThrows(KdbException.class, () -> client.send("kdbError")).getMessage());
+            assertEquals("boom", assertThrows(KdbException.class, () -> client.send("javaError")).getMessage());
+            assertThrows(KdbException.class, () -> client.send("unserialisable"));
+            assertThrows(KdbException.class, () -> client.send("map"));
+            assertEquals("alice", client.send("user"));
+        }
+    }
+
+    @Test
+    void testAsyncMessagesAndLogins() throws IOException, KdbException, InterruptedException {
+        assertThrows(KdbException.class, () -> new KdbClient("localhost", server.getPort(), "intruder", "guess"));
+
+        try (KdbClient client = new KdbClient("localhost", server.getPort(), "bob", "")) {
+            client.sendAsync("a:1");
+            assertEquals("bob:a:1", asyncMessages.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, server.getConnectionCount());
+        }
+    }
+}
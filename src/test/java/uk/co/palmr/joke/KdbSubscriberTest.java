@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.FlipView;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KdbSubscriberTest {
+    private static final Flip SCHEMA = new Flip(new String[]{"sym", "size"}, new Object[]{new String[0], new long[0]});
+
+    private final BlockingQueue<String> updates = new LinkedBlockingQueue<>();
+    private final CountDownLatch hangUp = new CountDownLatch(1);
+    private ServerSocket serverSocket;
+    private Thread remote;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        hangUp.countDown();
+        serverSocket.close();
+        if (remote != null) {
+            remote.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Test
+    void testPartialMessagesAreHandledOnceWhole() throws IOException, KdbException, InterruptedException {
+        final byte[] published = concat(update("VOD.L", 3), update("BARC.L", 5), update("HSBA.L", 7));
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(true, (out) -> {
+            for (int offset = 0; offset < published.length; offset += 7) {
+                out.write(published, offset, Math.min(7, published.length - offset));
+                out.flush();
+                Thread.sleep(1);
+            }
+        }));
+
+        try (KdbSubscriber subscriber = subscriber(KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT)) {
+            subscriber.subscribe("trade");
+            final Thread reader = runInBackground(subscriber);
+
+            assertEquals("VOD.L:3", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("BARC.L:5", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("HSBA.L:7", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals(3, subscriber.getUpdatesReceived());
+            assertEquals(15, subscriber.getRowsReceived());
+            subscriber.close();
+            reader.join();
+        }
+    }
+
+    @Test
+    void testReadBufferGrowsToFitLargeUpdate() throws IOException, KdbException, InterruptedException {
+        final byte[] large = update("VOD.L", 10_000);
+        final byte[] small = update("BARC.L", 1);
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(true, (out) -> out.write(concat(large, small))));
+
+        try (KdbSubscriber subscriber = subscriber(BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT)) {
+            subscriber.subscribe("trade");
+            final Thread reader = runInBackground(subscriber);
+
+            assertEquals("VOD.L:10000", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("BARC.L:1", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals(subscribed().length + large.length + small.length, subscriber.getBytesReceived());
+            subscriber.close();
+            reader.join();
+        }
+    }
+
+    @Test
+    void testGrownReadBufferIsReleasedOnceIdle() throws IOException, KdbException, InterruptedException {
+        final BufferPool bufferPool = new BufferPool(Duration.ofMillis(50), 4);
+        final byte[] large = update("VOD.L", 10_000);
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(true, (out) -> {
+            out.write(large);
+            out.flush();
+            Thread.sleep(200);
+            out.write(update("BARC.L", 1));
+        }));
+
+        try (KdbSubscriber subscriber = subscriber(BufferPool.MIN_BUFFER_SIZE, bufferPool)) {
+            subscriber.subscribe("trade");
+            final Thread reader = runInBackground(subscriber);
+
+            assertEquals("VOD.L:10000", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals(0, bufferPool.pooledCount(large.length));
+            assertEquals("BARC.L:1", updates.poll(10, TimeUnit.SECONDS));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (bufferPool.pooledCount(large.length) == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, bufferPool.pooledCount(large.length), "grown read buffer was not handed back");
+            subscriber.close();
+            reader.join();
+        }
+    }
+
+    @Test
+    void testRunResumesWithMessagesBufferedAfterHandlerFailure() throws IOException, KdbException, InterruptedException {
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(true, (out) -> out.write(concat(update("FAIL", 1), update("VOD.L", 2), update("BARC.L", 3)))));
+
+        try (KdbSubscriber subscriber = subscriber(KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT)) {
+            subscriber.subscribe("trade");
+            assertEquals("FAIL", assertThrows(IllegalStateException.class, subscriber::run).getMessage());
+            assertTrue(subscriber.getBacklogBytes() > 0, "following updates were not read with the failed one");
+
+            final Thread reader = runInBackground(subscriber);
+            assertEquals("VOD.L:2", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("BARC.L:3", updates.poll(10, TimeUnit.SECONDS));
+            assertEquals(0, subscriber.getBacklogBytes());
+            subscriber.close();
+            reader.join();
+        }
+    }
+
+    @Test
+    void testInvalidMessageSizeFailsReading() throws IOException, KdbException {
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(true, (out) -> out.write(new byte[]{1, 0, 0, 0, -1, -1, -1, -1})));
+
+        try (KdbSubscriber subscriber = subscriber(KdbClient.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT)) {
+            final IOException e = assertThrows(IOException.class, () -> {
+                subscriber.subscribe("trade");
+                subscriber.run();
+            });
+            assertEquals("Invalid message size -1", e.getMessage());
+        }
+    }
+
+    @Test
+    void testCloseDuringSubscribeReleasesBufferAfterSubscribeEnds() throws IOException, KdbException, InterruptedException {
+        final int bufferSize = BufferPool.MIN_BUFFER_SIZE * 2;
+        final BufferPool bufferPool = new BufferPool();
+        remote = Thread.ofPlatform().daemon().start(() -> tickerplant(false, (out) -> {
+        }));
+        final KdbSubscriber subscriber = subscriber(bufferSize, bufferPool);
+
+        final BlockingQueue<Throwable> failure = new LinkedBlockingQueue<>();
+        final Thread subscribing = Thread.ofPlatform().start(() -> {
+            try {
+                subscriber.subscribe("trade");
+            } catch (Throwable e) {
+                failure.add(e);
+            }
+        });
+        Thread.sleep(200);
+        subscriber.close();
+        subscribing.join();
+
+        assertInstanceOf(ClosedChannelException.class, failure.poll());
+        assertEquals(1, bufferPool.pooledCount(bufferSize));
+        assertFalse(subscriber.isOpen());
+    }
+
+    private KdbSubscriber subscriber(final int bufferSize, final BufferPool bufferPool) throws IOException, KdbException {
+        return new KdbSubscriber("localhost", serverSocket.getLocalPort(), "user", "password", new UpdateHandler() {
+            @Override
+            public void onUpdate(final String table, final FlipView rows) {
+                final String sym = rows.column("sym").getSymbol(0);
+                if (sym.equals("FAIL")) {
+                    throw new IllegalStateException(sym);
+                }
+                updates.add(sym + ":" + rows.rowCount());
+            }
+        }, "ISO-8859-1", bufferSize, bufferPool);
+    }
+
+    private static Thread runInBackground(final KdbSubscriber subscriber) {
+        return Thread.ofPlatform().daemon().start(() -> {
+            try {
+                subscriber.run();
+            } catch (IOException | KdbException ignored) {
+                // tickerplant went away
+            }
+        });
+    }
+
+    /**
+     * Plays a tickerplant which takes one login and one {@code .u.sub}, optionally answers it with the trade schema,
+     * then publishes whatever the script writes and holds the connection open until the test ends.
+     */
+    private void tickerplant(final boolean answer, final Script script) {
+        try (Socket socket = serverSocket.accept()) {
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (in.read() > 0) {
+                // skip the login
+            }
+            out.write(IpcVersion.KDB_IPC_VERSION);
+
+            final byte[] header = new byte[KdbMessageHeader.SIZE];
+            in.readFully(header);
+            final int size = ByteBuffer.wrap(header).order(header[0] == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getInt(4);
+            in.skipNBytes(size - header.length);
+            if (answer) {
+                out.write(subscribed());
+                script.play(out);
+            }
+            out.flush();
+            hangUp.await();
+        } catch (Exception ignored) {
+            // client went away
+        }
+    }
+
+    /**
+     * @return the {@code .u.sub} response, naming the trade table and its schema
+     */
+    private static byte[] subscribed() throws IOException, KdbException {
+        return serialise(MessageType.response, new Object[]{"trade", SCHEMA});
+    }
+
+    /**
+     * @return an {@code (`upd;`trade;columns)} message of {@code rows} rows for {@code sym}
+     */
+    private static byte[] update(final String sym, final int rows) throws IOException, KdbException {
+        final String[] syms = new String[rows];
+        final long[] sizes = new long[rows];
+        for (int idx = 0; idx < rows; idx++) {
+            syms[idx] = sym;
+            sizes[idx] = idx;
+        }
+        return serialise(MessageType.async, new Object[]{"upd", "trade", new Object[]{syms, sizes}});
+    }
+
+    private static byte[] serialise(final MessageType messageType, final Object message) throws IOException, KdbException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        final int length = new KdbProtocol("ISO-8859-1", false).serialiseMessage(messageType, message, new KdbMessageHeader(buffer), buffer);
+        final byte[] bytes = new byte[length];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(final byte[]... messages) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] message : messages) {
+            out.writeBytes(message);
+        }
+        return out.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface Script {
+        void play(OutputStream out) throws Exception;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.ColumnView;
+import uk.co.palmr.joke.messages.FlipView;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.ResultView;
+import uk.co.palmr.joke.types.DataType;
+import uk.co.palmr.joke.types.Dict;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultViewTest {
+    private KdbProtocol kdbProtocol;
+    private ByteBuffer buffer;
+    private KdbMessageHeader header;
+    private ResultView resultView;
+
+    @BeforeEach
+    void setUp() {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        buffer = ByteBuffer.allocate(4096);
+        header = new KdbMessageHeader(buffer);
+        resultView = new ResultView(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void testFlipColumnsReadInPlace() throws IOException, KdbException {
+        final Flip trades = new Flip(new String[]{"sym", "note", "size", "price", "date"}, new Object[]{
+                new String[]{"VOD.L", "BARC.L", ""},
+                new Object[]{"first".toCharArray(), "".toCharArray(), "third".toCharArray()},
+                new long[]{100L, 200L, 300L},
+                new double[]{1.5, 2.5, 3.5},
+                new LocalDate[]{LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2), LocalDate.of(2000, 1, 3)}});
+
+        final FlipView flip = view(trades).asFlip();
+        assertEquals(5, flip.columnCount());
+        assertEquals(3, flip.rowCount());
+        assertEquals("price", flip.columnName(3));
+        assertEquals(-1, flip.columnIndex("missing"));
+
+        final ColumnView price = flip.column("price");
+        final ColumnView sym = flip.column("sym");
+        assertEquals(DataType.DoubleArray, price.getType());
+        assertEquals(2.5, price.getDouble(1));
+        assertEquals("BARC.L", sym.getSymbol(1));
+        assertEquals("", sym.getSymbol(2));
+        assertEquals(300L, flip.column("size").getLong(2));
+        assertEquals(2, flip.column("date").getInt(2));
+        assertEquals("third", flip.column("note").getString(2));
+        assertEquals("", flip.column("note").getString(1));
+    }
+
+    @Test
+    void testWrongAccessorIsRejected() throws IOException, KdbException {
+        final ColumnView vector = view(new long[]{1L, 2L}).asVector();
+
+        assertThrows(IllegalStateException.class, () -> vector.getDouble(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.getLong(2));
+        assertThrows(IllegalArgumentException.class, () -> resultView.asFlip());
+    }
+
+    @Test
+    void testKeyedTable() throws IOException, KdbException {
+        final Flip keys = new Flip(new String[]{"sym"}, new Object[]{new String[]{"VOD.L", "BARC.L"}});
+        final Flip values = new Flip(new String[]{"price"}, new Object[]{new double[]{1.5, 2.5}});
+
+        view(new Dict(keys, values));
+
+        assertEquals(DataType.Dict, resultView.getType());
+        final ResultView part = new ResultView(StandardCharsets.ISO_8859_1);
+        assertEquals("BARC.L", resultView.key(part).asFlip().column("sym").getSymbol(1));
+        assertEquals(1.5, resultView.value(part).asFlip().column("price").getDouble(0));
+    }
+
+    @Test
+    void testAtoms() throws IOException, KdbException {
+        assertEquals(42L, view(42L).getLong());
+        assertEquals("VOD.L", view("VOD.L").getSymbol());
+        assertEquals(1.25, view(1.25).getDouble());
+    }
+
+    @Test
+    void testErrorResponseThrows() {
+        buffer.put(KdbMessageHeader.SIZE, DataType.Exception.getTypeCode())
+                .put(KdbMessageHeader.SIZE + 1, "type".getBytes(StandardCharsets.ISO_8859_1))
+                .put(KdbMessageHeader.SIZE + 5, (byte) 0);
+
+        final KdbException e = assertThrows(KdbException.class, () -> kdbProtocol.view(header, buffer, resultView));
+        assertEquals("type", e.getMessage());
+    }
+
+    private ResultView view(final Object response) throws IOException, KdbException {
+        kdbProtocol.serialiseMessage(MessageType.response, response, header, buffer);
+        return kdbProtocol.view(header, buffer, resultView);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowQueueTest {
+    @Test
+    void testFullQueueRefusesOffers() {
+        final RowQueue rowQueue = new RowQueue(3);
+        assertEquals(4, rowQueue.capacity());
+        assertTrue(rowQueue.isEmpty());
+
+        for (long idx = 0; idx < 4; idx++) {
+            assertTrue(rowQueue.offer("trade", new Object[]{idx}));
+        }
+        assertFalse(rowQueue.offer("trade", new Object[]{4L}));
+
+        final List<Object> drained = new ArrayList<>();
+        assertEquals(3, rowQueue.drain((table, row) -> drained.add(row[0]), 3));
+        assertEquals(List.of(0L, 1L, 2L), drained);
+        assertTrue(rowQueue.offer("quote", new Object[]{4L}));
+        assertTrue(rowQueue.offer("quote", new Object[]{5L}));
+        assertTrue(rowQueue.offer("quote", new Object[]{6L}));
+        assertFalse(rowQueue.offer("quote", new Object[]{7L}));
+
+        assertEquals(4, rowQueue.drain((table, row) -> drained.add(table + row[0]), Integer.MAX_VALUE));
+        assertEquals(List.of(0L, 1L, 2L, "trade3", "quote4", "quote5", "quote6"), drained);
+        assertTrue(rowQueue.isEmpty());
+    }
+
+    @Test
+    void testConcurrentProducersLoseNothing() throws InterruptedException {
+        final RowQueue rowQueue = new RowQueue(1024);
+        final int producers = 4;
+        final int rowsPerProducer = 20_000;
+        final Thread[] threads = new Thread[producers];
+        for (int producer = 0; producer < producers; producer++) {
+            final Object[] row = {(long) producer};
+            threads[producer] = Thread.ofPlatform().start(() -> {
+                for (int idx = 0; idx < rowsPerProducer; idx++) {
+                    while (!rowQueue.offer("trade", row)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+
+        final long[] counts = new long[producers];
+        long drained = 0;
+        while (drained < (long) producers * rowsPerProducer) {
+            drained += rowQueue.drain((table, row) -> counts[(int) (long) (Long) row[0]]++, Integer.MAX_VALUE);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (final long count : counts) {
+            assertEquals(rowsPerProducer, count);
+        }
+        assertTrue(rowQueue.isEmpty());
+    }
+}
@@ -19,9 +19,12 @@ import org.junit.jupiter.api.Test;
 import uk.co.palmr.joke.messages.KdbMessageHeader;
 import uk.co.palmr.joke.types.*;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -426,34 +429,233 @@ public class SerDesTest {
     }
 
     @Test
-    public void testStringLenZeroForNull() throws UnsupportedEncodingException {
-        assertEquals(0, kdbProtocol.lengthOfEncodedString(null));
+    void testSerialisedLength() throws IOException, KdbException {
+        String[] x = new String[]{"Key"};
+        String[][] y = new String[][]{{"Value1", "Value2", "Value3"}};
+        Dict dict = new Dict(x, y);
+        Flip flip = new Flip(dict);
+
+        assertEquals(44, serialisedLength(dict));
+        assertEquals(46, serialisedLength(flip));
+        assertEquals(14, serialisedLength("Hello world!"));
+        assertEquals(2, serialisedLength((byte) 0x00));
+        assertEquals(16, serialisedLength(new Integer[]{1, 2}));
+        assertEquals(18, serialisedLength(new String[]{"hello", "world"}));
+        assertEquals(8, serialisedLength(new byte[]{1, 2}));
     }
 
     @Test
-    public void testStringLen() throws UnsupportedEncodingException {
-        assertEquals(12, kdbProtocol.lengthOfEncodedString("Hello world!"));
+    void testPrimitiveTemporalVectors() throws KdbException, UnsupportedEncodingException {
+        kdbProtocol.setPrimitiveTemporalVectors(true);
+
+        kdbProtocol.serialise(new Instant[]{Instant.ofEpochMilli(86400000L * 10957L + 10), Instant.MIN}, buffer);
+        buffer.position(0);
+        final TemporalLongVector timestamps = (TemporalLongVector) kdbProtocol.deserialiseResponseMessage(buffer);
+        assertArrayEquals(new long[]{10000000L, Long.MIN_VALUE}, timestamps.values);
+        assertEquals(Instant.ofEpochMilli(86400000L * 10957L + 10), timestamps.getInstant(0));
+
+        buffer.clear();
+        kdbProtocol.serialise(new LocalDate[]{LocalDate.of(2000, 1, 3)}, buffer);
+        buffer.position(0);
+        assertEquals(new TemporalIntVector(DataType.LocalDateArray, new int[]{2}), kdbProtocol.deserialiseResponseMessage(buffer));
+
+        buffer.clear();
+        kdbProtocol.serialise(new LocalDateTime[]{LocalDateTime.of(2000, 1, 1, 0, 0)}, buffer);
+        buffer.position(0);
+        assertInstanceOf(LocalDateTime[].class, kdbProtocol.deserialiseResponseMessage(buffer));
     }
 
     @Test
-    public void testStringLenForNullTerminatedInput() throws UnsupportedEncodingException {
-        assertEquals(2, kdbProtocol.lengthOfEncodedString(new String(new char[]{'H', 'i', 0x00, 'l', 'l', 'o', ' ', 'w', 'o', 'r', 'l', 'd', '!'})));
+    void testSerialisePrimitiveTemporalVectors() throws IOException, KdbException {
+        final LocalDate[] dates = {LocalDate.of(2000, 1, 3), LocalDate.MIN};
+        kdbProtocol.serialise(dates, buffer);
+        final ByteBuffer expected = ByteBuffer.allocate(128).put(buffer.flip());
+
+        buffer.clear();
+        final TemporalIntVector dateVector = new TemporalIntVector(DataType.LocalDateArray, new int[]{2, Integer.MIN_VALUE});
+        kdbProtocol.serialise(dateVector, buffer);
+        assertEquals(expected.flip(), buffer.flip());
+        assertEquals(buffer.limit(), serialisedLength(dateVector));
+
+        buffer.clear();
+        final TemporalLongVector timespans = new TemporalLongVector(DataType.TimespanArray, new long[]{1L, -1L});
+        kdbProtocol.serialise(timespans, buffer);
+        buffer.position(0);
+        assertArrayEquals(new Timespan[]{new Timespan(1L), new Timespan(-1L)}, (Timespan[]) kdbProtocol.deserialiseResponseMessage(buffer));
     }
 
     @Test
-    void testLengthOfObject() throws UnsupportedEncodingException {
-        String[] x = new String[]{"Key"};
-        String[][] y = new String[][]{{"Value1", "Value2", "Value3"}};
-        Dict dict = new Dict(x, y);
-        Flip flip = new Flip(dict);
+    void testSerialisePrimitiveTimestampsFailsWithIpcVersion0() {
+        kdbProtocol.setVersion(0);
+        assertThrows(RuntimeException.class, () -> kdbProtocol.serialise(new TemporalLongVector(DataType.InstantArray, new long[1]), buffer));
+    }
+
+    @Test
+    void testTableBuilderSerialisesAsFlip() throws IOException, KdbException {
+        final TableBuilder table = new TableBuilder(1);
+        final TableBuilder.SymbolColumn sym = table.symbolColumn("sym");
+        final TableBuilder.LongColumn time = table.longColumn("time", DataType.TimespanArray);
+        final TableBuilder.IntColumn size = table.intColumn("size");
+        final TableBuilder.DoubleColumn price = table.doubleColumn("price");
+        sym.add("VOD.L");
+        time.add(1L);
+        size.add(100);
+        price.add(1.5);
+        sym.add("BARC.L");
+        time.add(2L);
+        size.add(200);
+        price.add(2.5);
+
+        kdbProtocol.serialise(new Flip(new String[]{"sym", "time", "size", "price"}, new Object[]{
+                new String[]{"VOD.L", "BARC.L"}, new Timespan[]{new Timespan(1L), new Timespan(2L)},
+                new int[]{100, 200}, new double[]{1.5, 2.5}}), buffer);
+        final ByteBuffer expected = ByteBuffer.allocate(128).put(buffer.flip());
+
+        buffer.clear();
+        kdbProtocol.serialise(table, buffer);
+        assertEquals(buffer.position(), serialisedLength(table));
+        assertEquals(expected.flip(), buffer.flip());
+
+        table.clear();
+        buffer.clear();
+        kdbProtocol.serialise(table, buffer);
+        buffer.position(0);
+        final Flip empty = (Flip) kdbProtocol.deserialiseResponseMessage(buffer);
+        assertArrayEquals(new String[0], (String[]) empty.at("sym"));
+    }
+
+    @Test
+    void testTableBuilderColumnListSerialisesAsListOfVectors() throws IOException, KdbException {
+        final TableBuilder table = new TableBuilder(1);
+        final TableBuilder.SymbolColumn sym = table.symbolColumn("sym");
+        final TableBuilder.LongColumn size = table.longColumn("size");
+        sym.add("VOD.L");
+        size.add(100L);
+        sym.add("BARC.L");
+        size.add(200L);
+
+        kdbProtocol.serialise(new Object[]{new String[]{"VOD.L", "BARC.L"}, new long[]{100L, 200L}}, buffer);
+        final ByteBuffer expected = ByteBuffer.allocate(128).put(buffer.flip());
+
+        buffer.clear();
+        kdbProtocol.serialise(table.asColumnList(), buffer);
+        assertEquals(buffer.position(), serialisedLength(table.asColumnList()));
+        assertEquals(expected.flip(), buffer.flip());
+    }
+
+    @Test
+    void testCodecWritesValueClassAsAtomsAndVectors() throws IOException, KdbException {
+        kdbProtocol.registerCodec(new PriceCodec(), false);
+
+        kdbProtocol.serialise(new Price(1.5f), buffer);
+        assertEquals(5, buffer.position());
+        assertEquals(5, serialisedLength(new Price(1.5f)));
+        buffer.position(0);
+        assertEquals(1.5f, kdbProtocol.deserialiseResponseMessage(buffer));
+
+        buffer.clear();
+        final Price[] prices = {new Price(1.5f), null, new Price(-2f)};
+        kdbProtocol.serialise(prices, buffer);
+        assertEquals(buffer.position(), serialisedLength(prices));
+        buffer.position(0);
+        assertArrayEquals(new float[]{1.5f, Float.NaN, -2f}, (float[]) kdbProtocol.deserialiseResponseMessage(buffer));
+
+        buffer.clear();
+        kdbProtocol.serialise(new Object[]{new Price(3f), 4L}, buffer);
+        buffer.position(0);
+        assertArrayEquals(new Object[]{3f, 4L}, (Object[]) kdbProtocol.deserialiseResponseMessage(buffer));
+    }
+
+    @Test
+    void testCodecDecodesItsType() throws KdbException, UnsupportedEncodingException {
+        kdbProtocol.registerCodec(new PriceCodec(), true);
+
+        kdbProtocol.serialise(new float[]{1.5f, Float.NaN}, buffer);
+        buffer.position(0);
+        assertArrayEquals(new Price[]{new Price(1.5f), null}, (Price[]) kdbProtocol.deserialiseResponseMessage(buffer));
+
+        buffer.clear();
+        kdbProtocol.serialise(2.5f, buffer);
+        buffer.position(0);
+        assertEquals(new Price(2.5f), kdbProtocol.deserialiseResponseMessage(buffer));
+    }
+
+    @Test
+    void testCodecMustWriteFixedWidthAtom() {
+        assertThrows(IllegalArgumentException.class, () -> kdbProtocol.registerCodec(new PriceCodec() {
+            @Override
+            public DataType getKdbType() {
+                return DataType.String;
+            }
+        }, false));
+        assertThrows(IllegalArgumentException.class, () -> kdbProtocol.registerCodec(new PriceCodec() {
+            @Override
+            public DataType getKdbType() {
+                return DataType.FloatArray;
+            }
+        }, false));
+    }
+
+    @Test
+    void testBulkVectorsFollowBufferByteOrder() throws KdbException, UnsupportedEncodingException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        kdbProtocol.serialise(new long[]{1L, -2L}, buffer);
+
+        assertEquals(22, buffer.position());
+        assertEquals(1L, buffer.getLong(6));
+        assertEquals(-2L, buffer.getLong(14));
+
+        buffer.position(0);
+        assertArrayEquals(new long[]{1L, -2L}, (long[]) kdbProtocol.deserialiseResponseMessage(buffer));
+        assertEquals(22, buffer.position());
+    }
+
+    @Test
+    void testBulkVectorOverflowsSmallBuffer() {
+        assertThrows(BufferOverflowException.class, () -> kdbProtocol.serialise(new double[32], buffer));
+    }
+
+    @Test
+    void testCharVectorCountIsOfEncodedBytes() throws KdbException, UnsupportedEncodingException {
+        final KdbProtocol utf8Protocol = new KdbProtocol("UTF-8", false);
+        final char[] chars = "café €1".toCharArray();
+        utf8Protocol.serialise(new Object[]{chars, 7L}, buffer);
+
+        buffer.position(0);
+        final Object[] result = (Object[]) utf8Protocol.deserialiseResponseMessage(buffer);
+        assertArrayEquals(chars, (char[]) result[0]);
+        assertEquals(7L, result[1]);
+        assertEquals(6 + 6 + "café €1".getBytes(StandardCharsets.UTF_8).length + 9, buffer.position());
+    }
+
+    @Test
+    void testSerialiseMessageBackPatchesSize() throws IOException, KdbException {
+        final Flip flip = new Flip(new Dict(new String[]{"Key"}, new String[][]{{"Value1", "Value2", "Value3"}}));
+        final KdbMessageHeader header = new KdbMessageHeader(buffer);
 
-        assertEquals(44, kdbProtocol.lengthOfObject(dict));
-        assertEquals(46, kdbProtocol.lengthOfObject(flip));
-        assertEquals(14, kdbProtocol.lengthOfObject("Hello world!"));
-        assertEquals(2, kdbProtocol.lengthOfObject((byte) 0x00));
-        assertEquals(16, kdbProtocol.lengthOfObject(new Integer[]{1, 2}));
-        assertEquals(18, kdbProtocol.lengthOfObject(new String[]{"hello", "world"}));
-        assertEquals(8, kdbProtocol.lengthOfObject(new byte[]{1, 2}));
+        final int length = kdbProtocol.serialiseMessage(MessageType.sync, flip, header, buffer);
+
+        assertEquals(KdbMessageHeader.SIZE + 46, length);
+        assertEquals(length, buffer.position());
+        assertEquals(length, header.getMessageSize());
+        assertEquals(MessageType.sync, header.getMessageType());
+    }
+
+    @Test
+    void testSerialiseMessageOverflowsSmallBuffer() {
+        final ByteBuffer smallBuffer = ByteBuffer.allocate(16);
+        final KdbMessageHeader header = new KdbMessageHeader(smallBuffer);
+
+        assertThrows(BufferOverflowException.class, () -> kdbProtocol.serialiseMessage(MessageType.sync, "Hello world!", header, smallBuffer));
+        assertThrows(BufferOverflowException.class, () -> kdbProtocol.serialiseMessage(MessageType.sync, "Hi", new KdbMessageHeader(ByteBuffer.allocate(4)), ByteBuffer.allocate(4)));
+    }
+
+    /**
+     * @return the length {@link KdbProtocol#serialiseMessage} gives an object, less the message header
+     */
+    private int serialisedLength(final Object data) throws IOException, KdbException {
+        final ByteBuffer messageBuffer = ByteBuffer.allocate(1024);
+        return kdbProtocol.serialiseMessage(MessageType.sync, data, new KdbMessageHeader(messageBuffer), messageBuffer) - KdbMessageHeader.SIZE;
     }
 
     private void assertSerDesAtom(final Object data) {
@@ -575,4 +777,30 @@ public class SerDesTest {
             fail(e);
         }
     }
+
+    private record Price(float value) {
+    }
+
+    private static class PriceCodec implements KdbCodec<Price> {
+        @Override
+        public Class<Price> getJavaType() {
+            return Price.class;
+        }
+
+        @Override
+        public DataType getKdbType() {
+            return DataType.Float;
+        }
+
+        @Override
+        public void encode(final Price value, final ByteBuffer buffer) {
+            buffer.putFloat(value == null ? Float.NaN : value.value());
+        }
+
+        @Override
+        public Price decode(final ByteBuffer buffer) {
+            final float value = buffer.getFloat();
+            return Float.isNaN(value) ? null : new Price(value);
+        }
+    }
 }
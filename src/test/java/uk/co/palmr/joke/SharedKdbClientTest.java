@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedKdbClientTest {
+    /**
+     * Enough pushed messages, at 8KB each, to overflow both the subscriber's buffer and the socket buffers between.
+     */
+    private static final int PUSHED = SharedKdbClient.MAX_BUFFERED_MESSAGES * 3;
+    private static final int PUSHED_LENGTH = 1024;
+
+    private final AtomicInteger pushed = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private Thread remote;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        remote = Thread.ofPlatform().daemon().start(this::answerThenPush);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        serverSocket.close();
+        remote.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Test
+    void testConcurrentRequestsGetTheirOwnResponses() throws IOException, KdbException, InterruptedException {
+        try (KdbServer server = echoServer(new CountDownLatch(0));
+             SharedKdbClient client = new SharedKdbClient("localhost", server.getPort(), "user", "password")) {
+            final List<Thread> threads = new ArrayList<>();
+            final List<Throwable> failures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                final String prefix = (thread % 2 == 0 ? "err" : "q") + thread + "-";
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        final List<CompletableFuture<Object>> responses = new ArrayList<>();
+                        for (int idx = 0; idx < 200; idx++) {
+                            responses.add(client.submit(prefix + idx));
+                        }
+                        for (int idx = 0; idx < responses.size(); idx++) {
+                            if (prefix.startsWith("err")) {
+                                final ExecutionException e = assertThrows(ExecutionException.class, responses.get(idx)::get);
+                                assertEquals(prefix + idx, e.getCause().getMessage());
+                            } else {
+                                assertArrayEquals((prefix + idx).toCharArray(), (char[]) responses.get(idx).get());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(List.of(), failures);
+            assertArrayEquals("last".toCharArray(), (char[]) client.send("last"));
+        }
+    }
+
+    @Test
+    void testCloseFailsOutstandingRequests() throws IOException, KdbException {
+        final CountDownLatch answer = new CountDownLatch(1);
+        try (KdbServer server = echoServer(answer)) {
+            final SharedKdbClient client = new SharedKdbClient("localhost", server.getPort(), "user", "password");
+            final CompletableFuture<Object> first = client.submit("hang");
+            final CompletableFuture<Object> second = client.submit("second");
+            client.close();
+
+            assertFalse(client.isOpen());
+            assertInstanceOf(IOException.class, assertThrows(ExecutionException.class, first::get).getCause());
+            assertInstanceOf(IOException.class, assertThrows(ExecutionException.class, second::get).getCause());
+            assertThrows(IOException.class, () -> client.send("after"));
+            answer.countDown();
+        }
+    }
+
+    @Test
+    void testInvalidMessageSizeFailsConnection() throws IOException, KdbException, InterruptedException {
+        try (ServerSocket corrupt = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread corruptRemote = Thread.ofPlatform().daemon().start(() -> {
+                try (Socket socket = corrupt.accept()) {
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    final OutputStream out = socket.getOutputStream();
+                    while (in.read() > 0) {
+                        // skip the login
+                    }
+                    out.write(IpcVersion.KDB_IPC_VERSION);
+                    in.readFully(new byte[KdbMessageHeader.SIZE]);
+                    out.write(new byte[]{1, 2, 0, 0, 0, 0, 0, 0});
+                    while (in.read() >= 0) {
+                        // wait for the client to hang up
+                    }
+                } catch (IOException ignored) {
+                    // client went away
+                }
+            });
+            final SharedKdbClient client = new SharedKdbClient("localhost", corrupt.getLocalPort(), "user", "password");
+
+            final ExecutionException e = assertThrows(ExecutionException.class, () -> client.submit("x").get(10, TimeUnit.SECONDS));
+            assertEquals("Invalid message size 0", e.getCause().getMessage());
+            assertFalse(client.isOpen());
+            client.close();
+            corruptRemote.join();
+        }
+    }
+
+    @Test
+    void testOversizedBuffersAreReleasedOnceIdle() throws IOException, KdbException, InterruptedException {
+        final BufferPool bufferPool = new BufferPool(Duration.ofMillis(50), 4);
+        final char[] large = new char[100_000];
+        Arrays.fill(large, 'x');
+        try (KdbServer server = echoServer(new CountDownLatch(0));
+             SharedKdbClient client = new SharedKdbClient("localhost", server.getPort(), "user", "password", false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, bufferPool)) {
+            assertArrayEquals(large, (char[]) client.send(new String(large)));
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (bufferPool.pooledCount(1 << 17) < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, bufferPool.pooledCount(1 << 17), "grown read and write buffers were not handed back");
+            assertArrayEquals("small".toCharArray(), (char[]) client.send("small"));
+        }
+    }
+
+    /**
+     * @param answer latch the server waits on before answering {@code hang}
+     * @return a server echoing sync messages, and failing those starting {@code err}
+     */
+    private static KdbServer echoServer(final CountDownLatch answer) throws IOException {
+        return new KdbServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), (username, message) -> {
+            final String expr = new String((char[]) message);
+            if (expr.startsWith("err")) {
+                throw new KdbException(expr);
+            }
+            if (expr.equals("hang")) {
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return message;
+        }, 1, false, "ISO-8859-1", BufferPool.MIN_BUFFER_SIZE, BufferPool.DEFAULT);
+    }
+
+    @Test
+    void testReadingPausesUntilSubscriberRequestsMore() throws IOException, KdbException, InterruptedException {
+        try (SharedKdbClient client = new SharedKdbClient("localhost", serverSocket.getLocalPort(), "user", "password")) {
+            final RecordingSubscriber subscriber = new RecordingSubscriber();
+            client.subscribe("sub".toCharArray()).subscribe(subscriber);
+
+            Thread.sleep(500);
+            assertTrue(subscriber.received.isEmpty());
+            final int pushedWhilePaused = pushed.get();
+            assertTrue(pushedWhilePaused < PUSHED, "remote wrote everything while reading was paused");
+            Thread.sleep(200);
+            assertEquals(pushedWhilePaused, pushed.get());
+
+            subscriber.subscription.request(10);
+            for (int idx = 0; idx < 10; idx++) {
+                assertEquals(idx, ((long[]) subscriber.received.poll(10, TimeUnit.SECONDS))[0]);
+            }
+            Thread.sleep(100);
+            assertTrue(subscriber.received.isEmpty());
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            for (int idx = 10; idx < PUSHED; idx++) {
+                assertEquals(idx, ((long[]) subscriber.received.poll(10, TimeUnit.SECONDS))[0]);
+            }
+            assertEquals(PUSHED, pushed.get());
+        }
+    }
+
+    @Test
+    void testNonPositiveRequestFailsSubscriber() throws IOException, KdbException, InterruptedException {
+        try (SharedKdbClient client = new SharedKdbClient("localhost", serverSocket.getLocalPort(), "user", "password")) {
+            final RecordingSubscriber subscriber = new RecordingSubscriber();
+            client.subscribe("sub".toCharArray()).subscribe(subscriber);
+            subscriber.subscription.request(0);
+
+            assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, subscriber.error);
+        }
+    }
+
+    @Test
+    void testCancelledSubscriberIsDroppedAndCloseCompletesOthers() throws IOException, KdbException, InterruptedException {
+        final RecordingSubscriber cancelled = new RecordingSubscriber();
+        final RecordingSubscriber remaining = new RecordingSubscriber();
+        try (SharedKdbClient client = new SharedKdbClient("localhost", serverSocket.getLocalPort(), "user", "password")) {
+            client.subscribe("sub".toCharArray()).subscribe(remaining);
+            client.subscribe("nothing".toCharArray()).subscribe(cancelled);
+            Thread.sleep(200);
+            cancelled.subscription.cancel();
+
+            remaining.subscription.request(Long.MAX_VALUE);
+            for (int idx = 0; idx < PUSHED; idx++) {
+                assertEquals(idx, ((long[]) remaining.received.poll(10, TimeUnit.SECONDS))[0]);
+            }
+        }
+        assertTrue(remaining.terminated.await(10, TimeUnit.SECONDS));
+        assertNull(remaining.error);
+        assertEquals(1, cancelled.terminated.getCount());
+        assertTrue(cancelled.received.isEmpty());
+    }
+
+    @Test
+    void testSubscriberIsOnlySignalledOnIoThreadWhileClosing() throws IOException, KdbException, InterruptedException {
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final RecordingSubscriber late = new RecordingSubscriber();
+        final SharedKdbClient client = new SharedKdbClient("localhost", serverSocket.getLocalPort(), "user", "password");
+        client.subscribe("sub".toCharArray()).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription) {
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(final Object item) {
+                delivering.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertTrue(delivering.await(10, TimeUnit.SECONDS));
+
+        final Thread closing = Thread.ofPlatform().start(() -> {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // interrupted
+            }
+        });
+        while (client.isOpen()) {
+            Thread.sleep(1);
+        }
+        client.subscribe("late".toCharArray()).subscribe(late);
+        final boolean signalledWhileDelivering = late.terminated.await(200, TimeUnit.MILLISECONDS);
+        resume.countDown();
+        closing.join();
+
+        assertFalse(signalledWhileDelivering, "late subscriber signalled off the I/O thread");
+        assertTrue(late.terminated.await(10, TimeUnit.SECONDS));
+        assertEquals("joke-io-localhost:" + serverSocket.getLocalPort(), late.terminatedOn);
+    }
+
+    /**
+     * Plays a remote which answers each sync message, and pushes a stream of async messages after answering the first.
+     */
+    private void answerThenPush() {
+        final KdbProtocol kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        final ByteBuffer buffer = ByteBuffer.allocate(PUSHED_LENGTH * Long.BYTES + 64);
+        try (Socket socket = serverSocket.accept()) {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (in.read() > 0) {
+                // skip the login
+            }
+            out.write(IpcVersion.KDB_IPC_VERSION);
+
+            boolean first = true;
+            while (true) {
+                final byte[] header = new byte[KdbMessageHeader.SIZE];
+                in.readFully(header);
+                final int size = ByteBuffer.wrap(header).order(header[0] == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).getInt(4);
+                in.skipNBytes(size - header.length);
+                write(out, kdbProtocol, buffer, MessageType.response, "ok".toCharArray());
+                if (first) {
+                    first = false;
+                    for (int idx = 0; idx < PUSHED; idx++) {
+                        final long[] message = new long[PUSHED_LENGTH];
+                        message[0] = idx;
+                        write(out, kdbProtocol, buffer, MessageType.async, message);
+                        pushed.incrementAndGet();
+                    }
+                }
+            }
+        } catch (IOException | KdbException ignored) {
+            // client went away
+        }
+    }
+
+    private static void write(final OutputStream out, final KdbProtocol kdbProtocol, final ByteBuffer buffer, final MessageType messageType, final Object message) throws IOException, KdbException {
+        final int length = kdbProtocol.serialiseMessage(messageType, message, new KdbMessageHeader(buffer), buffer);
+        out.write(buffer.array(), 0, length);
+        out.flush();
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<Object> {
+        private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+        private volatile String terminatedOn;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final Object item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            error = throwable;
+            terminatedOn = Thread.currentThread().getName();
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminatedOn = Thread.currentThread().getName();
+            terminated.countDown();
+        }
+    }
+}
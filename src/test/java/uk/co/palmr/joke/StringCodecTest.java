@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StringCodecTest {
+    private static final String[] SAMPLES = {"", "VOD.L", "café", "€1", "a😀b", "cut\u0000short"};
+
+    @Test
+    void testSingleByteEncodingsMatchStringGetBytes() throws UnsupportedEncodingException {
+        for (final String encoding : new String[]{"ISO-8859-1", "US-ASCII", "UTF-8"}) {
+            final StringCodec stringCodec = new StringCodec(encoding);
+            for (final String sample : SAMPLES) {
+                final String expected = sample.substring(0, sample.contains("\u0000") ? sample.indexOf(0) : sample.length());
+                final byte[] expectedBytes = expected.getBytes(encoding);
+
+                final ByteBuffer buffer = ByteBuffer.allocate(64);
+                stringCodec.writeSymbol(sample, buffer);
+                assertEquals(expectedBytes.length + 1, buffer.position(), encoding + " " + sample);
+                assertEquals(ByteBuffer.wrap(expectedBytes), buffer.flip().limit(expectedBytes.length), encoding + " " + sample);
+
+                buffer.clear();
+                stringCodec.writeChars(sample.toCharArray(), buffer);
+                assertEquals(sample.getBytes(encoding).length, buffer.position(), encoding + " " + sample);
+                assertArrayEquals(new String(sample.getBytes(encoding), encoding).toCharArray(), stringCodec.decodeChars(buffer, 0, buffer.position()), encoding + " " + sample);
+            }
+        }
+    }
+
+    @Test
+    void testDecodeFromDirectBuffer() throws UnsupportedEncodingException {
+        final StringCodec stringCodec = new StringCodec("ISO-8859-1");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16).put("xcafé".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals("café", stringCodec.decode(buffer, 1, 4));
+        assertArrayEquals("café".toCharArray(), stringCodec.decodeChars(buffer, 1, 4));
+    }
+
+    @Test
+    void testAsciiReplacesHighBytes() throws UnsupportedEncodingException {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{'a', (byte) 0xe9});
+
+        assertArrayEquals(new char[]{'a', '\uFFFD'}, new StringCodec("US-ASCII").decodeChars(buffer, 0, 2));
+    }
+
+    @Test
+    void testUnsupportedEncodingIsReportedOnUse() {
+        final StringCodec stringCodec = new StringCodec("no-such-encoding");
+
+        assertThrows(UnsupportedEncodingException.class, () -> stringCodec.writeSymbol("a", ByteBuffer.allocate(8)));
+        assertThrows(UnsupportedEncodingException.class, stringCodec::charset);
+    }
+}
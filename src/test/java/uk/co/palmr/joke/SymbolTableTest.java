@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SymbolTableTest {
+    @Test
+    void testRepeatedSymbolIsSameInstance() throws UnsupportedEncodingException {
+        final SymbolTable symbolTable = new SymbolTable();
+        final ByteBuffer buffer = ByteBuffer.wrap("VOD.L BARC.L VOD.L".getBytes(StandardCharsets.ISO_8859_1));
+
+        final String first = intern(symbolTable, buffer, 0, 5);
+        final String second = intern(symbolTable, buffer, 13, 5);
+        assertEquals("VOD.L", first);
+        assertSame(first, second);
+        assertEquals("BARC.L", intern(symbolTable, buffer, 6, 6));
+    }
+
+    @Test
+    void testCollidingSymbolTakesOverSlot() throws UnsupportedEncodingException {
+        final SymbolTable symbolTable = new SymbolTable(1);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16).put("ab".getBytes(StandardCharsets.ISO_8859_1));
+
+        final String ab = intern(symbolTable, buffer, 0, 2);
+        assertEquals("ab", ab);
+        buffer.put(0, (byte) 'c');
+        assertEquals("cb", intern(symbolTable, buffer, 0, 2));
+        buffer.put(0, (byte) 'a');
+        assertNotSame(ab, intern(symbolTable, buffer, 0, 2));
+    }
+
+    @Test
+    void testLongSymbolIsNotInterned() throws UnsupportedEncodingException {
+        final SymbolTable symbolTable = new SymbolTable();
+        final String symbol = "x".repeat(SymbolTable.MAX_SYMBOL_LENGTH + 1);
+        final ByteBuffer buffer = ByteBuffer.wrap(symbol.getBytes(StandardCharsets.ISO_8859_1));
+
+        final String first = intern(symbolTable, buffer, 0, symbol.length());
+        assertEquals(symbol, first);
+        assertNotSame(first, intern(symbolTable, buffer, 0, symbol.length()));
+    }
+
+    @Test
+    void testSymbolVectorSharesInstances() throws KdbException, UnsupportedEncodingException {
+        final KdbProtocol kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        final ByteBuffer buffer = ByteBuffer.allocate(128);
+        kdbProtocol.serialise(new String[]{"VOD.L", "BARC.L", "VOD.L", ""}, buffer);
+        buffer.position(0);
+
+        final String[] symbols = (String[]) kdbProtocol.deserialiseResponseMessage(buffer);
+        assertArrayEquals(new String[]{"VOD.L", "BARC.L", "VOD.L", ""}, symbols);
+        assertSame(symbols[0], symbols[2]);
+    }
+
+    private static String intern(final SymbolTable symbolTable, final ByteBuffer buffer, final int start, final int length) throws UnsupportedEncodingException {
+        int hash = 0;
+        for (int idx = start; idx < start + length; idx++) {
+            hash = SymbolTable.hash(hash, buffer.get(idx));
+        }
+        return symbolTable.intern(buffer, start, length, hash, new StringCodec("ISO-8859-1"));
+    }
+}
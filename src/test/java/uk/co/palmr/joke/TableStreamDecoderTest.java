@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.TableStreamDecoder;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TableStreamDecoderTest {
+    private KdbProtocol kdbProtocol;
+    private ByteBuffer message;
+    private TableStreamDecoder decoder;
+
+    @BeforeEach
+    void setUp() {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        message = ByteBuffer.allocate(4096);
+        decoder = new TableStreamDecoder(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void testTableDecodedAsBytesArrive() throws IOException, KdbException {
+        final int rows = 50;
+        final String[] syms = new String[rows];
+        final long[] sizes = new long[rows];
+        final Object[] notes = new Object[rows];
+        for (int row = 0; row < rows; row++) {
+            syms[row] = "SYM" + row;
+            sizes[row] = row * 100L;
+            notes[row] = ("note " + row).toCharArray();
+        }
+        final int length = serialise(new Flip(new String[]{"sym", "size", "note"}, new Object[]{syms, sizes, notes}));
+
+        final List<String> decodedSyms = new ArrayList<>();
+        final List<Long> decodedSizes = new ArrayList<>();
+        final List<String> decodedNotes = new ArrayList<>();
+        final int[] chunks = new int[3];
+        decoder.reset((column, columnName, firstRow, chunk) -> {
+            chunks[column]++;
+            switch (columnName) {
+                case "sym" -> {
+                    assertEquals(decodedSyms.size(), firstRow);
+                    for (int row = 0; row < chunk.size(); row++) {
+                        decodedSyms.add(chunk.getSymbol(row));
+                    }
+                }
+                case "size" -> {
+                    assertEquals(decodedSizes.size(), firstRow);
+                    for (int row = 0; row < chunk.size(); row++) {
+                        decodedSizes.add(chunk.getLong(row));
+                    }
+                }
+                default -> {
+                    assertEquals(decodedNotes.size(), firstRow);
+                    for (int row = 0; row < chunk.size(); row++) {
+                        decodedNotes.add(chunk.getString(row));
+                    }
+                }
+            }
+        });
+
+        // Feed the body through a buffer which can't hold the table, a few bytes at a time
+        final ByteBuffer buffer = ByteBuffer.allocate(32);
+        int fed = KdbMessageHeader.SIZE;
+        buffer.flip();
+        while (!decoder.decode(buffer)) {
+            assertTrue(fed < length, "Decoder wants more than the message");
+            buffer.compact();
+            final int count = Math.min(Math.min(5, buffer.remaining()), length - fed);
+            buffer.put(message.slice(fed, count));
+            fed += count;
+            buffer.flip();
+        }
+
+        assertEquals(length, fed);
+        assertTrue(decoder.isDone());
+        assertEquals(List.of(syms), decodedSyms);
+        assertEquals(rows, decodedSizes.size());
+        assertEquals(4900L, (long) decodedSizes.get(49));
+        assertEquals("note 49", decodedNotes.get(49));
+        assertTrue(chunks[1] > 1, "Columns should arrive in several chunks");
+    }
+
+    @Test
+    void testNotATableIsRejected() throws IOException, KdbException {
+        final int length = serialise(new long[]{1L, 2L});
+        decoder.reset((column, columnName, firstRow, chunk) -> fail("Nothing should be decoded"));
+
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(message.limit(length).position(KdbMessageHeader.SIZE)));
+    }
+
+    private int serialise(final Object response) throws IOException, KdbException {
+        return kdbProtocol.serialiseMessage(MessageType.response, response, new KdbMessageHeader(message), message);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.palmr.joke.messages.FlipView;
+import uk.co.palmr.joke.messages.KdbMessageHeader;
+import uk.co.palmr.joke.messages.UpdateView;
+import uk.co.palmr.joke.types.Flip;
+import uk.co.palmr.joke.types.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateViewTest {
+    private static final String[] TRADE_COLUMNS = {"sym", "price", "size"};
+
+    private KdbProtocol kdbProtocol;
+    private ByteBuffer buffer;
+    private UpdateView updateView;
+
+    @BeforeEach
+    void setUp() {
+        kdbProtocol = new KdbProtocol("ISO-8859-1", false);
+        buffer = ByteBuffer.allocate(4096);
+        updateView = new UpdateView(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void testColumnListIsNamedFromSchema() throws IOException, KdbException {
+        assertTrue(wrap(new Object[]{"upd", "trade", new Object[]{
+                new String[]{"VOD.L", "BARC.L"},
+                new double[]{1.5, 2.5},
+                new long[]{100L, 200L}}}));
+
+        assertEquals("trade", updateView.table());
+        assertTrue(updateView.isColumnList());
+        assertThrows(IllegalArgumentException.class, () -> updateView.rows(null));
+        assertThrows(IllegalArgumentException.class, () -> updateView.rows(new String[]{"sym", "price"}));
+
+        final FlipView rows = updateView.rows(TRADE_COLUMNS);
+        assertEquals(3, rows.columnCount());
+        assertEquals(2, rows.rowCount());
+        assertEquals("size", rows.columnName(2));
+        assertEquals(2, rows.columnIndex("size"));
+        assertEquals("BARC.L", rows.column("sym").getSymbol(1));
+        assertEquals(1.5, rows.column("price").getDouble(0));
+        assertEquals(200L, rows.column("size").getLong(1));
+    }
+
+    @Test
+    void testTableDataCarriesItsOwnColumnNames() throws IOException, KdbException {
+        assertTrue(wrap(new Object[]{"upd", "quote", new Flip(new String[]{"sym", "bid"}, new Object[]{
+                new String[]{"VOD.L"},
+                new double[]{99.5}})}));
+
+        assertEquals("quote", updateView.table());
+        assertFalse(updateView.isColumnList());
+        final FlipView rows = updateView.rows(null);
+        assertEquals("bid", rows.columnName(1));
+        assertEquals(99.5, rows.column("bid").getDouble(0));
+    }
+
+    @Test
+    void testTableNameIsDecodedOnce() throws IOException, KdbException {
+        assertTrue(wrap(new Object[]{"upd", "trade", new Object[]{new String[]{"VOD.L"}}}));
+        final String first = updateView.table();
+        assertTrue(wrap(new Object[]{"upd", "quote", new Object[]{new String[]{"VOD.L"}}}));
+        assertTrue(wrap(new Object[]{"upd", "trade", new Object[]{new String[]{"BARC.L"}}}));
+
+        assertSame(first, updateView.table());
+    }
+
+    @Test
+    void testOtherMessagesAreNotUpdates() throws IOException, KdbException {
+        assertFalse(wrap(new Object[]{".u.end", new int[]{1}}));
+        assertFalse(wrap(new Object[]{"upd", "trade", new Object[]{"VOD.L", 1.5, 100L}}));
+        assertFalse(wrap(new Object[]{"upd", "trade", new Object[0]}));
+        assertFalse(wrap(new Object[]{"upd".toCharArray(), "trade", new Object[]{new String[]{"VOD.L"}}}));
+        assertFalse(wrap(new long[]{1L, 2L, 3L}));
+    }
+
+    private boolean wrap(final Object message) throws IOException, KdbException {
+        kdbProtocol.serialiseMessage(MessageType.async, message, new KdbMessageHeader(buffer), buffer);
+        return updateView.wrap(buffer, KdbMessageHeader.SIZE);
+    }
+}
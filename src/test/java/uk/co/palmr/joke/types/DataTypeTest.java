@@ -22,6 +22,7 @@ import java.time.LocalTime;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 class DataTypeTest {
     @Test
@@ -66,9 +67,12 @@ class DataTypeTest {
         assertEquals(13, DataType.getKdbType(new Month[2]).getTypeCode());
         assertEquals(17, DataType.getKdbType(new Minute[2]).getTypeCode());
         assertEquals(18, DataType.getKdbType(new Second[2]).getTypeCode());
+        assertEquals(12, DataType.getKdbType(new TemporalLongVector(DataType.InstantArray, new long[2])).getTypeCode());
+        assertEquals(19, DataType.getKdbType(new TemporalIntVector(DataType.LocalTimeArray, new int[2])).getTypeCode());
         Dict dict = new Dict(new String[]{"Key"}, new String[][]{{"Value1", "Value2", "Value3"}});
         assertEquals(98, DataType.getKdbType(new Flip(dict)).getTypeCode());
         assertEquals(99, DataType.getKdbType(dict).getTypeCode());
+        assertEquals(98, DataType.getKdbType(new TableBuilder()).getTypeCode());
     }
 
     @Test
@@ -76,6 +80,33 @@ class DataTypeTest {
         assertEquals(0, DataType.getKdbType(new StringBuffer()).getTypeCode());
     }
 
+    @Test
+    public void testGetSubclassType() {
+        final Dict dict = new Dict(new String[]{"Key"}, new String[][]{{"Value"}});
+        assertEquals(DataType.Timespan, DataType.getKdbType(new Timespan(1L) {}));
+        assertEquals(DataType.Flip, DataType.getKdbType(new Flip(dict) {}));
+        assertEquals(DataType.TimespanArray, DataType.getKdbType(new Timespan[]{new Timespan(1L) {}}));
+        assertEquals(DataType.List, DataType.getKdbType(new Object[]{1L}));
+    }
+
+    @Test
+    public void testGetTypeOfSameClassDependsOnInstance() {
+        assertEquals(DataType.InstantArray, DataType.getKdbType(new TemporalLongVector(DataType.InstantArray, new long[1])));
+        assertEquals(DataType.TimespanArray, DataType.getKdbType(new TemporalLongVector(DataType.TimespanArray, new long[1])));
+        assertEquals(DataType.LocalDateArray, DataType.getKdbType(new TemporalIntVector(DataType.LocalDateArray, new int[1])));
+        assertEquals(DataType.MonthArray, DataType.getKdbType(new TemporalIntVector(DataType.MonthArray, new int[1])));
+    }
+
+    @Test
+    void testGetTypeByCode() {
+        for (final DataType dataType : DataType.values()) {
+            assertEquals(dataType, DataType.getKdbType(dataType.getTypeCode()));
+        }
+        assertNull(DataType.getKdbType((byte) 3));
+        assertNull(DataType.getKdbType((byte) -3));
+        assertNull(DataType.getKdbType((byte) 120));
+    }
+
     @Test
     void testTypeByteSize() {
         final int[] bytesPerTypeId = {0, 1, 16, 0, 1, 2, 4, 8, 4, 8, 1, 0, 8, 4, 4, 8, 8, 4, 4, 4};
@@ -15,6 +15,9 @@ package uk.co.palmr.joke.types;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class FlipTest {
@@ -45,4 +48,57 @@ class FlipTest {
         Flip flip = new Flip(dict);
         assertThrows(ArrayIndexOutOfBoundsException.class, () -> flip.at("RUBBISH"));
     }
+
+    @Test
+    public void testCursorReadsRows() {
+        final Flip flip = new Flip(new String[]{"sym", "size", "price", "note", "date"}, new Object[]{
+                new String[]{"VOD.L", "BARC.L"},
+                new long[]{100L, 200L},
+                new double[]{1.5, 2.5},
+                new Object[]{"first".toCharArray(), "second".toCharArray()},
+                new TemporalIntVector(DataType.LocalDateArray, new int[]{1, 2})});
+        final FlipCursor cursor = flip.cursor();
+        final int price = cursor.columnIndex("price");
+
+        assertTrue(cursor.next());
+        assertEquals("VOD.L", cursor.getString(0));
+        assertEquals(100L, cursor.getLong(1));
+        assertEquals(1.5, cursor.getDouble(price));
+        assertTrue(cursor.next());
+        assertEquals(1, cursor.row());
+        assertEquals("second", cursor.getString(3));
+        assertEquals(2, cursor.getInt(4));
+        assertEquals(java.time.LocalDate.of(2000, 1, 3), cursor.getObject(4));
+        assertEquals(200L, cursor.getObject(1));
+        assertThrows(IllegalStateException.class, () -> cursor.getDouble(1));
+        assertFalse(cursor.next());
+        assertEquals(-1, cursor.columnIndex("RUBBISH"));
+    }
+
+    @Test
+    public void testSpliteratorSplitsByRows() {
+        final int rows = 10001;
+        final long[] sizes = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            sizes[row] = row;
+        }
+        final Flip flip = new Flip(new String[]{"size"}, new Object[]{sizes});
+
+        final Spliterator<FlipCursor> suffix = flip.spliterator();
+        final Spliterator<FlipCursor> prefix = suffix.trySplit();
+        assertEquals(5000, prefix.estimateSize());
+        assertEquals(5001, suffix.estimateSize());
+        assertTrue(prefix.tryAdvance(cursor -> assertEquals(0L, cursor.getLong(0))));
+        assertTrue(suffix.tryAdvance(cursor -> assertEquals(5000L, cursor.getLong(0))));
+
+        assertEquals(rows * (rows - 1L) / 2, StreamSupport.stream(flip.spliterator(), true).mapToLong(cursor -> cursor.getLong(0)).sum());
+        assertEquals(rows, StreamSupport.stream(flip.spliterator(), true).count());
+    }
+
+    @Test
+    public void testEmptyFlip() {
+        final Flip flip = new Flip(new String[0], new Object[0]);
+        assertEquals(0, flip.rowCount());
+        assertFalse(flip.cursor().next());
+    }
 }
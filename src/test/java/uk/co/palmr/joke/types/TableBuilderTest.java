@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TableBuilderTest {
+    @Test
+    void testColumnsGrow() {
+        final TableBuilder table = new TableBuilder(1);
+        final TableBuilder.LongColumn size = table.longColumn("size");
+        final TableBuilder.DoubleColumn price = table.doubleColumn("price");
+        for (int row = 0; row < 100; row++) {
+            size.add(row);
+            price.add(row * 0.5);
+        }
+
+        assertEquals(100, table.rowCount());
+        assertEquals(99L, size.get(99));
+        assertEquals(49.5, price.get(99));
+        assertThrows(IndexOutOfBoundsException.class, () -> size.get(100));
+    }
+
+    @Test
+    void testSymbolsAreIndexed() {
+        final TableBuilder table = new TableBuilder();
+        final TableBuilder.SymbolColumn sym = table.symbolColumn("sym");
+        sym.add("VOD.L");
+        sym.add("BARC.L");
+        sym.add("VOD.L");
+        sym.add(null);
+        sym.addIndex(sym.indexOf("BARC.L"));
+
+        assertEquals(5, sym.size());
+        assertArrayEquals(new int[]{0, 1, 0, 2, 1}, java.util.Arrays.copyOf(sym.indices(), 5));
+        assertEquals("", sym.get(3));
+        assertEquals("BARC.L", sym.symbol(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> sym.addIndex(3));
+    }
+
+    @Test
+    void testClearKeepsStorageAndSymbols() {
+        final TableBuilder table = new TableBuilder(4);
+        final TableBuilder.SymbolColumn sym = table.symbolColumn("sym");
+        final TableBuilder.IntColumn date = table.intColumn("date", DataType.LocalDateArray);
+        sym.add("VOD.L");
+        date.add(1);
+        final int[] storage = date.values();
+
+        table.clear();
+
+        assertEquals(0, table.rowCount());
+        assertSame(storage, date.values());
+        assertEquals(0, sym.indexOf("VOD.L"));
+    }
+
+    @Test
+    void testClearForgetsSymbolsOncePastBound() {
+        final TableBuilder table = new TableBuilder(4);
+        final TableBuilder.SymbolColumn sym = table.symbolColumn("sym");
+        final int bound = 4 * TableBuilder.SymbolColumn.MAX_SYMBOLS_PER_ROW;
+        int orderId = 0;
+        while (sym.symbolCount() < bound) {
+            for (int row = 0; row < 4; row++) {
+                sym.add("order" + orderId++);
+            }
+            table.clear();
+            assertEquals(orderId, sym.symbolCount());
+        }
+
+        sym.add("order" + orderId++);
+        table.clear();
+
+        assertEquals(0, sym.symbolCount());
+        assertEquals(0, sym.indexOf("VOD.L"));
+        sym.add("VOD.L");
+        assertEquals("VOD.L", sym.get(0));
+    }
+
+    @Test
+    void testPartRowIsRejected() {
+        final TableBuilder table = new TableBuilder();
+        table.longColumn("size").add(1L);
+        table.doubleColumn("price");
+
+        assertThrows(IllegalStateException.class, table::rowCount);
+    }
+
+    @Test
+    void testInvalidColumnsAreRejected() {
+        final TableBuilder table = new TableBuilder();
+        table.longColumn("time", DataType.InstantArray);
+
+        assertThrows(IllegalArgumentException.class, () -> table.longColumn("time"));
+        assertThrows(IllegalArgumentException.class, () -> table.longColumn("price", DataType.DoubleArray));
+        assertThrows(IllegalArgumentException.class, () -> table.intColumn("size", DataType.LongArray));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static uk.co.palmr.joke.KdbProtocol.NULL_LOCAL_TIME;
+
+class TemporalIntVectorTest {
+    @Test
+    public void testDateConversion() {
+        final TemporalIntVector vector = new TemporalIntVector(DataType.LocalDateArray, new int[]{0, -1, Integer.MIN_VALUE});
+        assertEquals(LocalDate.of(2000, 1, 1), vector.getLocalDate(0));
+        assertEquals(LocalDate.of(1999, 12, 31), vector.getLocalDate(1));
+        assertTrue(vector.isNull(2));
+        assertEquals(LocalDate.MIN, vector.getObject(2));
+        assertThrows(IllegalStateException.class, () -> vector.getLocalTime(0));
+    }
+
+    @Test
+    public void testTimeConversion() {
+        final TemporalIntVector vector = new TemporalIntVector(DataType.LocalTimeArray, new int[]{43801005, Integer.MIN_VALUE});
+        assertEquals(LocalTime.of(12, 10, 1, 5000000), vector.getLocalTime(0));
+        assertEquals(NULL_LOCAL_TIME, vector.getLocalTime(1));
+    }
+
+    @Test
+    public void testBoxedConversions() {
+        assertEquals(new Month(3), new TemporalIntVector(DataType.MonthArray, new int[]{3}).getObject(0));
+        assertEquals(new Minute(3), new TemporalIntVector(DataType.MinuteArray, new int[]{3}).getObject(0));
+        assertEquals(new Second(3), new TemporalIntVector(DataType.SecondArray, new int[]{3}).getObject(0));
+    }
+
+    @Test
+    public void testRejectsNonTemporalType() {
+        assertThrows(IllegalArgumentException.class, () -> new TemporalIntVector(DataType.IntArray, new int[0]));
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        final TemporalIntVector vector1 = new TemporalIntVector(DataType.LocalDateArray, new int[]{1, 2});
+        final TemporalIntVector vector2 = new TemporalIntVector(DataType.LocalDateArray, new int[]{1, 2});
+        final TemporalIntVector vector3 = new TemporalIntVector(DataType.MonthArray, new int[]{1, 2});
+        assertEquals(vector1, vector2);
+        assertEquals(vector1.hashCode(), vector2.hashCode());
+        assertNotEquals(vector1, vector3);
+        assertNotEquals(vector1, "test");
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2024 Nick Palmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.palmr.joke.types;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TemporalLongVectorTest {
+    @Test
+    public void testTimestampConversion() {
+        final TemporalLongVector vector = new TemporalLongVector(DataType.InstantArray, new long[]{0L, -1L, Long.MIN_VALUE});
+        assertEquals(3, vector.size());
+        assertEquals(Instant.parse("2000-01-01T00:00:00Z"), vector.getInstant(0));
+        assertEquals(Instant.parse("1999-12-31T23:59:59.999999999Z"), vector.getInstant(1));
+        assertTrue(vector.isNull(2));
+        assertEquals(Instant.MIN, vector.getObject(2));
+        assertThrows(IllegalStateException.class, () -> vector.getTimespan(0));
+    }
+
+    @Test
+    public void testTimespanConversion() {
+        final TemporalLongVector vector = new TemporalLongVector(DataType.TimespanArray, new long[]{42L});
+        assertEquals(new Timespan(42L), vector.getTimespan(0));
+        assertEquals(new Timespan(42L), vector.getObject(0));
+        assertThrows(IllegalStateException.class, () -> vector.getInstant(0));
+    }
+
+    @Test
+    public void testRejectsNonTemporalType() {
+        assertThrows(IllegalArgumentException.class, () -> new TemporalLongVector(DataType.LongArray, new long[0]));
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        final TemporalLongVector vector1 = new TemporalLongVector(DataType.InstantArray, new long[]{1L, 2L});
+        final TemporalLongVector vector2 = new TemporalLongVector(DataType.InstantArray, new long[]{1L, 2L});
+        final TemporalLongVector vector3 = new TemporalLongVector(DataType.TimespanArray, new long[]{1L, 2L});
+        assertEquals(vector1, vector2);
+        assertEquals(vector1.hashCode(), vector2.hashCode());
+        assertNotEquals(vector1, vector3);
+        assertNotEquals(vector1, "test");
+    }
+}